@@ -0,0 +1,181 @@
+package sc.fiji.CMP_BIA.plugins;
+/**
+ * @file
+ */
+
+import java.io.File;
+
+import sc.fiji.CMP_BIA.segmentation.superpixels.jSLICbatch;
+import sc.fiji.CMP_BIA.tools.Logging;
+import ij.IJ;
+import ij.Macro;
+import ij.gui.GenericDialog;
+import ij.plugin.PlugIn;
+
+/**
+ * @class jSLIC batch plugin
+ * @version 0.1
+ * @category image segmentation
+ *
+ * @brief A headless runner of jSLIC superpixels over an image or a directory
+ * of images, the results are exported into an output directory.
+ *
+ * @details It is usable in three ways with the same options:
+ * 1) from command line without starting ImageJ, e.g.
+ *    java -cp ... sc.fiji.CMP_BIA.plugins.jSLIC_batch_ input=imgs output=res grid=30 regularisation=0.2
+ * 2) from a macro (also in headless mode), e.g.
+ *    run("jSLIC superpixels batch", "input=imgs output=res grid=30 regularisation=0.2 features");
+ * 3) from the menu where a dialog asks for the options and the command is recorded.
+ * Only for the menu a dialog is created, otherwise no window, RoiManager
+ * or image display is used.
+ * The options are input, output, grid, regularisation, iterations,
+ * threads (total budget, 0 follows the ImageJ settings), features and
+ * binary (labels in the compact binary format instead of text).
+ */
+public class jSLIC_batch_ implements PlugIn {
+
+	// segmentation parameters
+	protected String input = "";
+	protected String output = "";
+	protected int gSize = 30;
+	protected float regul = 0.2f;
+	protected int maxIter = 9;
+	protected int nbThreads = 0;
+	protected boolean exportFeatures = false;
+	protected boolean binaryLabels = false;
+
+	/**
+	 * This method gets called by ImageJ / Fiji, the options are taken from
+	 * the macro if there are any, otherwise from a dialog
+	 *
+	 * @param arg can be specified in plugins.config
+	 * @see ij.plugin.PlugIn#run(java.lang.String)
+	 */
+	@Override
+	public void run(String arg) {
+		String options = Macro.getOptions();
+		if (options != null) {
+			parseOptions(options);
+		} else if (!showConfigDialog()) {
+			return;
+		}
+		if (input.length() == 0 || output.length() == 0) {
+			IJ.error("jSLIC batch", "Both input and output paths have to be given.");
+			return;
+		}
+		process();
+	}
+
+	/**
+	 * read the parameters from macro options "key=value key2=[value 2] flag"
+	 *
+	 * @param options is the string of options
+	 */
+	protected void parseOptions(String options) {
+		input = Macro.getValue(options, "input", input);
+		output = Macro.getValue(options, "output", output);
+		gSize = (int) Float.parseFloat(Macro.getValue(options, "grid", Integer.toString(gSize)));
+		regul = Float.parseFloat(Macro.getValue(options, "regularisation", Float.toString(regul)));
+		maxIter = (int) Float.parseFloat(Macro.getValue(options, "iterations", Integer.toString(maxIter)));
+		nbThreads = (int) Float.parseFloat(Macro.getValue(options, "threads", Integer.toString(nbThreads)));
+		exportFeatures = (" " + options + " ").contains(" features ");
+		binaryLabels = (" " + options + " ").contains(" binary ");
+	}
+
+	/**
+	 * show the plugin dialog frame, the field names follow the option keys
+	 * so the recorded command can be replayed by parseOptions()
+	 *
+	 * @return true if user chose OK
+	 */
+	protected boolean showConfigDialog() {
+		GenericDialog gd = new GenericDialog("jSLIC batch segmentation");
+		gd.addFileField("Input", input);
+		gd.addDirectoryField("Output", output);
+		gd.addNumericField("Grid size: ", gSize, 0);
+		gd.addNumericField("Regularisation: ", regul, 2);
+		gd.addNumericField("Iterations: ", maxIter, 0);
+		gd.addNumericField("Threads (0 = all): ", nbThreads, 0);
+		gd.addCheckbox("Features export (mean colour).", exportFeatures);
+		gd.addCheckbox("Binary labels (.lbl).", binaryLabels);
+
+		gd.showDialog();
+		if (gd.wasCanceled()) {		return false;		}
+
+		input = gd.getNextString();
+		output = gd.getNextString();
+		gSize = (int) gd.getNextNumber();
+		regul = (float) gd.getNextNumber();
+		maxIter = (int) gd.getNextNumber();
+		nbThreads = (int) gd.getNextNumber();
+		exportFeatures = gd.getNextBoolean();
+		binaryLabels = gd.getNextBoolean();
+		return true;
+	}
+
+	/**
+	 * segment the input image or all images in the input directory
+	 *
+	 * @return number of failed images, -1 if the processing was interrupted
+	 */
+	protected int process() {
+		String[] paths;
+		if (new File(input).isDirectory()) {
+			paths = jSLICbatch.listImages(input);
+		} else {
+			paths = new String[]{ input };
+		}
+
+		jSLICbatch batch = new jSLICbatch(output);
+		if (nbThreads > 0) {
+			int nbDecode = Math.max(1, nbThreads / 4);
+			batch.setThreads(nbDecode, Math.max(1, nbThreads - nbDecode), 1);
+		}
+		batch.setExportFeatures(exportFeatures);
+		batch.setBinaryLabels(binaryLabels);
+		try {
+			batch.process(paths, gSize, regul, maxIter);
+		} catch (InterruptedException e) {
+			Logging.logMsg("jSLIC batch: interrupted.");
+			Thread.currentThread().interrupt();
+			return -1;
+		}
+		return batch.getNbFailed();
+	}
+
+	/**
+	 * run the segmentation with given options without any GUI
+	 *
+	 * @param options is the string of options as for the macro
+	 * @return number of failed images, -1 for wrong options or interruption
+	 */
+	public static int runHeadless(String options) {
+		jSLIC_batch_ plg = new jSLIC_batch_();
+		plg.parseOptions(options);
+		if (plg.input.length() == 0 || plg.output.length() == 0) {
+			Logging.logMsg("usage: jSLIC_batch_ input=<image or dir> output=<dir> [grid=30]"
+					+ " [regularisation=0.2] [iterations=9] [threads=0] [features] [binary]");
+			return -1;
+		}
+		return plg.process();
+	}
+
+	/**
+	 * command line entry point, the arguments are the macro options
+	 * and the exit status is non-zero if any image failed
+	 *
+	 * @param args are options as "key=value"
+	 */
+	public static void main(String[] args) {
+		// the image decoders must not start any display
+		if (System.getProperty("java.awt.headless") == null) {
+			System.setProperty("java.awt.headless", "true");
+		}
+		StringBuilder options = new StringBuilder();
+		for (String a : args) {
+			options.append(a).append(' ');
+		}
+		int res = runHeadless(options.toString());
+		System.exit((res == 0) ? 0 : 1);
+	}
+}
@@ -5,6 +5,8 @@ package sc.fiji.CMP_BIA.plugins;
 
 import java.awt.Color;
 
+import sc.fiji.CMP_BIA.segmentation.superpixels.jSLICgray;
+import sc.fiji.CMP_BIA.segmentation.superpixels.jSLICmulti;
 import sc.fiji.CMP_BIA.segmentation.superpixels.jSLICp2D;
 import sc.fiji.CMP_BIA.tools.Logging;
 import ij.IJ;
@@ -132,8 +134,14 @@ public class jSLIC_superpixels_  implements PlugInFilter {
 		printInfo("jSLIC initialisation...");
 		startTime = System.currentTimeMillis();
 		
-		// init jSLIC superpixels
-		sp = new jSLICp2D(image);
+		// init jSLIC superpixels, gray images in their native depth
+		if (image.getNChannels() > 1) {
+			sp = new jSLICmulti(image);
+		} else if (image.getType() == ImagePlus.COLOR_RGB) {
+			sp = new jSLICp2D(image);
+		} else {
+			sp = new jSLICgray(image);
+		}
 		
 		IJ.showProgress(20.);
 
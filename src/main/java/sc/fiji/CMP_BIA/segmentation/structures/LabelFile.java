@@ -0,0 +1,480 @@
+/**
+ * @file
+ */
+package sc.fiji.CMP_BIA.segmentation.structures;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import sc.fiji.CMP_BIA.tools.Threading;
+
+/**
+ * @class Label File
+ * @version 0.1
+ * @category image segmentation
+ *
+ * @brief Compact binary format of 2D label maps which is written and read
+ * through memory mapped files, instead of the decimal text.
+ *
+ * @details The file starts with a header of 32 bytes in little-endian:
+ *   0: magic "SLBL", 4: version (byte), 5: encoding (byte, 0 raw / 1 RLE),
+ *   6: label width in bytes (byte, 1 / 2 / 4), 7: reserved,
+ *   8: width (int), 12: height (int), 16: max label (int), 20: reserved.
+ * The body has the labels in row-major order, either
+ * - raw: each label as unsigned 8 / 16 bit or signed 32 bit integer, or
+ * - RLE: a row index of height+1 offsets (long) of the first run of each
+ *   row relative to the end of the index, followed by the runs of the same
+ *   label inside a row as the label (in the label width) and the run length
+ *   as unsigned 16 bit integer.
+ * The smallest label width and the smaller encoding are chosen on write,
+ * superpixel maps are usually several times smaller with RLE. Both can be
+ * opened lazily by MappedLabelling2D without loading them, the RLE rows
+ * are decoded on access by the row index.
+ */
+public class LabelFile {
+
+	// file name extension of the binary label maps
+	public static final String EXTENSION = ".lbl";
+
+	static final byte[] MAGIC = {'S', 'L', 'B', 'L'};
+	static final byte VERSION = 1;
+	static final byte ENCODING_RAW = 0;
+	static final byte ENCODING_RLE = 1;
+	static final int HEADER_SIZE = 32;
+	static final int MAX_RUN = 0xFFFF;
+
+	/**
+	 * The header of a label file
+	 */
+	static class Header {
+		byte encoding;
+		int labelWidth, width, height, maxLabel;
+
+		/**
+		 * @return the size of raw body in bytes
+		 */
+		long rawSize() {
+			return (long) width * height * labelWidth;
+		}
+
+		/**
+		 * @return the position of the first run in RLE file
+		 */
+		long runsOffset() {
+			return HEADER_SIZE + 8L * (height + 1);
+		}
+	}
+
+	/**
+	 * supply of labelling rows for writing
+	 */
+	static abstract class RowSource {
+		/**
+		 * copy the row y into given array of image width
+		 */
+		abstract void getRow(int y, int[] row);
+	}
+
+	/**
+	 * Write a labelling in row-major order
+	 *
+	 * @param path is the output file
+	 * @param labels is the labelling int[width*height] indexed as (y*width + x)
+	 * @param w is the labelling width
+	 * @param h is the labelling height
+	 */
+	public static void write(String path, final int[] labels, final int w, int h) throws IOException {
+		if (labels.length != w*h) {
+			throw new IndexOutOfBoundsException("labelling size does not match given dimensions.");
+		}
+		write(path, w, h, new RowSource() {
+			@Override
+			void getRow(int y, int[] row) {
+				System.arraycopy(labels, y*w, row, 0, w);
+			}
+		});
+	}
+
+	/**
+	 * Write a labelling
+	 *
+	 * @param path is the output file
+	 * @param lb is the Labelling2D
+	 */
+	public static void write(String path, final Labelling2D lb) throws IOException {
+		write(path, lb.getWidth(), lb.getHeight(), new RowSource() {
+			@Override
+			void getRow(int y, int[] row) {
+				lb.getRow(y, row);
+			}
+		});
+	}
+
+	/**
+	 * Write the labelling rows, the label width and encoding is chosen
+	 * according the maximal label and the number of runs
+	 */
+	static void write(String path, final int w, final int h, final RowSource src) throws IOException {
+		// the statistics over the whole labelling in parallel strips of rows
+		final int nbStrips = Math.max(1, Math.min(h, 4 * Threading.nbAvailableThread()));
+		final int[] stripMax = new int[nbStrips];
+		final int[] stripMin = new int[nbStrips];
+		final long[] stripRuns = new long[nbStrips];
+		Threading.parallelFor(0, nbStrips, 1, new Threading.RangeTask() {
+			@Override
+			public void run(int begin, int end) {
+				int[] row = new int[w];
+				for (int s = begin; s < end; s++) {
+					int mx = Integer.MIN_VALUE, mn = Integer.MAX_VALUE;
+					long runs = 0;
+					for (int y = (int) ((long) s * h / nbStrips); y < (int) ((long) (s+1) * h / nbStrips); y++) {
+						src.getRow(y, row);
+						runs += countRuns(row);
+						for (int x = 0; x < w; x++) {
+							if (row[x] > mx) {	mx = row[x];	}
+							if (row[x] < mn) {	mn = row[x];	}
+						}
+					}
+					stripMax[s] = mx;
+					stripMin[s] = mn;
+					stripRuns[s] = runs;
+				}
+			}
+		});
+		int maxLabel = (w*h > 0) ? Integer.MIN_VALUE : 0, minLabel = 0;
+		long nbRuns = 0;
+		for (int s = 0; s < nbStrips; s++) {
+			maxLabel = Math.max(maxLabel, stripMax[s]);
+			minLabel = Math.min(minLabel, stripMin[s]);
+			nbRuns += stripRuns[s];
+		}
+
+		final Header head = new Header();
+		head.width = w;
+		head.height = h;
+		head.maxLabel = maxLabel;
+		if (minLabel < 0 || maxLabel > 0xFFFF) {
+			head.labelWidth = 4;
+		} else {
+			head.labelWidth = (maxLabel > 0xFF) ? 2 : 1;
+		}
+		long rleSize = 8L * (h + 1) + nbRuns * (head.labelWidth + 2);
+		head.encoding = (rleSize < head.rawSize()) ? ENCODING_RLE : ENCODING_RAW;
+		long size = HEADER_SIZE + ((head.encoding == ENCODING_RLE) ? rleSize : head.rawSize());
+
+		File file = new File(path);
+		File parentDir = file.getParentFile();
+		if (parentDir != null && !parentDir.exists()) {
+			parentDir.mkdirs();
+		}
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			raf.setLength(size);
+			FileChannel ch = raf.getChannel();
+			MappedByteBuffer buf = ch.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE);
+			buf.order(ByteOrder.LITTLE_ENDIAN);
+			writeHeader(buf, head);
+			if (head.encoding == ENCODING_RLE) {
+				writeRLE(ch, head, size - head.runsOffset(), src);
+			} else {
+				writeRaw(ch, head, src);
+			}
+		} finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * number of runs in a row, a run is not longer then MAX_RUN
+	 */
+	static long countRuns(int[] row) {
+		long runs = 0;
+		int x = 0;
+		while (x < row.length) {
+			int l = row[x], e = x + 1;
+			while (e < row.length && row[e] == l && e - x < MAX_RUN) {	e ++;	}
+			runs ++;
+			x = e;
+		}
+		return runs;
+	}
+
+	/**
+	 * the raw body is mapped in chunks of rows and each chunk is filled in parallel
+	 */
+	static void writeRaw(FileChannel ch, final Header head, final RowSource src) throws IOException {
+		final int rowBytes = head.width * head.labelWidth;
+		final int rowsPerChunk = rowsPerMapping(head);
+		for (int y0 = 0; y0 < head.height; y0 += rowsPerChunk) {
+			final int y1 = Math.min(head.height, y0 + rowsPerChunk);
+			final int yB = y0;
+			final MappedByteBuffer buf = ch.map(FileChannel.MapMode.READ_WRITE,
+					HEADER_SIZE + (long) y0 * rowBytes, (long) (y1 - y0) * rowBytes);
+			buf.order(ByteOrder.LITTLE_ENDIAN);
+			// absolute puts into disjoint rows are safe from more threads
+			Threading.parallelFor(y0, y1, new Threading.RangeTask() {
+				@Override
+				public void run(int begin, int end) {
+					int[] row = new int[head.width];
+					for (int y = begin; y < end; y++) {
+						src.getRow(y, row);
+						int off = (y - yB) * rowBytes;
+						putLabels(buf, off, row, head.labelWidth);
+					}
+				}
+			});
+		}
+	}
+
+	/**
+	 * the RLE runs are written sequentially in mapped chunks and the row
+	 * index at the end, when the offsets are known
+	 *
+	 * @param size is the size of all runs in bytes
+	 */
+	static void writeRLE(FileChannel ch, Header head, long size, RowSource src) throws IOException {
+		int lw = head.labelWidth;
+		long chunk = runsPerMapping(lw);
+		long[] index = new long[head.height + 1];
+		long pos = 0;
+		MappedByteBuffer buf = null;
+		int[] row = new int[head.width];
+		for (int y = 0; y < head.height; y++) {
+			src.getRow(y, row);
+			index[y] = (buf == null) ? 0 : pos - buf.remaining();
+			int x = 0;
+			while (x < row.length) {
+				int l = row[x], e = x + 1;
+				while (e < row.length && row[e] == l && e - x < MAX_RUN) {	e ++;	}
+				if (buf == null || !buf.hasRemaining()) {
+					buf = ch.map(FileChannel.MapMode.READ_WRITE, head.runsOffset() + pos, Math.min(chunk, size - pos));
+					buf.order(ByteOrder.LITTLE_ENDIAN);
+					pos += buf.capacity();
+				}
+				putLabel(buf, l, lw);
+				buf.putShort((short) (e - x));
+				x = e;
+			}
+		}
+		index[head.height] = size;
+		MappedByteBuffer ib = ch.map(FileChannel.MapMode.READ_WRITE, HEADER_SIZE, 8L * index.length);
+		ib.order(ByteOrder.LITTLE_ENDIAN);
+		ib.asLongBuffer().put(index);
+	}
+
+	/**
+	 * Read the whole labelling into memory
+	 *
+	 * @param path is the label file
+	 * @return Labelling2D
+	 */
+	public static Labelling2D read(String path) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(path, "r");
+		try {
+			FileChannel ch = raf.getChannel();
+			Header head = readHeader(ch);
+			int[][] data = new int[head.width][head.height];
+			if (head.encoding == ENCODING_RLE) {
+				readRLE(ch, head, data);
+			} else {
+				readRaw(ch, head, data);
+			}
+			return new Labelling2D(data);
+		} finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * read the raw body in mapped chunks
+	 */
+	static void readRaw(FileChannel ch, final Header head, final int[][] data) throws IOException {
+		final int rowBytes = head.width * head.labelWidth;
+		final int rowsPerChunk = rowsPerMapping(head);
+		for (int y0 = 0; y0 < head.height; y0 += rowsPerChunk) {
+			final int y1 = Math.min(head.height, y0 + rowsPerChunk);
+			final int yB = y0;
+			final MappedByteBuffer buf = ch.map(FileChannel.MapMode.READ_ONLY,
+					HEADER_SIZE + (long) y0 * rowBytes, (long) (y1 - y0) * rowBytes);
+			buf.order(ByteOrder.LITTLE_ENDIAN);
+			// split by columns so each thread writes its own arrays
+			Threading.parallelFor(0, head.width, new Threading.RangeTask() {
+				@Override
+				public void run(int begin, int end) {
+					for (int y = yB; y < y1; y++) {
+						int off = (y - yB) * rowBytes;
+						for (int x = begin; x < end; x++) {
+							data[x][y] = getLabel(buf, off + x * head.labelWidth, head.labelWidth);
+						}
+					}
+				}
+			});
+		}
+	}
+
+	/**
+	 * decode the RLE runs sequentially in mapped chunks
+	 */
+	static void readRLE(FileChannel ch, Header head, int[][] data) throws IOException {
+		int lw = head.labelWidth;
+		long chunk = runsPerMapping(lw);
+		long size = ch.size() - head.runsOffset();
+		long pos = 0;
+		MappedByteBuffer buf = null;
+		for (int y = 0; y < head.height; y++) {
+			int x = 0;
+			while (x < head.width) {
+				if (buf == null || !buf.hasRemaining()) {
+					if (pos >= size) {
+						throw new IOException("label file is truncated.");
+					}
+					buf = ch.map(FileChannel.MapMode.READ_ONLY, head.runsOffset() + pos, Math.min(chunk, size - pos));
+					buf.order(ByteOrder.LITTLE_ENDIAN);
+					pos += buf.capacity();
+				}
+				int l = getLabel(buf, buf.position(), lw);
+				buf.position(buf.position() + lw);
+				int e = x + (buf.getShort() & 0xFFFF);
+				if (e > head.width) {
+					throw new IOException("label file is corrupted, run over the row end.");
+				}
+				for (; x < e; x++) {
+					data[x][y] = l;
+				}
+			}
+		}
+	}
+
+	/**
+	 * read and check the header
+	 */
+	static Header readHeader(FileChannel ch) throws IOException {
+		if (ch.size() < HEADER_SIZE) {
+			throw new IOException("not a label file, too short.");
+		}
+		MappedByteBuffer buf = ch.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE);
+		buf.order(ByteOrder.LITTLE_ENDIAN);
+		for (int i = 0; i < MAGIC.length; i++) {
+			if (buf.get(i) != MAGIC[i]) {
+				throw new IOException("not a label file, wrong magic.");
+			}
+		}
+		if (buf.get(4) != VERSION) {
+			throw new IOException("not supported label file version " + Integer.toString(buf.get(4)));
+		}
+		Header head = new Header();
+		head.encoding = buf.get(5);
+		head.labelWidth = buf.get(6);
+		head.width = buf.getInt(8);
+		head.height = buf.getInt(12);
+		head.maxLabel = buf.getInt(16);
+		if (head.labelWidth != 1 && head.labelWidth != 2 && head.labelWidth != 4) {
+			throw new IOException("wrong label width " + Integer.toString(head.labelWidth));
+		}
+		if (head.encoding == ENCODING_RAW && ch.size() < HEADER_SIZE + head.rawSize()) {
+			throw new IOException("label file is truncated.");
+		}
+		if (head.encoding == ENCODING_RLE && ch.size() < head.runsOffset()) {
+			throw new IOException("label file is truncated.");
+		}
+		return head;
+	}
+
+	/**
+	 * read the row index of RLE file
+	 *
+	 * @return long[height+1] offsets of the first run of each row
+	 */
+	static long[] readRowIndex(FileChannel ch, Header head) throws IOException {
+		long[] index = new long[head.height + 1];
+		MappedByteBuffer buf = ch.map(FileChannel.MapMode.READ_ONLY, HEADER_SIZE, 8L * index.length);
+		buf.order(ByteOrder.LITTLE_ENDIAN);
+		buf.asLongBuffer().get(index);
+		if (index[head.height] > ch.size() - head.runsOffset()) {
+			throw new IOException("label file is truncated.");
+		}
+		return index;
+	}
+
+	/**
+	 * write the header to the beginning of buffer
+	 */
+	static void writeHeader(MappedByteBuffer buf, Header head) {
+		for (int i = 0; i < MAGIC.length; i++) {
+			buf.put(i, MAGIC[i]);
+		}
+		buf.put(4, VERSION);
+		buf.put(5, head.encoding);
+		buf.put(6, (byte) head.labelWidth);
+		buf.put(7, (byte) 0);
+		buf.putInt(8, head.width);
+		buf.putInt(12, head.height);
+		buf.putInt(16, head.maxLabel);
+		for (int i = 20; i < HEADER_SIZE; i++) {
+			buf.put(i, (byte) 0);
+		}
+	}
+
+	/**
+	 * number of whole rows fitting into a single mapping (limited to 2GB)
+	 */
+	static int rowsPerMapping(Header head) {
+		long rowBytes = Math.max(1, (long) head.width * head.labelWidth);
+		return (int) Math.max(1, Math.min(head.height, Integer.MAX_VALUE / rowBytes));
+	}
+
+	/**
+	 * number of bytes of whole runs fitting into a single mapping (limited to 2GB)
+	 */
+	static long runsPerMapping(int lw) {
+		int runBytes = lw + 2;
+		return (Integer.MAX_VALUE / runBytes) * (long) runBytes;
+	}
+
+	/**
+	 * absolute read of a label of given width
+	 */
+	static int getLabel(MappedByteBuffer buf, int off, int lw) {
+		switch (lw) {
+			case 1:		return buf.get(off) & 0xFF;
+			case 2:		return buf.getShort(off) & 0xFFFF;
+			default:	return buf.getInt(off);
+		}
+	}
+
+	/**
+	 * absolute write of a label of given width
+	 */
+	static void putLabel(MappedByteBuffer buf, int off, int l, int lw) {
+		switch (lw) {
+			case 1:		buf.put(off, (byte) l);				break;
+			case 2:		buf.putShort(off, (short) l);		break;
+			default:	buf.putInt(off, l);					break;
+		}
+	}
+
+	/**
+	 * absolute write of a row of labels
+	 */
+	static void putLabels(MappedByteBuffer buf, int off, int[] row, int lw) {
+		for (int x = 0; x < row.length; x++) {
+			putLabel(buf, off + x * lw, row[x], lw);
+		}
+	}
+
+	/**
+	 * relative write of a label of given width
+	 */
+	static void putLabel(MappedByteBuffer buf, int l, int lw) {
+		switch (lw) {
+			case 1:		buf.put((byte) l);				break;
+			case 2:		buf.putShort((short) l);		break;
+			default:	buf.putInt(l);					break;
+		}
+	}
+
+}
@@ -7,6 +7,7 @@ import ij.ImagePlus;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
 
 
 /**
@@ -184,7 +185,8 @@ abstract public class Labelling {
 	
 	/**
 	 * this method modify the LUT such that all indexes in labelling are 
-	 * continuous from 0 up to number of unique elments
+	 * continuous from 0 up to number of unique elments, the new indexes are 
+	 * given in order of the first appearance in the LUT
 	 * 
 	 * @param lut the original LUT 
 	 * @return int[LUT.lenght] new LUT
@@ -192,37 +194,76 @@ abstract public class Labelling {
 	public static int[] determineContinuousLabelling(int[] lut) {
 		// neew lut table
 		int[] res = new int[lut.length];
-		int[] listSub = new int[lut.length];
-		int idx = 0;
-		boolean sub;
-		
-		// for all elem in LUT
-		for (int i = 0; i < lut.length; i++) {
-			// only non empty elements
-			if (lut[i] < 0) {
-				continue;
+		int max = -1;
+		for (int l : lut) {
+			if (l > max) {
+				max = l;
 			}
-			sub = false;
-			// check if it was substitited
-			for (int j = 0; j < idx; j++) {
-				if (listSub[j] == lut[i]) {
-					sub = true;
-					res[i] = j;
-					break;
+		}
+		int idx = 0;
+
+		// the old labels are mostly bounded by the LUT size, so they can
+		// index the substitution table directly
+		if (max < 2*lut.length + 1024) {
+			int[] listSub = new int[max+1];
+			Arrays.fill(listSub, -1);
+			for (int i = 0; i < lut.length; i++) {
+				// only non empty elements
+				if (lut[i] < 0) {
+					continue;
+				}
+				// if it was not subtituted add new id
+				if (listSub[lut[i]] < 0) {
+					listSub[lut[i]] = idx ++;
 				}
+				res[i] = listSub[lut[i]];
 			}
-			// FIXME - too slow... :(
-			// if it was not subtituted add new id
-			if (! sub) {
-				// put new index
-				res[i] = idx;
-				// save this substitution
-				listSub[idx] = lut[i];
-				idx ++;
+		} else {
+			HashMap<Integer, Integer> listSub = new HashMap<Integer, Integer>();
+			Integer sub;
+			for (int i = 0; i < lut.length; i++) {
+				if (lut[i] < 0) {
+					continue;
+				}
+				sub = listSub.get(lut[i]);
+				if (sub == null) {
+					sub = idx ++;
+					listSub.put(lut[i], sub);
+				}
+				res[i] = sub;
 			}
 		}
 		
 		return res;
 	}
+
+	/**
+	 * relabel the labelling in place such that the labels are continuous 
+	 * from 0 up to number of unique labels, the order of labels is kept
+	 * 
+	 * @param labels is int[] labelling with non-negative labels
+	 * @return int number of unique labels
+	 */
+	public static int compactLabelling(int[] labels) {
+		int max = -1;
+		for (int l : labels) {
+			if (l > max) {
+				max = l;
+			}
+		}
+		// mark the used labels and number them in increasing order
+		int[] listSub = new int[max+1];
+		for (int l : labels) {
+			listSub[l] = 1;
+		}
+		int idx = 0;
+		for (int l = 0; l <= max; l++) {
+			listSub[l] = (listSub[l] > 0) ? idx ++ : -1;
+		}
+		for (int i = 0; i < labels.length; i++) {
+			labels[i] = listSub[labels[i]];
+		}
+		return idx;
+	}
 		
 }
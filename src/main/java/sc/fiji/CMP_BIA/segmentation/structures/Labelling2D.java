@@ -15,6 +15,7 @@ import ij.process.ShortProcessor;
 
 import java.awt.Color;
 import java.io.FileNotFoundException;
+import java.io.IOException;
 import java.io.PrintWriter;
 import java.io.UnsupportedEncodingException;
 import java.util.ArrayList;
@@ -23,6 +24,7 @@ import java.util.Random;
 
 import sc.fiji.CMP_BIA.segmentation.tools.Connectivity2D;
 import sc.fiji.CMP_BIA.tools.Logging;
+import sc.fiji.CMP_BIA.tools.Threading;
 import sc.fiji.CMP_BIA.tools.converters.ConvertStructure;
 
 /**
@@ -66,6 +68,31 @@ public class Labelling2D extends Labelling {
 		resetSegm(segm);
 	}
 	
+	/**
+	 * Constructor from flat labelling in row-major order
+	 *
+	 * @param segm is new labelling int[width*height] indexed as (y*width + x)
+	 * @param w int width of the segmentation
+	 * @param h int height of the segmentation
+	 */
+	public Labelling2D(int[] segm, int w, int h) {
+		if (segm.length != w*h) {
+			throw new IndexOutOfBoundsException("labelling size does not match given dimensions.");
+		}
+		// rewrite data dimensions
+		dims = new int[2];
+		dims[0] = w;
+		dims[1] = h;
+		// transpose the data into local representation
+		data = new int[w][h];
+		for (int y=0; y<h; y++) {
+			for (int x=0; x<w; x++) {
+				data[x][y] = segm[y*w + x];
+			}
+		}
+		computeHistogram();
+	}
+
 	/**
 	 * Reset the segmentation such that it copy new labelling and recompute 
 	 * the histogram
@@ -172,6 +199,27 @@ public class Labelling2D extends Labelling {
 		return data;
 	}
 
+	/**
+	 * gives a copy of the labelling as flat array in row-major order
+	 *
+	 * @return int[width*height] indexed as (y*width + x)
+	 */
+	public int[] getDataRowMajor() {
+		return ConvertStructure.intMatrix2rowMajor(data);
+	}
+
+	/**
+	 * copy a row of the labelling, e.g. for streaming the labelling by rows
+	 *
+	 * @param y is the row index
+	 * @param row is the output array of the labelling width
+	 */
+	public void getRow(int y, int[] row) {
+		for (int x = 0; x < dims[0]; x++) {
+			row[x] = data[x][y];
+		}
+	}
+
 	/**
 	 * 
 	 * @return
@@ -223,6 +271,7 @@ public class Labelling2D extends Labelling {
 	public void showLabelling() {
 		// create ImageJ ShortProcessor
 		ShortProcessor segm = new ShortProcessor(dims[0], dims[1]);
+		int[][] data = getData();
 		for (int x=0; x<dims[0]; x++ ) {
 			for (int y=0; y<dims[1]; y++ ) {
 				segm.set(x, y, data[x][y]);
@@ -252,25 +301,75 @@ public class Labelling2D extends Labelling {
 			}
 		}
 		
-		// init hist. array		
-		hist = new int[maxLabel+1];
-		Arrays.fill(hist, 0);
+		// relabel actual labelling and compute histogram for each strip
+		// of columns, the histograms are summed at the end
+		final int nbStrips = Math.max(1, Math.min(data.length, Threading.nbAvailableThread()));
+		final int[][] hists = new int[nbStrips][];
+		final int[] lut = LUT;
+		final int nbLabels = maxLabel+1;
+		Threading.parallelFor(0, nbStrips, 1, new Threading.RangeTask() {
+			@Override
+			public void run(int begin, int end) {
+				for (int s = begin; s < end; s++) {
+					int[] h = new int[nbLabels];
+					int xB = (int) ((long) s * data.length / nbStrips);
+					int xE = (int) ((long) (s+1) * data.length / nbStrips);
+					for (int i=xB; i<xE; i++) {
+						int[] col = data[i];
+						for (int j=0; j<col.length; j++) {
+							col[j] = lut[ col[j] ];
+							h[ col[j] ] ++;
+						}
+					}
+					hists[s] = h;
+				}
+			}
+		});
 		
-		// relabel actual labelling and compute histogram
-		for (int i=0; i<data.length; i++) {
-			for (int j=0; j<data[i].length; j++) {
-				data[i][j] = LUT[ data[i][j] ];
-				hist[ data[i][j] ] ++;
+		hist = hists[0];
+		for (int s = 1; s < nbStrips; s++) {
+			for (int l = 0; l < nbLabels; l++) {
+				hist[l] += hists[s][l];
 			}
 		}
 	}
+
+	/**
+	 * relabel the labelling in place such that the labels are continuous 
+	 * from 0 up to number of used labels, the order of labels is kept
+	 * 
+	 * @return int number of used labels
+	 */
+	public int compactLabels() {
+		if (hist == null) {
+			computeHistogram();
+		}
+		int[] lut = new int[maxLabel+1];
+		int idx = 0;
+		for (int l = 0; l < lut.length; l++) {
+			lut[l] = (hist[l] > 0) ? idx ++ : 0;
+		}
+		reLabel(lut);
+		return idx;
+	}
 	
 	/**
 	 * @see sc.fiji.CMP_BIA.segmentation.structures.Labelling#findSegmentsConnectivity(int[][])
 	 */
 	@Override
 	public int[][] findSegmentsConnectivity(int[][] neighbors) {
-		return ConvertStructure.arrayLists2intMatrix( Connectivity2D.findSegmetNeighbors(data, maxLabel+1, neighbors) );
+		//return ConvertStructure.arrayLists2intMatrix( Connectivity2D.findSegmetNeighbors(data, maxLabel+1, neighbors) );
+		return getAdjacencyGraph(neighbors).getNeighbourMatrix();
+	}
+
+	/**
+	 * build the region adjacency graph of all segments
+	 * 
+	 * @param neighbors defines relative position of neighbouring pixels of size int[connect][2]
+	 * @return RegionAdjacencyGraph with a node for each label
+	 */
+	public RegionAdjacencyGraph getAdjacencyGraph(int[][] neighbors) {
+		return RegionAdjacencyGraph.fromLabelling(getDataRowMajor(), dims[0], dims[1], maxLabel+1, neighbors);
 	}
 
 	/**
@@ -278,13 +377,13 @@ public class Labelling2D extends Labelling {
 	 */
 	@Override
 	public ArrayList<ArrayList<int[]>> findElementsBoundaries(int[][] neighborhood) {
-		return Connectivity2D.segmentBoundariesRaw(data, maxLabel+1, neighborhood);
+		return Connectivity2D.segmentBoundariesRaw(getData(), maxLabel+1, neighborhood);
 	}
 	
 	public ArrayList<ArrayList<int[]>> findElementsBoundariesPolygon() {
 		// treat all point and then simplify
 		Logging.logMsg("   -> segment boundaries..");
-		ArrayList<ArrayList<int[]>> bounds = Connectivity2D.segmentBoundaries(data, maxLabel+1);
+		ArrayList<ArrayList<int[]>> bounds = Connectivity2D.segmentBoundaries(getData(), maxLabel+1);
 		Logging.logMsg("   -> simplify polygon...");
 		Connectivity2D.simplifyPolygon(bounds);
 		return bounds;
@@ -323,6 +422,7 @@ public class Labelling2D extends Labelling {
 		// create colour segmentation
 		ImageProcessor ip = img.getProcessor().convertToRGB();
 		ImageProcessor segm = new ColorProcessor(dims[0], dims[1]);
+		int[][] data = getData();
 		for (int i=0; i<data.length; i++) {
 			for (int j=0; j<data[i].length; j++) {
 				// segm.set(i, j, lut[ data[i][j] ]);
@@ -379,7 +479,7 @@ public class Labelling2D extends Labelling {
 		
 		ImageProcessor ip = img.getProcessor();
 		// ArrayList<int[]> coords = Connectivity2D.findBoundaryPoints(data, Connectivity2D.CONNECT8);
-		ArrayList<ArrayList<int[]>> coords = Connectivity2D.segmentBoundariesRaw(data, maxLabel+1, Connectivity2D.CONNECT8);
+		ArrayList<ArrayList<int[]>> coords = Connectivity2D.segmentBoundariesRaw(getData(), maxLabel+1, Connectivity2D.CONNECT8);
 		// draw the contours
 		for (int i = 0; i < coords.size(); i++) {
 			for (int j = 0; j < coords.get(i).size(); j++) {
@@ -475,9 +575,10 @@ public class Labelling2D extends Labelling {
 		}
 		
 		// go throw overlap of both segmentations
+		int[][] dataA = this.getData(), dataB = lb.getData();
 		for (int i=0; i<end[0]; i++) {
 			for (int j=0; j<end[1]; j++) {
-				overlap[ this.data[i+lShiftA[0]][j+lShiftA[1]] ][ lb.data[i+lShiftB[0]][j+lShiftB[1]] ] ++;
+				overlap[ dataA[i+lShiftA[0]][j+lShiftA[1]] ][ dataB[i+lShiftB[0]][j+lShiftB[1]] ] ++;
 			}
 		}
 		
@@ -489,7 +590,25 @@ public class Labelling2D extends Labelling {
 	 */
 	@Override
 	public int[][] findMultiClassBoundaryPoints(int[][] neighbors) {
-		return ConvertStructure.arrayList2intMatrix( Connectivity2D.findBoundaryPoints(data, neighbors) );
+		//return ConvertStructure.arrayList2intMatrix( Connectivity2D.findBoundaryPoints(data, neighbors) );
+		int[] points = findMultiClassBoundaryPointsCompact(neighbors);
+		int[][] res = new int[points.length / 2][];
+		for (int i = 0; i < res.length; i++) {
+			res[i] = new int[]{points[2*i], points[2*i+1]};
+		}
+		return res;
+	}
+
+	/**
+	 * finds all points where are 3 and more different classes in defined 
+	 * connectivity in linear time
+	 * 
+	 * @param neighbors defines relative position of neighbouring pixels 
+	 * of size int[connect][2]
+	 * @return int[2*nbPoints] coordinates as {x0, y0, x1, y1, ...}
+	 */
+	public int[] findMultiClassBoundaryPointsCompact(int[][] neighbors) {
+		return Connectivity2D.findJunctionPoints(getData(), neighbors);
 	}
 
 	/**
@@ -497,7 +616,7 @@ public class Labelling2D extends Labelling {
 	 */
 	@Override
 	public Object clone() {
-		return new Labelling2D( this.data );
+		return new Labelling2D( getData() );
 	}
 
 	/**
@@ -523,6 +642,7 @@ public class Labelling2D extends Labelling {
 			out = new PrintWriter(path, "UTF-8");
 			// write data
 			out.println(strDims);
+			int[][] data = getData();
 			for (int i=0; i<data.length; i++) {
 				for (int j=0; j<data[i].length; j++) {
 					out.print( Integer.toString( data[i][j] ) + " ");
@@ -540,11 +660,24 @@ public class Labelling2D extends Labelling {
 		}
 	}
 
+	/**
+	 * Export the labelling into the compact binary format, the successor of
+	 * the text export, it can be loaded by LabelFile.read() or opened lazily
+	 * as MappedLabelling2D
+	 *
+	 * @param path is the output file
+	 * @see sc.fiji.CMP_BIA.segmentation.structures.LabelFile
+	 */
+	public void exportToBinaryFile(String path) throws IOException {
+		LabelFile.write(path, this);
+	}
+
 	/**
 	 * 
 	 */
 	@Override
 	public void printData() {
+		int[][] data = getData();
 		for (int i=0; i<data.length; i++) {
 			for (int j=0; j<data[i].length; j++) {
 				System.out.print( Integer.toString( data[i][j] ) + ", ");
@@ -0,0 +1,320 @@
+/**
+ * @file
+ */
+package sc.fiji.CMP_BIA.segmentation.structures;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import sc.fiji.CMP_BIA.tools.Threading;
+
+/**
+ * @class Mapped Labelling 2D
+ * @version 0.1
+ * @category image segmentation
+ *
+ * @brief 2D labelling backed by a binary label file (see LabelFile)
+ * mapped into memory, so the labels are read lazily from the file
+ * without loading the whole label map.
+ *
+ * @details The point access, rows, row-major copy, histogram and relabelling
+ * work directly over the mapped file, opened for writing the changes are
+ * stored into the file. The methods which need the whole int[width][height]
+ * matrix (e.g. visualisation, boundaries) get a copy by getData(), so their
+ * changes are not written back. Files larger than 2GB are mapped in chunks
+ * of whole rows (raw) or whole runs (RLE). The RLE files are decoded row by
+ * row by their row index and they can be opened only for reading.
+ */
+public class MappedLabelling2D extends Labelling2D {
+	// the mapped chunks of rows
+	private MappedByteBuffer[] chunks;
+	// number of rows in each chunk
+	private int rowsPerChunk;
+	// label width in bytes
+	private int labelWidth;
+	// the changes are written into the file
+	private boolean writable;
+	// the file is RLE encoded, the chunks hold the runs
+	private boolean rle = false;
+	// offsets of the first run of each row in RLE file
+	private long[] rowIndex;
+	// number of bytes in each chunk of runs
+	private long runsPerChunk;
+
+	/**
+	 * Open a raw label file for reading
+	 *
+	 * @param path is the label file
+	 */
+	public MappedLabelling2D(String path) throws IOException {
+		this(path, false);
+	}
+
+	/**
+	 * Open a label file, the RLE encoded files only for reading
+	 *
+	 * @param path is the label file
+	 * @param write says if the labels can be changed (written into the file)
+	 */
+	public MappedLabelling2D(String path, boolean write) throws IOException {
+		super(0, 0);
+		RandomAccessFile raf = new RandomAccessFile(path, write ? "rw" : "r");
+		try {
+			FileChannel ch = raf.getChannel();
+			LabelFile.Header head = LabelFile.readHeader(ch);
+			dims = new int[]{ head.width, head.height };
+			labelWidth = head.labelWidth;
+			writable = write;
+			if (head.encoding == LabelFile.ENCODING_RLE) {
+				if (write) {
+					throw new IOException("RLE label files can be opened only for reading.");
+				}
+				mapRuns(ch, head);
+				computeHistogram();
+				return;
+			}
+			rowsPerChunk = LabelFile.rowsPerMapping(head);
+			int rowBytes = head.width * head.labelWidth;
+			chunks = new MappedByteBuffer[(head.height + rowsPerChunk - 1) / rowsPerChunk];
+			for (int c = 0; c < chunks.length; c++) {
+				int y0 = c * rowsPerChunk;
+				int y1 = Math.min(head.height, y0 + rowsPerChunk);
+				chunks[c] = ch.map(write ? FileChannel.MapMode.READ_WRITE : FileChannel.MapMode.READ_ONLY,
+						LabelFile.HEADER_SIZE + (long) y0 * rowBytes, (long) (y1 - y0) * rowBytes);
+				chunks[c].order(ByteOrder.LITTLE_ENDIAN);
+			}
+		} finally {
+			// the mapping stays valid after closing the file
+			raf.close();
+		}
+		computeHistogram();
+	}
+
+	/**
+	 * map all runs of RLE file in chunks of whole runs
+	 */
+	private void mapRuns(FileChannel ch, LabelFile.Header head) throws IOException {
+		rle = true;
+		rowIndex = LabelFile.readRowIndex(ch, head);
+		runsPerChunk = LabelFile.runsPerMapping(labelWidth);
+		long size = rowIndex[head.height];
+		chunks = new MappedByteBuffer[(int) Math.max(1, (size + runsPerChunk - 1) / runsPerChunk)];
+		for (int c = 0; c < chunks.length; c++) {
+			long pos = c * runsPerChunk;
+			chunks[c] = ch.map(FileChannel.MapMode.READ_ONLY, head.runsOffset() + pos, Math.min(runsPerChunk, size - pos));
+			chunks[c].order(ByteOrder.LITTLE_ENDIAN);
+		}
+	}
+
+	/**
+	 * @see sc.fiji.CMP_BIA.segmentation.structures.Labelling2D#getLabel(int, int)
+	 */
+	@Override
+	public int getLabel(int x, int y) {
+		if (x<0 || y<0 || x>=dims[0] || y>=dims[1]) {
+			throw new IndexOutOfBoundsException();
+		}
+		if (rle) {
+			// walk the runs of the row till the one covering x
+			int e = 0, off;
+			for (long p = rowIndex[y]; p < rowIndex[y+1]; p += labelWidth + 2) {
+				off = (int) (p % runsPerChunk);
+				MappedByteBuffer buf = chunks[(int) (p / runsPerChunk)];
+				e += buf.getShort(off + labelWidth) & 0xFFFF;
+				if (x < e) {
+					return LabelFile.getLabel(buf, off, labelWidth);
+				}
+			}
+			throw new IndexOutOfBoundsException("label file is corrupted, the row is too short.");
+		}
+		return LabelFile.getLabel(chunks[y / rowsPerChunk], ((y % rowsPerChunk) * dims[0] + x) * labelWidth, labelWidth);
+	}
+
+	/**
+	 * the label has to fit into the label width of the file
+	 *
+	 * @see sc.fiji.CMP_BIA.segmentation.structures.Labelling2D#setLabel(int, int, int)
+	 */
+	@Override
+	public void setLabel(int x, int y, int l) {
+		if (!writable) {
+			throw new UnsupportedOperationException("the labelling is opened only for reading.");
+		}
+		if (labelWidth < 4 && (l < 0 || l >= (1 << (8*labelWidth)))) {
+			throw new IllegalArgumentException("label does not fit into " + Integer.toString(labelWidth) + " bytes.");
+		}
+		int old = getLabel(x, y);
+		LabelFile.putLabel(chunks[y / rowsPerChunk], ((y % rowsPerChunk) * dims[0] + x) * labelWidth, l, labelWidth);
+		if (l > maxLabel) {
+			maxLabel = l;
+			hist = null;
+		}
+		if (hist != null) {
+			hist[old] --;
+			hist[l] ++;
+		}
+	}
+
+	/**
+	 * @see sc.fiji.CMP_BIA.segmentation.structures.Labelling2D#getRow(int, int[])
+	 */
+	@Override
+	public void getRow(int y, int[] row) {
+		if (rle) {
+			int x = 0, e, l, off;
+			for (long p = rowIndex[y]; p < rowIndex[y+1] && x < dims[0]; p += labelWidth + 2) {
+				off = (int) (p % runsPerChunk);
+				MappedByteBuffer buf = chunks[(int) (p / runsPerChunk)];
+				l = LabelFile.getLabel(buf, off, labelWidth);
+				e = Math.min(dims[0], x + (buf.getShort(off + labelWidth) & 0xFFFF));
+				for (; x < e; x++) {
+					row[x] = l;
+				}
+			}
+			if (x < dims[0]) {
+				throw new IndexOutOfBoundsException("label file is corrupted, the row is too short.");
+			}
+			return;
+		}
+		MappedByteBuffer buf = chunks[y / rowsPerChunk];
+		int off = (y % rowsPerChunk) * dims[0] * labelWidth;
+		for (int x = 0; x < dims[0]; x++) {
+			row[x] = LabelFile.getLabel(buf, off + x * labelWidth, labelWidth);
+		}
+	}
+
+	/**
+	 * gives a copy of the whole labelling, changes are not written back
+	 *
+	 * @see sc.fiji.CMP_BIA.segmentation.structures.Labelling2D#getData()
+	 */
+	@Override
+	public int[][] getData() {
+		final int[][] data = new int[dims[0]][dims[1]];
+		Threading.parallelFor(0, dims[1], new Threading.RangeTask() {
+			@Override
+			public void run(int begin, int end) {
+				int[] row = new int[dims[0]];
+				for (int y = begin; y < end; y++) {
+					getRow(y, row);
+					for (int x = 0; x < row.length; x++) {
+						data[x][y] = row[x];
+					}
+				}
+			}
+		});
+		return data;
+	}
+
+	/**
+	 * @see sc.fiji.CMP_BIA.segmentation.structures.Labelling2D#getDataRowMajor()
+	 */
+	@Override
+	public int[] getDataRowMajor() {
+		final int[] res = new int[dims[0] * dims[1]];
+		Threading.parallelFor(0, dims[1], new Threading.RangeTask() {
+			@Override
+			public void run(int begin, int end) {
+				int[] row = new int[dims[0]];
+				for (int y = begin; y < end; y++) {
+					getRow(y, row);
+					System.arraycopy(row, 0, res, y * row.length, row.length);
+				}
+			}
+		});
+		return res;
+	}
+
+	@Override
+	public int getWidth() {
+		return dims[0];
+	}
+
+	@Override
+	public int getHeight() {
+		return dims[1];
+	}
+
+	/**
+	 * @see sc.fiji.CMP_BIA.segmentation.structures.Labelling2D#computeHistogram()
+	 */
+	@Override
+	public int[] computeHistogram() {
+		maxLabel = 0;
+		int[] row = new int[dims[0]];
+		for (int y = 0; y < dims[1]; y++) {
+			getRow(y, row);
+			for (int x = 0; x < row.length; x++) {
+				if (maxLabel < row[x]) {
+					maxLabel = row[x];
+				}
+			}
+		}
+		hist = new int[maxLabel+1];
+		for (int y = 0; y < dims[1]; y++) {
+			getRow(y, row);
+			for (int x = 0; x < row.length; x++) {
+				hist[ row[x] ] ++;
+			}
+		}
+		return hist;
+	}
+
+	/**
+	 * relabel the mapped file in place
+	 *
+	 * @see sc.fiji.CMP_BIA.segmentation.structures.Labelling2D#reLabel(int[])
+	 */
+	@Override
+	public void reLabel(final int[] LUT) {
+		if (!writable) {
+			throw new UnsupportedOperationException("the labelling is opened only for reading.");
+		}
+		if ((maxLabel+1) != LUT.length) {
+			throw new IndexOutOfBoundsException("segmentation and new labelling LUT are not same.");
+		}
+		for (int l : LUT) {
+			if (labelWidth < 4 && (l < 0 || l >= (1 << (8*labelWidth)))) {
+				throw new IllegalArgumentException("label does not fit into " + Integer.toString(labelWidth) + " bytes.");
+			}
+		}
+		Threading.parallelFor(0, dims[1], new Threading.RangeTask() {
+			@Override
+			public void run(int begin, int end) {
+				int[] row = new int[dims[0]];
+				for (int y = begin; y < end; y++) {
+					getRow(y, row);
+					int off = (y % rowsPerChunk) * dims[0] * labelWidth;
+					for (int x = 0; x < row.length; x++) {
+						row[x] = LUT[ row[x] ];
+					}
+					LabelFile.putLabels(chunks[y / rowsPerChunk], off, row, labelWidth);
+				}
+			}
+		});
+		computeHistogram();
+	}
+
+	/**
+	 * @return a copy of the labelling in memory
+	 */
+	@Override
+	public Object clone() {
+		return new Labelling2D( getData() );
+	}
+
+	/**
+	 * write all changes to the disk
+	 */
+	public void flush() {
+		if (writable) {
+			for (MappedByteBuffer buf : chunks) {
+				buf.force();
+			}
+		}
+	}
+
+}
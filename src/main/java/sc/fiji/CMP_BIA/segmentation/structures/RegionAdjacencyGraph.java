@@ -0,0 +1,290 @@
+/**
+ * @file
+ */
+package sc.fiji.CMP_BIA.segmentation.structures;
+
+import java.util.Arrays;
+
+import sc.fiji.CMP_BIA.tools.Threading;
+
+/**
+ * @class Region Adjacency Graph
+ * @version 0.1
+ * @category image segmentation
+ *
+ * @brief Compact graph of neighbouring segments stored in CSR form, the
+ * neighbours of segment i are neighbours[offsets[i] .. offsets[i+1]) in
+ * increasing order. Each edge is stored for both its segments and has
+ * the length of the shared boundary (number of neighbouring pixel pairs)
+ * and optionally the colour contrast between the segments.
+ */
+public class RegionAdjacencyGraph {
+
+	// number of segments (nodes)
+	protected int nbNodes;
+	// begin of the neighbours for each node, size nbNodes+1
+	protected int[] offsets = null;
+	// neighbouring nodes
+	protected int[] neighbours = null;
+	// length of the shared boundary for each edge
+	protected int[] boundaryLength = null;
+	// colour contrast for each edge, computed on demand
+	protected float[] contrast = null;
+
+	/**
+	 * Constructor from already prepared CSR arrays
+	 *
+	 * @param nb is number of nodes
+	 * @param off is int[nb+1] begin of neighbours of each node
+	 * @param nbrs is neighbouring nodes
+	 * @param lengths is shared boundary length for each edge
+	 */
+	public RegionAdjacencyGraph(int nb, int[] off, int[] nbrs, int[] lengths) {
+		this.nbNodes = nb;
+		this.offsets = off;
+		this.neighbours = nbrs;
+		this.boundaryLength = lengths;
+	}
+
+	/**
+	 * Build the graph in a single parallel pass over the labelling, each
+	 * strip of rows collects its boundary pixel pairs which are then
+	 * sorted and merged into the edges
+	 *
+	 * @param labels is the labelling int[width*height] in row-major order
+	 * @param width is the image width
+	 * @param height is the image height
+	 * @param nbLabels is the number of labels (nodes), all labels are smaller
+	 * @param neighbors defines relative position of neighbouring pixels
+	 * of size int[connect][2], e.g. Connectivity2D.CONNECT4
+	 * @return RegionAdjacencyGraph
+	 */
+	public static RegionAdjacencyGraph fromLabelling(final int[] labels, final int width, final int height,
+			final int nbLabels, final int[][] neighbors) {
+		// only the neighbours after the pixel in row-major order so each
+		// pair of pixels is visited once
+		int nb = 0;
+		final int[] offX = new int[neighbors.length];
+		final int[] offY = new int[neighbors.length];
+		for (int[] nc : neighbors) {
+			if (nc[1] > 0 || (nc[1] == 0 && nc[0] > 0)) {
+				offX[nb] = nc[0];
+				offY[nb] = nc[1];
+				nb ++;
+			}
+		}
+		final int nbOff = nb;
+
+		final int nbStrips = Math.max(1, Math.min(height, 4 * Threading.nbAvailableThread()));
+		// sorted unique edges (as keys) and their counts for each strip
+		final long[][] stripKeys = new long[nbStrips][];
+		final int[][] stripCounts = new int[nbStrips][];
+
+		Threading.parallelFor(0, nbStrips, 1, new Threading.RangeTask() {
+			@Override
+			public void run(int begin, int end) {
+				for (int s = begin; s < end; s++) {
+					int yB = (int) ((long) s * height / nbStrips);
+					int yE = (int) ((long) (s+1) * height / nbStrips);
+					long[] keys = new long[1024];
+					int nbKeys = 0, idx, x2, y2, l1, l2;
+					for (int y = yB; y < yE; y++) {
+						idx = y*width;
+						for (int x = 0; x < width; x++, idx++) {
+							l1 = labels[idx];
+							for (int n = 0; n < nbOff; n++) {
+								x2 = x + offX[n];
+								y2 = y + offY[n];
+								if (x2 < 0 || x2 >= width || y2 >= height) {		continue;		}
+								l2 = labels[y2*width + x2];
+								if (l1 == l2) {		continue;		}
+								if (nbKeys == keys.length) {
+									keys = Arrays.copyOf(keys, 2*keys.length);
+								}
+								keys[nbKeys ++] = edgeKey(l1, l2, nbLabels);
+							}
+						}
+					}
+					compressKeys(keys, nbKeys, stripKeys, stripCounts, s);
+				}
+			}
+		});
+
+		// merge the sorted lists of all strips
+		long[] keys = stripKeys[0];
+		int[] counts = stripCounts[0];
+		for (int s = 1; s < nbStrips; s++) {
+			long[] k2 = stripKeys[s];
+			int[] c2 = stripCounts[s];
+			long[] mKeys = new long[keys.length + k2.length];
+			int[] mCounts = new int[mKeys.length];
+			int i = 0, j = 0, m = 0;
+			while (i < keys.length || j < k2.length) {
+				if (j >= k2.length || (i < keys.length && keys[i] < k2[j])) {
+					mKeys[m] = keys[i];
+					mCounts[m ++] = counts[i ++];
+				} else if (i >= keys.length || k2[j] < keys[i]) {
+					mKeys[m] = k2[j];
+					mCounts[m ++] = c2[j ++];
+				} else {
+					mKeys[m] = keys[i];
+					mCounts[m ++] = counts[i ++] + c2[j ++];
+				}
+			}
+			keys = Arrays.copyOf(mKeys, m);
+			counts = Arrays.copyOf(mCounts, m);
+		}
+
+		// each edge is stored for both nodes
+		int[] off = new int[nbLabels + 1];
+		int a, b;
+		for (long key : keys) {
+			off[(int) (key / nbLabels) + 1] ++;
+			off[(int) (key % nbLabels) + 1] ++;
+		}
+		for (int i = 0; i < nbLabels; i++) {
+			off[i+1] += off[i];
+		}
+		int[] fill = Arrays.copyOf(off, nbLabels);
+		int[] nbrs = new int[off[nbLabels]];
+		int[] lengths = new int[off[nbLabels]];
+		// the keys are sorted by (a, b) with a < b, so filling first the
+		// lower neighbours of b and then the higher of a keeps them sorted
+		for (int e = 0; e < keys.length; e++) {
+			b = (int) (keys[e] % nbLabels);
+			a = (int) (keys[e] / nbLabels);
+			nbrs[fill[b]] = a;
+			lengths[fill[b] ++] = counts[e];
+		}
+		for (int e = 0; e < keys.length; e++) {
+			a = (int) (keys[e] / nbLabels);
+			b = (int) (keys[e] % nbLabels);
+			nbrs[fill[a]] = b;
+			lengths[fill[a] ++] = counts[e];
+		}
+		return new RegionAdjacencyGraph(nbLabels, off, nbrs, lengths);
+	}
+
+	/**
+	 * key of undirected edge, the lower label first
+	 */
+	private static long edgeKey(int l1, int l2, int nbLabels) {
+		return (l1 < l2) ? ((long) l1 * nbLabels + l2) : ((long) l2 * nbLabels + l1);
+	}
+
+	/**
+	 * sort the keys and replace repeated keys by counts
+	 */
+	private static void compressKeys(long[] keys, int nbKeys, long[][] outKeys, int[][] outCounts, int s) {
+		Arrays.sort(keys, 0, nbKeys);
+		int m = 0;
+		int[] counts = new int[nbKeys];
+		for (int i = 0; i < nbKeys; i++) {
+			if (m > 0 && keys[m-1] == keys[i]) {
+				counts[m-1] ++;
+			} else {
+				keys[m] = keys[i];
+				counts[m ++] = 1;
+			}
+		}
+		outKeys[s] = Arrays.copyOf(keys, m);
+		outCounts[s] = Arrays.copyOf(counts, m);
+	}
+
+	/**
+	 * Compute the colour contrast for all edges as the Euclidean distance
+	 * between the mean colours of the neighbouring segments
+	 *
+	 * @param means is int[nbNodes][nbChannels] mean colour of each segment
+	 */
+	public void computeColourContrast(final int[][] means) {
+		contrast = new float[neighbours.length];
+		float d, diff;
+		for (int i = 0; i < nbNodes; i++) {
+			for (int e = offsets[i]; e < offsets[i+1]; e++) {
+				diff = 0;
+				for (int c = 0; c < means[i].length; c++) {
+					d = means[neighbours[e]][c] - means[i][c];
+					diff += d*d;
+				}
+				contrast[e] = (float) Math.sqrt(diff);
+			}
+		}
+	}
+
+	/**
+	 * @return int number of nodes (segments)
+	 */
+	public int getNbNodes() {
+		return nbNodes;
+	}
+
+	/**
+	 * @return int number of undirected edges
+	 */
+	public int getNbEdges() {
+		return neighbours.length / 2;
+	}
+
+	/**
+	 * @param i is the node index
+	 * @return int number of neighbours of the node
+	 */
+	public int getDegree(int i) {
+		return offsets[i+1] - offsets[i];
+	}
+
+	/**
+	 * find the position of the edge (i, j) in the CSR arrays
+	 *
+	 * @param i is the first node
+	 * @param j is the second node
+	 * @return int index to neighbours, or negative if they are not neighbours
+	 */
+	public int getEdgeIndex(int i, int j) {
+		int e = Arrays.binarySearch(neighbours, offsets[i], offsets[i+1], j);
+		return (e >= 0) ? e : -1;
+	}
+
+	/**
+	 * @return int[nbNodes+1] begin of neighbours of each node
+	 */
+	public int[] getOffsets() {
+		return offsets;
+	}
+
+	/**
+	 * @return int[] neighbouring nodes
+	 */
+	public int[] getNeighbours() {
+		return neighbours;
+	}
+
+	/**
+	 * @return int[] length of the shared boundary for each edge
+	 */
+	public int[] getBoundaryLengths() {
+		return boundaryLength;
+	}
+
+	/**
+	 * @return float[] colour contrast for each edge, null if not computed
+	 */
+	public float[] getContrast() {
+		return contrast;
+	}
+
+	/**
+	 * gives the neighbours of each node as a separate array
+	 *
+	 * @return int[nbNodes][degree]
+	 */
+	public int[][] getNeighbourMatrix() {
+		int[][] res = new int[nbNodes][];
+		for (int i = 0; i < nbNodes; i++) {
+			res[i] = Arrays.copyOfRange(neighbours, offsets[i], offsets[i+1]);
+		}
+		return res;
+	}
+
+}
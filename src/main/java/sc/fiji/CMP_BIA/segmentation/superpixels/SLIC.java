@@ -3,6 +3,7 @@ package sc.fiji.CMP_BIA.segmentation.superpixels;
 import java.io.*;
 import java.util.*;
 
+import sc.fiji.CMP_BIA.segmentation.structures.LabelFile;
 import sc.fiji.CMP_BIA.tools.Logging;
 
 /**
@@ -511,7 +512,8 @@ class SLIC {
 	//===========================================================================
 	///	SaveSuperpixelLabels
 	///
-	///	Save labels in raster scan order.
+	///	Save labels in raster scan order into the binary label format
+	/// (see LabelFile), instead of one decimal label per line.
 	//===========================================================================
 	void SaveSuperpixelLabels(
 	    int[]					labels,
@@ -519,19 +521,11 @@ class SLIC {
 	    int					height,
 	    String				filename,
 	    String				path) {
-	    int sz = width*height;
-	    
 	    try {
-	        String fname = path + filename;
-	        OutputStream outfile = new FileOutputStream(fname);
-	        PrintStream myOutfile = new PrintStream(outfile);
-	        for( int i = 0; i < sz; i++ ) {
-	            myOutfile.println(labels[i]);
-	        }
-	        outfile.close();
-	    }  catch (Exception E)
+	        LabelFile.write(path + filename, labels, width, height);
+	    }  catch (IOException E)
 	    {
-	        Logging.logMsg("Error!");
+	        Logging.logMsg("Error! " + E.getMessage());
 	    }
 	}
  
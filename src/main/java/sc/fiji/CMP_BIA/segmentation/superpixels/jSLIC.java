@@ -55,17 +55,18 @@ public class jSLIC {
 	// clone of original image we work with
 	protected ImagePlus image;
 	protected int width, height;
-	// image converted into LAB colour space - dim int[Width][Height][channels]
-	protected int[][][] img2D = null;
+	// image converted into LAB colour space stored as planar flat arrays
+	// in row-major order - dim short[channels][Width*Height], index (y*Width + x)
+	protected short[][] img = null;
 	// initial regular grid size
 	protected int gridSize;
 	// superpixel elasticity in range (0,1)  
 	protected float regul;
-	// labeling per each image pixel - dim int[Width][Height]
-	protected int[][] labels2D = null;
+	// labeling per each image pixel in row-major order - dim int[Width*Height]
+	protected int[] labels = null;
 	// protected ShortProcessor labels; // it is 7x slower then int[][]
-	// minimal distance according the assigned label 
-	protected float[][] distances2D = null;
+	// minimal distance according the assigned label - dim float[Width*Height]
+	protected float[] distances = null;
 	// number of estimated segments (labels)
 	protected int nbLabels;
 	// vector of cluster's colours - dim int[nbClusters][channels]
@@ -80,8 +81,54 @@ public class jSLIC {
 	protected int nbChannels = 3;
 	// precomputed distances
 	protected float[] distGrid = null;
-
-	// TODO - avoiding computations with real numbers
+	// the same distances with mirrored rows, so they can be read forward
+	protected float[] distGridRow = null;
+	// the spatial factor of the precomputed distances
+	protected float distGridFactor = 0;
+	// clusters were given from outside (warm start), so no regular grid init
+	protected boolean warmStart = false;
+	// stop iterating if the cluster centres moved in average less then this
+	protected int convergenceShift = 0;
+	// number of performed iterations
+	protected int nbIterations = 0;
+	// index of the cluster for each final segment
+	protected int[] segmentClusters = null;
+	// all-integer distances, the spatial term is in fixed point
+	protected boolean integerDistances = false;
+	// fixed point precision of the integer distances (number of fraction bits)
+	protected static final int DIST_SHIFT = 8;
+	// minimal distances in integer mode (instead of the float distances)
+	protected int[] distancesInt = null;
+	// the mirrored distance grid in fixed point
+	protected int[] distGridInt = null;
+	// the spatial factor of the fixed point distances
+	protected float distGridIntFactor = 0;
+	// reassign only the image cells reached by moved clusters
+	protected boolean activeSet = false;
+	// always use the pixel-centric assignment (as for the pyramid levels)
+	protected boolean pixelCentric = false;
+	// cells of gridSize to be reassigned in the next iteration, null means all
+	protected boolean[] activeCells = null;
+	// assignment, update and residual error in a single parallel pass
+	protected boolean fusedPass = false;
+	// partial sums of the fused pass for each block, reused over iterations
+	protected ClusterSums[] fusedSums = null;
+	// colour term of each cluster normalised by its maximal colour distance (SLICO)
+	protected boolean adaptiveCompactness = false;
+	// the colour distance factor of each cluster in the adaptive mode
+	protected float[] clusterFactor = null;
+	// move the initial seeds to the lowest gradient in 3x3 neighbourhood
+	protected boolean perturbSeeds = false;
+	// gradient magnitude of the image in row-major order - dim float[Width*Height],
+	// computed once and kept for all following runs
+	protected float[] gradient = null;
+	// number of pyramid levels for the coarse-to-fine clustering, 0 means off
+	protected int pyramidLevels = 0;
+	// number of boundary refinement iterations in full resolution
+	protected int pyramidRefinement = 2;
+	// the squared colour distance for clusters without any observed colour
+	// variation (empty or uniform), it also scales the adaptive metric
+	protected static final float INIT_COLOUR_DIST = 650.f;
 	
 	/**
 	 * Constructor that sets the input image.
@@ -95,14 +142,33 @@ public class jSLIC {
 		initInternalVaribales();		
 	}
 	
+	/**
+	 * Constructor for already converted image, used by the derived methods 
+	 * processing only a part of an image (tiles) which is not an ImagePlus.
+	 * 
+	 * @param planes is the image in planar form short[channels][w*h]
+	 * @param w is the image width
+	 * @param h is the image height
+	 */
+	protected jSLIC (short[][] planes, int w, int h) {
+		this.image = null;
+		this.img = planes;
+		this.width = w;
+		this.height = h;
+		// init other local variables according the image size, without
+		// the image only labels are needed (e.g. for post-processing)
+		labels = new int[width*height];
+		distances = (planes != null) ? new float[width*height] : null;
+	}
+	
 	protected void initInternalVaribales() {
 		// image sizes
 		this.width = image.getWidth();
 		this.height = image.getHeight();
 		
 		// init other local variables according selected image 
-		labels2D = new int[width][height];
-		distances2D = new float[width][height];
+		labels = new int[width*height];
+		distances = new float[width*height];
 		
 		Logging.logMsg("SLIC: image convert.");
 		
@@ -112,7 +178,7 @@ public class jSLIC {
 		if (dims[3]==1 && dims[4]==1) {
 			convertImage();
 		} else {
-			IJ.error("ERROR: Not supported image dimensions!");
+			IJ.error("ERROR: Not supported image dimensions, use jSLIC3D for image stacks!");
 		}
 	}
 	
@@ -126,8 +192,8 @@ public class jSLIC {
 			// convert image from RGB to CIE LAB colour space]
 			case ImagePlus.COLOR_RGB:
 				// converting RGB image to LAB
-				//this.img2D = ConvertImage.rgb2cieLAB(image.getProcessor());
-				this.img2D = ConvertImage.rgb2cieLABfast(image.getProcessor());
+				//this.img = ConvertImage.rgb2cieLAB(image.getProcessor());
+				this.img = ConvertImage.rgb2cieLABplanar(image.getProcessor());
 				//this.nbChannels = 3;
 				break;
 			// convert the gray images
@@ -138,7 +204,7 @@ public class jSLIC {
 				//this.img = ConvertImage.gray2bright(image.getProcessor());
 				//this.nbChannels = 1;
 				// converting Gray image to the same format as LAB but only one channel
-				this.img2D = ConvertImage.gray2cieLAB(image.getProcessor());
+				this.img = ConvertImage.gray2cieLABplanar(image.getProcessor());
 				//this.nbChannels = 3;
 				break;
 			default:
@@ -168,31 +234,103 @@ public class jSLIC {
 	 * @param sizeTrashold says till which size superpixels will by terminated
 	 */
 	public void process (int grid, float reg, int maxIter, float sizeTrashold) {
+		long startTime, estimTime;
+		
+		initParameters(grid, reg);
+		Logging.logMsg("SLIC: running with gridSize: " + Integer.toString(gridSize) + " regularity " + Float.toString(regul));
+		
+		if (warmStart) {
+			Logging.logMsg("SLIC: warm start from " + Integer.toString(clusterPosition.length) + " given clusters.");
+			distGrid = null;
+			clustering(maxIter);
+		} else if (pyramidLevels > 0 && img != null) {
+			clusteringPyramid(maxIter);
+		} else {
+			clusteringRegular(maxIter);
+		}
+		// keep the cluster of each pixel to be able to identify segments
+		int[] clusterLabels = labels.clone();
+				
+		// At the end of the clustering procedure, some ?orphaned? pixels that 
+		// do not belong to the same connected component as their cluster center 
+		// may remain. To correct for this, such pixels are assigned the label 
+		// of the nearest cluster center using a connected components algorithm.
+		startTime = System.currentTimeMillis();
+		
+		// the original post-processing by authors which relabel by label on top
+		Logging.logMsg("SLIC: enforce label connectivity.");
+		enforceLabelConnectivity();
+		computeSegmentClusters(clusterLabels);
+		
+		estimTime = System.currentTimeMillis() - startTime;
+		Logging.logMsg(" -> took " + Float.toString((float)estimTime/1000) + "s");
+		
+		Logging.logMsg("SLIC: DONE.");
+	}
+	
+	
+	/**
+	 * Set the segmentation parameters and derived constants
+	 * 
+	 * @param grid integer number defining the initial regular grid size
+	 * @param reg float defining the superpixel elasticity in range (0,1)  
+	 */
+	protected void initParameters (int grid, float reg) {
 		this.gridSize = (grid < 5) ? 5 : grid;
 		this.regul = (reg < 0) ? 0 : reg;
 		// according the VLFeat library the regul is in range {0,1}
 		this.factor = (regul*regul) * (float)(gridSize);
+	}
+	
+	
+	/**
+	 * Iterate the assignment and update steps starting from actual clusters 
+	 * till the residual error stops decreasing or the maximal nb iterations
+	 * 
+	 * @param maxIter number of maximal iterations   
+	 */
+	protected void clustering (int maxIter) {
 		float err, lastErr = Float.MAX_VALUE;
 		long startTime, estimTime;
 		
-		Logging.logMsg("SLIC: running with gridSize: " + Integer.toString(gridSize) + " regularity " + Float.toString(regul));
-		
-		initClusters();
-		
 		float initErr = computeResidualError();
+		int[][] lastPosition, lastColour;
+		nbIterations = 0;
+		// the first assignment has to go over the whole image
+		activeCells = null;
 				
 		for (int i=0; i<maxIter; i++) {
 
 			startTime = System.currentTimeMillis();
-			assignment();
+			if (fusedPass) {
+				lastPosition = copyClusters(clusterPosition);
+				lastColour = copyClusters(clusterColour);
+				err = assignmentUpdateFused();
+				nbIterations ++;
+				Logging.logMsg("SLIC:  iter " + Integer.toString(i+1) + ", inter. distance is " + Float.toString(err));
+			} else {
+				assignment();
+				nbIterations ++;
 
-			err = computeResidualError();
-			Logging.logMsg("SLIC:  iter " + Integer.toString(i+1) + ", inter. distance is " + Float.toString(err));
-			
-			update();
+				err = computeResidualError();
+				Logging.logMsg("SLIC:  iter " + Integer.toString(i+1) + ", inter. distance is " + Float.toString(err));
+				
+				lastPosition = copyClusters(clusterPosition);
+				lastColour = copyClusters(clusterColour);
+				update();
+			}
+			if (activeSet) {
+				markActiveCells(lastPosition, lastColour);
+			}
 
-			// STOP criterion, if consecutive errors are smaller then given treshold
-			if ( (lastErr-err) < (initErr*errTreshold)) {
+			// STOP criterion, if the clusters do not move the next iteration
+			// would give the same assignment (especially for warm start)
+			if (meanClusterShift(lastPosition, lastColour) <= convergenceShift) {
+				Logging.logMsg("SLIC: terminate with converged cluster centres");
+				i = maxIter;
+			// STOP criterion, if consecutive errors are smaller then given treshold,
+			// not in the adaptive mode where the metric changes in each iteration
+			} else if ( !adaptiveCompactness && (lastErr-err) < (initErr*errTreshold)) {
 				Logging.logMsg("SLIC: terminate with diff error " + (lastErr-err));
 				i = maxIter;
 			} else {
@@ -203,21 +341,211 @@ public class jSLIC {
 			Logging.logMsg(" -> took " + Float.toString((float)estimTime/1000) + "s");
 						
 		}
-				
-		// At the end of the clustering procedure, some ?orphaned? pixels that 
-		// do not belong to the same connected component as their cluster center 
-		// may remain. To correct for this, such pixels are assigned the label 
-		// of the nearest cluster center using a connected components algorithm.
-		startTime = System.currentTimeMillis();
-		
-		// the original post-processing by authors which relabel by label on top
-		Logging.logMsg("SLIC: enforce label connectivity.");
-		enforceLabelConnectivity();
-		
-		estimTime = System.currentTimeMillis() - startTime;
-		Logging.logMsg(" -> took " + Float.toString((float)estimTime/1000) + "s");
-		
-		Logging.logMsg("SLIC: DONE.");
+		activeCells = null;
+		fusedSums = null;
+	}
+	
+	
+	/**
+	 * Mark the image cells which have to be reassigned because they are 
+	 * reached by a cluster which changed, before or after the update
+	 * 
+	 * @param lastPosition is the cluster positions before the update
+	 * @param lastColour is the cluster colours before the update
+	 */
+	protected void markActiveCells (final int[][] lastPosition, final int[][] lastColour) {
+		final int nbX = (width-1)/gridSize + 1;
+		final int nbY = (height-1)/gridSize + 1;
+		activeCells = new boolean[nbX*nbY];
+		for (int k=0; k<clusterPosition.length; k++) {
+			if (!clusterChanged(k, lastPosition, lastColour)) {
+				continue;
+			}
+			markWindowCells(lastPosition[k], nbX);
+			markWindowCells(clusterPosition[k], nbX);
+		}
+		int nb = 0;
+		for (boolean a : activeCells) {
+			nb += a ? 1 : 0;
+		}
+		Logging.logMsg(" -> active cells " + Integer.toString(nb) + " / " + Integer.toString(activeCells.length));
+	}
+	
+	/**
+	 * whether the cluster moved or changed its colour in the last update
+	 * 
+	 * @param k is the cluster index
+	 * @param lastPosition is the cluster positions before the update
+	 * @param lastColour is the cluster colours before the update
+	 * @return boolean
+	 */
+	protected boolean clusterChanged (final int k, final int[][] lastPosition, final int[][] lastColour) {
+		return !Arrays.equals(lastPosition[k], clusterPosition[k]) 
+				|| !Arrays.equals(lastColour[k], clusterColour[k]);
+	}
+	
+	/**
+	 * mark all cells overlapping the cluster window [x-g, x+g) x [y-g, y+g)
+	 */
+	private void markWindowCells (final int[] pos, final int nbX) {
+		int xB = Math.max(0, pos[0]-gridSize);
+		int xE = Math.min(pos[0]+gridSize, width);
+		int yB = Math.max(0, pos[1]-gridSize);
+		int yE = Math.min(pos[1]+gridSize, height);
+		if (xE <= xB || yE <= yB) {		return;		}
+		for (int cy=yB/gridSize; cy<=(yE-1)/gridSize; cy++) {
+			for (int cx=xB/gridSize; cx<=(xE-1)/gridSize; cx++) {
+				activeCells[cy*nbX + cx] = true;
+			}
+		}
+	}
+	
+	
+	/**
+	 * deep copy of cluster array
+	 * 
+	 * @param clusters is int[nbClusters][dims]
+	 * @return int[nbClusters][dims]
+	 */
+	protected static int[][] copyClusters (final int[][] clusters) {
+		int[][] res = new int[clusters.length][];
+		for (int k=0; k<clusters.length; k++) {
+			res[k] = clusters[k].clone();
+		}
+		return res;
+	}
+	
+	
+	/**
+	 * the mean change of cluster centres, where the change of a centre is 
+	 * its maximal absolute difference in position or colour; with many 
+	 * clusters there is always some moving so the maximum would not stop 
+	 * 
+	 * @param lastPosition is previous cluster positions
+	 * @param lastColour is previous cluster colours
+	 * @return float mean change, zero only if no centre moved
+	 */
+	protected float meanClusterShift (final int[][] lastPosition, final int[][] lastColour) {
+		long sum = 0;
+		for (int k=0; k<clusterPosition.length; k++) {
+			int shift = 0;
+			for (int i=0; i<clusterPosition[k].length; i++) {
+				shift = Math.max(shift, Math.abs(clusterPosition[k][i] - lastPosition[k][i]));
+			}
+			for (int i=0; i<clusterColour[k].length; i++) {
+				shift = Math.max(shift, Math.abs(clusterColour[k][i] - lastColour[k][i]));
+			}
+			sum += shift;
+		}
+		return (clusterPosition.length > 0) ? sum / (float)clusterPosition.length : 0;
+	}
+	
+	
+	/**
+	 * Set the initial clusters (e.g. converged clusters from previous frame 
+	 * of time-lapse) instead of the regular grid, the cluster indexes are 
+	 * preserved so they can be used as segment identifiers
+	 * 
+	 * @param positions is int[nbClusters][2]
+	 * @param colours is int[nbClusters][channels]
+	 */
+	public void setInitialClusters (final int[][] positions, final int[][] colours) {
+		clusterPosition = copyClusters(positions);
+		clusterColour = copyClusters(colours);
+		warmStart = true;
+	}
+	
+	
+	/**
+	 * Set the initial clusters together with initial labelling by cluster 
+	 * indexes, the labels are kept for pixels out of reach of all clusters
+	 * 
+	 * @param positions is int[nbClusters][2]
+	 * @param colours is int[nbClusters][channels]
+	 * @param clusterLabels is int[Width*Height] in row-major order
+	 */
+	public void setInitialClusters (final int[][] positions, final int[][] colours, final int[] clusterLabels) {
+		setInitialClusters(positions, colours);
+		System.arraycopy(clusterLabels, 0, labels, 0, labels.length);
+	}
+	
+	
+	/**
+	 * Set the tolerance in mean movement of cluster centres (in pixels and 
+	 * colour units) when the clustering is considered as converged, zero 
+	 * means that the clustering stops only if the centres are not changing
+	 * 
+	 * @param shift is the maximal mean change of the cluster centres
+	 */
+	public void setConvergenceShift (int shift) {
+		this.convergenceShift = shift;
+	}
+	
+	
+	/**
+	 * Reassign in each iteration only the image cells (of size gridSize)
+	 * which can be reached by a cluster that moved or changed colour in the 
+	 * last update, the other pixels keep their labels and distances. 
+	 * The result is the same as for the full assignment.
+	 * 
+	 * @param enable switch the active-set mode on/off
+	 */
+	public void setActiveSet (boolean enable) {
+		this.activeSet = enable;
+	}
+	
+	
+	/**
+	 * Compute the assignment, the cluster sums for the update and the 
+	 * residual error in a single parallel sweep over the image, each task 
+	 * accumulates its own partial sums which are reduced at the end
+	 * 
+	 * @param enable switch the fused mode on/off
+	 */
+	public void setFusedPass (boolean enable) {
+		this.fusedPass = enable;
+	}
+	
+	
+	/**
+	 * Normalise the colour term of each cluster by the maximal colour 
+	 * distance observed in the cluster in the previous iteration, in the 
+	 * style of SLIC-zero (SLICO), so the compactness adapts to textured 
+	 * and flat regions. The spatial term is normalised by the grid size, 
+	 * so the regularisation has no effect. It always uses the float 
+	 * distances and the pixel-centric assignment.
+	 * 
+	 * @param enable switch the adaptive mode on/off
+	 */
+	public void setAdaptiveCompactness (boolean enable) {
+		this.adaptiveCompactness = enable;
+		if (enable && integerDistances) {
+			setIntegerDistances(false);
+		}
+	}
+	
+	
+	/**
+	 * Compute the distances only with integers, the colour term is exact
+	 * and the spatial term is rounded to 1/256, so the assignment may 
+	 * differ from the float version only for nearly equal distances.
+	 * The float distance buffer is replaced by an integer one.
+	 * 
+	 * @param enable switch the integer mode on/off
+	 */
+	public void setIntegerDistances (boolean enable) {
+		if (enable && adaptiveCompactness) {
+			Logging.logMsg("SLIC: integer distances are not supported in the adaptive mode.");
+			return;
+		}
+		this.integerDistances = enable;
+		if (enable) {
+			distancesInt = new int[width*height];
+			distances = null;
+		} else {
+			distancesInt = null;
+			distances = new float[width*height];
+		}
 	}
 	
 	
@@ -229,15 +557,15 @@ public class jSLIC {
 		// compute needed number of clusters
 		int nbClusters = (int) (Math.ceil((float)width/(float)gridSize) * Math.ceil((float)height/(float)gridSize));
 		// init arrays
-		clusterColour = new int[nbClusters][img2D[0][0].length];
+		clusterColour = new int[nbClusters][img.length];
 		clusterPosition = new int[nbClusters][2];
 		
 		// do initial assignment - assign labels by initial regular grid
 		int maxColumn = (int) Math.ceil(width / (float)gridSize);
-		for (int x=0; x<width; x++ ) {
-			for (int y=0; y<height; y++ ) {
+		for (int y=0; y<height; y++ ) {
+			for (int x=0; x<width; x++ ) {
 
-				labels2D[x][y] = (int) ((y/gridSize)*maxColumn + (x/gridSize));
+				labels[y*width + x] = (int) ((y/gridSize)*maxColumn + (x/gridSize));
 				
 			}
 		}
@@ -245,20 +573,410 @@ public class jSLIC {
 		update();
 		distGrid = null;
 		
-		// OR - The centers are moved to seed locations corresponding to the 
-		// lowest gradient position in a 3 ?????? 3 neighborhood. This is done to 
-		// avoid centering a superpixel on an edge, and to reduce the chance 
-		// of seeding a superpixel with a noisy pixel.
+		// the centres may be moved by the gradient, see perturbClusterSeeds()
 				
 	}
 
 	
+	/**
+	 * The centres are moved to seed locations corresponding to the lowest 
+	 * gradient position in a 3x3 neighborhood, as the PerturbSeeds of the 
+	 * original code. This is done to avoid centering a superpixel on an 
+	 * edge, and to reduce the chance of seeding a superpixel with a noisy 
+	 * pixel. The clusters are independent so they are moved in parallel.
+	 */
+	protected void perturbClusterSeeds () {
+		final float[] grad = getGradientMap();
+		final int[] dx8 = {-1, -1, 0, 1, 1, 1, 0, -1};
+		final int[] dy8 = {0, -1, -1, -1, 0, 1, 1, 1};
+		Logging.logMsg(" -> perturbing seeds by the gradient...");
+		Threading.parallelFor(0, clusterPosition.length, new Threading.RangeTask() {
+			@Override
+			public void run(int begin, int end) {
+				int ox, oy, oIdx, nx, ny, best;
+				for (int k = begin; k < end; k++) {
+					ox = clusterPosition[k][0];
+					oy = clusterPosition[k][1];
+					if (ox < 0 || ox >= width || oy < 0 || oy >= height) {		continue;		}
+					oIdx = oy*width + ox;
+					best = oIdx;
+					for (int i = 0; i < dx8.length; i++) {
+						nx = ox + dx8[i];
+						ny = oy + dy8[i];
+						if (nx >= 0 && nx < width && ny >= 0 && ny < height 
+								&& grad[ny*width + nx] < grad[best]) {
+							best = ny*width + nx;
+						}
+					}
+					if (best != oIdx) {
+						clusterPosition[k][0] = best % width;
+						clusterPosition[k][1] = best / width;
+						setClusterColourAt(k, best);
+					}
+				}
+			}
+		});
+	}
+	
+	
+	/**
+	 * set the colour of the cluster to the colour of given pixel
+	 * 
+	 * @param k is the cluster index
+	 * @param idx is the pixel index in row-major order
+	 */
+	protected void setClusterColourAt (int k, int idx) {
+		for (int c = 0; c < img.length; c++) {
+			clusterColour[k][c] = img[c][idx];
+		}
+	}
+	
+	
+	/**
+	 * get the gradient map, it is computed on the first call and the same 
+	 * buffer is returned by all following calls
+	 * 
+	 * @return float[Width*Height] gradient magnitude in row-major order
+	 */
+	public float[] getGradientMap () {
+		if (gradient == null || gradient.length != width*height) {
+			gradient = new float[width*height];
+			// the border has no gradient, so the seeds never move there
+			Arrays.fill(gradient, Float.MAX_VALUE);
+			computeGradientMap(gradient);
+		}
+		return gradient;
+	}
+	
+	
+	/**
+	 * Compute the gradient magnitude of inner image pixels in parallel 
+	 * over rows, the same measure as DetectLabEdges of the original code
+	 * (sum of squared central differences over all channels, squared and 
+	 * added for both directions)
+	 * 
+	 * @param grad is the output float[Width*Height]
+	 */
+	protected void computeGradientMap (final float[] grad) {
+		final short[][] img = this.img;
+		Threading.parallelFor(1, Math.max(1, height-1), new Threading.RangeTask() {
+			@Override
+			public void run(int begin, int end) {
+				int i, d;
+				float dx, dy;
+				for (int y = begin; y < end; y++) {
+					for (int x = 1; x < width-1; x++) {
+						i = y*width + x;
+						dx = 0;
+						dy = 0;
+						for (short[] ch : img) {
+							d = ch[i-1] - ch[i+1];
+							dx += d*d;
+							d = ch[i-width] - ch[i+width];
+							dy += d*d;
+						}
+						grad[i] = (dx*dx) + (dy*dy);
+					}
+				}
+			}
+		});
+	}
+	
+	
+	/**
+	 * Run the clustering on the image downsampled by 2^levels and finish 
+	 * it by the given number of iterations in full resolution, where only 
+	 * the pixels near the superpixel boundaries are reassigned. It is not 
+	 * used for warm start and images without the planar short form.
+	 * 
+	 * @param levels is the number of pyramid levels, 0 switch it off
+	 * @param refinement is the number of full resolution iterations
+	 */
+	public void setPyramid (int levels, int refinement) {
+		this.pyramidLevels = Math.max(0, levels);
+		this.pyramidRefinement = Math.max(0, refinement);
+	}
+	
+	
+	/**
+	 * The clustering from the clusters initialised on the regular grid, 
+	 * optionally with the perturbed seeds
+	 * 
+	 * @param maxIter number of maximal iterations
+	 */
+	protected void clusteringRegular (int maxIter) {
+		initClusters();
+		if (perturbSeeds) {
+			perturbClusterSeeds();
+		}
+		clustering(maxIter);
+	}
+	
+	
+	/**
+	 * The coarse-to-fine clustering, the downsampled image is clustered by
+	 * the same metric (the spatial factor is scaled by the square of the 
+	 * downsampling), then the clusters and labels are upsampled and refined
+	 * 
+	 * @param maxIter number of maximal iterations in the coarse level
+	 */
+	protected void clusteringPyramid (int maxIter) {
+		// the coarse grid can not be smaller then the minimal grid
+		int f = 1 << pyramidLevels;
+		while (f > 1 && gridSize / f < 5) {
+			f /= 2;
+		}
+		if (f == 1) {
+			Logging.logMsg("SLIC: the grid is too small for the pyramid.");
+			clusteringRegular(maxIter);
+			return;
+		}
+		final int cw = (width + f-1) / f, ch = (height + f-1) / f;
+		Logging.logMsg("SLIC: coarse level downsampled " + Integer.toString(f) + "x to " + Integer.toString(cw) + "x" + Integer.toString(ch));
+
+		jSLIC coarse = new jSLIC(downsample(img, width, height, f, cw, ch), cw, ch);
+		coarse.initParameters(gridSize / f, regul);
+		coarse.factor = factor * f * f;
+		// the parallel pixel-centric assignment, which is the same as the full one
+		coarse.pixelCentric = true;
+		coarse.activeSet = activeSet;
+		coarse.fusedPass = fusedPass;
+		coarse.adaptiveCompactness = adaptiveCompactness;
+		coarse.convergenceShift = convergenceShift;
+		coarse.initClusters();
+		if (perturbSeeds) {
+			coarse.perturbClusterSeeds();
+		}
+		coarse.clustering(maxIter);
+		nbIterations = coarse.nbIterations;
+
+		// upsample the clusters and labels
+		clusterColour = copyClusters(coarse.clusterColour);
+		clusterPosition = new int[coarse.clusterPosition.length][2];
+		for (int k=0; k<clusterPosition.length; k++) {
+			clusterPosition[k][0] = Math.min(coarse.clusterPosition[k][0]*f + f/2, width-1);
+			clusterPosition[k][1] = Math.min(coarse.clusterPosition[k][1]*f + f/2, height-1);
+		}
+		final int[] coarseLabels = coarse.labels;
+		final int fc = f;
+		Threading.parallelFor(0, height, new Threading.RangeTask() {
+			@Override
+			public void run(int begin, int end) {
+				for (int y=begin; y<end; y++) {
+					for (int x=0; x<width; x++) {
+						labels[y*width + x] = coarseLabels[(y/fc)*cw + x/fc];
+					}
+				}
+			}
+		});
+		update();
+
+		for (int i=0; i<pyramidRefinement; i++) {
+			long startTime = System.currentTimeMillis();
+			refineBoundaries(f);
+			update();
+			nbIterations ++;
+			Logging.logMsg(" -> refinement took " + Float.toString((float)(System.currentTimeMillis() - startTime)/1000) + "s");
+		}
+		distGrid = null;
+	}
+	
+	
+	/**
+	 * downsample the planar image by averaging blocks of f x f pixels
+	 * 
+	 * @param planes is short[channels][w*h]
+	 * @param w is the image width
+	 * @param h is the image height
+	 * @param f is the downsampling factor
+	 * @param cw is the downsampled width
+	 * @param ch is the downsampled height
+	 * @return short[channels][cw*ch]
+	 */
+	protected static short[][] downsample (final short[][] planes, final int w, final int h, 
+			final int f, final int cw, final int ch) {
+		final short[][] res = new short[planes.length][cw*ch];
+		Threading.parallelFor(0, ch, new Threading.RangeTask() {
+			@Override
+			public void run(int begin, int end) {
+				int sum, nb;
+				for (int cy=begin; cy<end; cy++) {
+					for (int cx=0; cx<cw; cx++) {
+						for (int c=0; c<planes.length; c++) {
+							sum = 0;
+							nb = 0;
+							for (int y=cy*f; y<Math.min(cy*f+f, h); y++) {
+								for (int x=cx*f; x<Math.min(cx*f+f, w); x++) {
+									sum += planes[c][y*w + x];
+									nb ++;
+								}
+							}
+							res[c][cy*cw + cx] = (short) Math.round(sum / (float) nb);
+						}
+					}
+				}
+			}
+		});
+		return res;
+	}
+	
+	
+	/**
+	 * One assignment in full resolution limited to the pixels closer then 
+	 * r to a boundary of the actual labelling, each of them chooses among 
+	 * the clusters of labels sampled in its neighbourhood by step r (the 
+	 * segments are larger then r so all neighbouring are found), the other 
+	 * pixels keep their labels
+	 * 
+	 * @param r is the width of the boundary band
+	 */
+	protected void refineBoundaries (final int r) {
+		if (adaptiveCompactness) {
+			computeClusterFactors();
+		}
+		final int[] prev = labels.clone();
+		final boolean[] band = boundaryBand(prev, r);
+		final int g = gridSize;
+		final float spatial = spatialFactor();
+		Threading.parallelFor(0, height, new Threading.RangeTask() {
+			@Override
+			public void run(int begin, int end) {
+				int[] cand = new int[9];
+				int nbCand, i, k, l, best, dx, dy, d;
+				float dist, bestDist;
+				for (int y=begin; y<end; y++) {
+					for (int x=0; x<width; x++) {
+						i = y*width + x;
+						if (!band[i]) {		continue;		}
+						// distinct labels in the neighbourhood
+						nbCand = 0;
+						for (int sy=Math.max(0, y-r); sy<=Math.min(height-1, y+r); sy+=r) {
+							for (int sx=Math.max(0, x-r); sx<=Math.min(width-1, x+r); sx+=r) {
+								l = prev[sy*width + sx];
+								boolean known = false;
+								for (int c=0; c<nbCand; c++) {
+									known |= (cand[c] == l);
+								}
+								if (!known) {
+									cand[nbCand ++] = l;
+								}
+							}
+						}
+						best = prev[i];
+						bestDist = Float.MAX_VALUE;
+						for (int c=0; c<nbCand; c++) {
+							k = cand[c];
+							dx = x - clusterPosition[k][0];
+							dy = y - clusterPosition[k][1];
+							// only clusters whose window reaches the pixel
+							if (dx < -g || dx >= g || dy < -g || dy >= g) {		continue;		}
+							dist = 0;
+							for (int ch=0; ch<img.length; ch++) {
+								d = img[ch][i] - clusterColour[k][ch];
+								dist += d*d;
+							}
+							if (adaptiveCompactness) {
+								dist *= clusterFactor[k];
+							}
+							dist += ((dx*dx) + (dy*dy)) * spatial;
+							if (dist < bestDist || (dist == bestDist && k < best)) {
+								bestDist = dist;
+								best = k;
+							}
+						}
+						labels[i] = best;
+					}
+				}
+			}
+		});
+	}
+	
+	
+	/**
+	 * mark pixels closer then r (in each direction) to a label boundary, 
+	 * the boundary pixels are dilated separately by rows and columns
+	 * 
+	 * @param lab is the labelling in row-major order
+	 * @param r is the band width
+	 * @return boolean[Width*Height]
+	 */
+	protected boolean[] boundaryBand (final int[] lab, final int r) {
+		final boolean[] rows = new boolean[width*height];
+		final boolean[] band = new boolean[width*height];
+		// boundary pixels dilated along the rows
+		Threading.parallelFor(0, height, new Threading.RangeTask() {
+			@Override
+			public void run(int begin, int end) {
+				int i, last;
+				for (int y=begin; y<end; y++) {
+					// position of the last boundary pixel in the row
+					last = Integer.MIN_VALUE / 2;
+					for (int x=0; x<width+r; x++) {
+						if (x < width) {
+							i = y*width + x;
+							if ((x+1 < width && lab[i] != lab[i+1]) || (x > 0 && lab[i] != lab[i-1])
+									|| (y+1 < height && lab[i] != lab[i+width]) || (y > 0 && lab[i] != lab[i-width])) {
+								last = x;
+							}
+						}
+						// the pixel x-r is marked if there was a boundary in [x-2r, x]
+						if (x-r >= 0) {
+							rows[y*width + x-r] = (x - last <= 2*r);
+						}
+					}
+				}
+			}
+		});
+		// and along the columns
+		Threading.parallelFor(0, width, new Threading.RangeTask() {
+			@Override
+			public void run(int begin, int end) {
+				int last;
+				for (int x=begin; x<end; x++) {
+					last = Integer.MIN_VALUE / 2;
+					for (int y=0; y<height+r; y++) {
+						if (y < height && rows[y*width + x]) {
+							last = y;
+						}
+						if (y-r >= 0) {
+							band[(y-r)*width + x] = (y - last <= 2*r);
+						}
+					}
+				}
+			}
+		});
+		int nb = 0;
+		for (boolean b : band) {
+			nb += b ? 1 : 0;
+		}
+		Logging.logMsg(" -> refining " + Integer.toString(nb) + " / " + Integer.toString(band.length) + " boundary pixels");
+		return band;
+	}
+	
+	
+	/**
+	 * Move the initial cluster centres to the lowest gradient position in 
+	 * 3x3 neighbourhood before the clustering
+	 * 
+	 * @param enable switch the seed perturbation on/off
+	 */
+	public void setSeedPerturbation (boolean enable) {
+		this.perturbSeeds = enable;
+	}
+	
+	
 	/**
 	 * Assign cluster index to each pixel in image according the given metric
 	 */
 	protected void assignment () {
 		//assignmentSimple();
-		assignmentFast();
+		if (pixelCentric || activeSet || adaptiveCompactness) {
+			assignmentPixelCentric();
+		} else if (integerDistances) {
+			assignmentRows();
+		} else {
+			assignmentFast();
+		}
 	} 
 	
 	/**
@@ -273,16 +991,15 @@ public class jSLIC {
 	 * Assign cluster index to each pixel in image according the given metric
 	 */
 	protected void assignmentSimple () {
-		int xB, xE, yB, yE;
+		int xB, xE, yB, yE, idx;
 		float dist, dL, dA, dB;
 		// temporary variables - differences
 		double distLAB, distPos, dx, dy;
 		// double dLAB
+		final short[] imgL = img[0], imgA = img[1], imgB = img[2];
 
 		// put minimal distances to maximum
-		for(float[] subarray : distances2D) {
-			Arrays.fill(subarray, Float.MAX_VALUE);
-		}
+		Arrays.fill(distances, Float.MAX_VALUE);
 		
 		// cycle over all clusters and compute distances to all pixels in surrounding
 		for (int k=0; k<clusterPosition.length; k++) {
@@ -295,8 +1012,9 @@ public class jSLIC {
 			yE = Math.min((int)(clusterPosition[k][1]+gridSize), height);
 			
 			// cycle over all pixels in 2*gridSize region
-			for (int x=xB; x<xE; x++ ) {
-				for (int y=yB; y<yE; y++ ) {
+			for (int y=yB; y<yE; y++ ) {
+				idx = y*width + xB;
+				for (int x=xB; x<xE; x++, idx++ ) {
 
 					// compute distance between given point and cluster center
 					dx = x-clusterPosition[k][0];
@@ -306,13 +1024,13 @@ public class jSLIC {
 					// compute colour distance over all colour channels
 				//	distLAB = 0;
 				//	for (int i=0; i<nbChannels; i++) {
-				//		dLAB = img2D[x][y][i]-clusterColour[k][i];
+				//		dLAB = img[i][idx]-clusterColour[k][i];
 				//		distLAB += dLAB*dLAB;
 				//	}
 					// faster then the for cycle...
-					dL = img2D[x][y][0]-clusterColour[k][0];
-					dA = img2D[x][y][1]-clusterColour[k][1];
-					dB = img2D[x][y][2]-clusterColour[k][2];
+					dL = imgL[idx]-clusterColour[k][0];
+					dA = imgA[idx]-clusterColour[k][1];
+					dB = imgB[idx]-clusterColour[k][2];
 					distLAB = (dL * dL) + (dA * dA) + (dB * dB);
 										
 				//	distLAB = (img[x][y][0]-clusterColour[k][0]) * (img[x][y][0]-clusterColour[k][0]);
@@ -332,9 +1050,9 @@ public class jSLIC {
 					// dist = (float) (Math.sqrt(distLAB) + Math.sqrt(distPos) * (regul/(double)gridSize));
 										
 					// if actual distance is smaller then the previous give new label 
-					if (dist < distances2D[x][y]) {
-						labels2D[x][y] = k;
-						distances2D[x][y] = dist;
+					if (dist < distances[idx]) {
+						labels[idx] = k;
+						distances[idx] = dist;
 					}					
 				}
 			}			
@@ -345,10 +1063,12 @@ public class jSLIC {
 	protected void computeDistGrid() {
 		// if grid is not init
 		int sz = 2*gridSize +1;
-		if (distGrid == null || distGrid.length != sz) {
+		// if it is not for actual grid size or spatial factor
+		final float spatial = spatialFactor();
+		if (distGrid == null || distGrid.length != sz*sz || distGridFactor != spatial) {
 			Logging.logMsg(" -> pre-computing the distance grid matrix...");
-			// if it is not for actual grid size
 			distGrid = new float[sz*sz];
+			distGridFactor = spatial;
 			float dx, dy;
 			// fill the array
 			for (int x=0; x<sz; x++ ) {
@@ -357,28 +1077,42 @@ public class jSLIC {
 					dy = y-gridSize+1;
 					// compute position distance
 					//distGrid[x][y] = ((dx*dx) + (dy*dy))  * factor;
-					distGrid[x*sz +y] = ((dx*dx) + (dy*dy))  * factor;
+					distGrid[x*sz +y] = ((dx*dx) + (dy*dy))  * spatial;
+				}
+			}
+			// mirror each row so the row kernel walks both arrays forward
+			distGridRow = new float[sz*sz];
+			for (int y=0; y<sz; y++ ) {
+				for (int x=0; x<sz; x++ ) {
+					distGridRow[y*sz + x] = distGrid[y*sz + sz-1-x];
 				}
 			}
 		}
+		if (integerDistances && (distGridInt == null || distGridInt.length != sz*sz || distGridIntFactor != spatial)) {
+			// limited so the sum with colour distance can not overflow
+			distGridInt = new int[distGridRow.length];
+			distGridIntFactor = spatial;
+			for (int i=0; i<distGridRow.length; i++ ) {
+				distGridInt[i] = (int) Math.min(Math.round(distGridRow[i] * (1 << DIST_SHIFT)), Integer.MAX_VALUE / 2);
+			}
+		}
 	}
 
 	/**
 	 * Assign cluster index to each pixel in image according the given metric
 	 */
 	protected void assignmentFast () {
-		int xB, xE, yB, yE, i, j;
+		int xB, xE, yB, yE, i, j, idx;
 		int sz = 2*gridSize +1;
 		float dist, dL, dA, dB;
 		// temporary variables - differences
 		float distLAB;
+		final short[] imgL = img[0], imgA = img[1], imgB = img[2];
 		computeDistGrid();
 		Logging.logMsg(" -> fast assignement running...");
 
 		// put minimal distances to maximum
-		for(float[] subarray : distances2D) {
-			Arrays.fill(subarray, Float.MAX_VALUE);
-		}
+		Arrays.fill(distances, Float.MAX_VALUE);
 		
 		// cycle over all clusters and compute distances to all pixels in surrounding
 		for (int k=0; k<clusterPosition.length; k++) {
@@ -390,36 +1124,34 @@ public class jSLIC {
 			yB = Math.max(0, (int)(clusterPosition[k][1]-gridSize));
 			yE = Math.min((int)(clusterPosition[k][1]+gridSize), height);
 
-			i=clusterPosition[k][0]-xB+gridSize;
+			j=clusterPosition[k][1]-yB+gridSize;
 								
-			// cycle over all pixels in 2*gridSize region
-			for (int x=xB; x<xE; x++, i-- ) {
+			// cycle over all pixels in 2*gridSize region, row by row
+			for (int y=yB; y<yE; y++, j-- ) {
 
-				j=clusterPosition[k][1]-yB+gridSize;
-				
-				//i = (clusterPosition[k][0]-x+gridSize) * gridSize;
-				//i += clusterPosition[k][1]-yB+gridSize;
+				i=clusterPosition[k][0]-xB+gridSize;
+				idx = y*width + xB;
 				
-				for (int y=yB; y<yE; y++, j-- ) {
+				for (int x=xB; x<xE; x++, i--, idx++ ) {
 
 					// faster then the for cycle...
-					dL = img2D[x][y][0]-clusterColour[k][0];
-					dA = img2D[x][y][1]-clusterColour[k][1];
-					dB = img2D[x][y][2]-clusterColour[k][2];
+					dL = imgL[idx]-clusterColour[k][0];
+					dA = imgA[idx]-clusterColour[k][1];
+					dB = imgB[idx]-clusterColour[k][2];
 					distLAB = (dL * dL) + (dA * dA) + (dB * dB);
 					
 					// by SLIC article
 					// dist = (float) Math.sqrt(distLAB + (distPos * Math.pow(regul/(float)gridSize, 2)));
 					// dist = (float) Math.sqrt(distLAB + (distPos * coef2));
-					//dist = distLAB + distGrid[i][j];
-					dist = distLAB + distGrid[i*sz +j];
+					// the grid is symmetric so distGrid[i*sz +j] == distGrid[j*sz +i]
+					dist = distLAB + distGrid[j*sz +i];
 					// by gSLIC article
 					// dist = (float) (Math.sqrt(distLAB) + Math.sqrt(distPos) * (regul/(double)gridSize));
 										
 					// if actual distance is smaller then the previous give new label 
-					if (dist < distances2D[x][y]) {
-						labels2D[x][y] = k;
-						distances2D[x][y] = dist;
+					if (dist < distances[idx]) {
+						labels[idx] = k;
+						distances[idx] = dist;
 					}	
 				}
 			}			
@@ -428,6 +1160,483 @@ public class jSLIC {
 	}
 	
 
+	/**
+	 * Assign cluster index to each pixel in image according the given metric,
+	 * the same as assignmentFast() but the cluster window is processed row 
+	 * by row with the vectorisable kernel assignRow()
+	 */
+	protected void assignmentRows () {
+		int xB, xE, yB, yE, i, j;
+		int sz = 2*gridSize +1;
+		final short[] imgL = img[0], imgA = img[1], imgB = img[2];
+		final float[] row = new float[sz];
+		final int[] rowInt = new int[sz];
+		computeDistGrid();
+		Logging.logMsg(" -> row-wise assignement running...");
+
+		// put minimal distances to maximum
+		if (integerDistances) {
+			Arrays.fill(distancesInt, Integer.MAX_VALUE);
+		} else {
+			Arrays.fill(distances, Float.MAX_VALUE);
+		}
+
+		// cycle over all clusters and compute distances to all pixels in surrounding
+		for (int k=0; k<clusterPosition.length; k++) {
+
+			// compute region of interest for given cluster of size 2*gridSize 
+			// which is inside the image
+			xB = Math.max(0, clusterPosition[k][0]-gridSize);
+			xE = Math.min(clusterPosition[k][0]+gridSize, width);
+			yB = Math.max(0, clusterPosition[k][1]-gridSize);
+			yE = Math.min(clusterPosition[k][1]+gridSize, height);
+			if (xE <= xB) {		continue;		}
+
+			j = clusterPosition[k][1]-yB+gridSize;
+			for (int y=yB; y<yE; y++, j-- ) {
+				// the mirrored grid row, so the index goes up with x
+				i = j*sz + sz-1 - (clusterPosition[k][0]-xB+gridSize);
+				if (integerDistances) {
+					assignRowInt(imgL, imgA, imgB, y*width + xB, xE-xB, 
+							clusterColour[k][0], clusterColour[k][1], clusterColour[k][2], 
+							distGridInt, i, k, distancesInt, labels, rowInt);
+				} else {
+					assignRow(imgL, imgA, imgB, y*width + xB, xE-xB, 
+							clusterColour[k][0], clusterColour[k][1], clusterColour[k][2], 
+							distGridRow, i, k, distances, labels, row);
+				}
+			}
+		}
+	}
+
+
+	/**
+	 * Assign cluster index to each pixel in parallel, pixel-centric version.
+	 * The clusters are binned by their actual centres into cells of gridSize 
+	 * so all clusters which can reach a pixel are in the 3x3 neighbouring 
+	 * cells of the pixel cell. Each task owns whole rows of cells and 
+	 * writes only into its pixels, so there are no shared writes and the 
+	 * result is the same as for assignmentFast() (ties are resolved by 
+	 * the lower cluster index as well). In the active-set mode only the 
+	 * marked cells are reassigned.
+	 */
+	protected void assignmentPixelCentric () {
+		assignmentPixelCentric(false);
+	}
+	
+	
+	/**
+	 * The pixel-centric assignment which may also accumulate the cluster 
+	 * sums and the residual error over each finished cell
+	 * 
+	 * @param accumulate whether to compute the cluster sums
+	 * @return ClusterSums over whole image or null if not accumulated
+	 */
+	protected ClusterSums assignmentPixelCentric (final boolean accumulate) {
+		computeDistGrid();
+		if (adaptiveCompactness) {
+			computeClusterFactors();
+		}
+		Logging.logMsg(" -> pixel-centric parallel assignement running...");
+
+		// cells covering the image with a border of one cell around
+		final int nbX = (width-1)/gridSize + 1;
+		final int nbY = (height-1)/gridSize + 1;
+		final int binsX = nbX + 2;
+		final int[] binStart = new int[binsX*(nbY+2) + 1];
+		final int[] clusterBin = new int[clusterPosition.length];
+		int bx, by;
+		// count clusters per bin, the clusters out of bins can not reach the image
+		for (int k=0; k<clusterPosition.length; k++) {
+			bx = Math.floorDiv(clusterPosition[k][0], gridSize) + 1;
+			by = Math.floorDiv(clusterPosition[k][1], gridSize) + 1;
+			if (bx < 0 || bx >= binsX || by < 0 || by >= nbY+2) {
+				clusterBin[k] = -1;
+				continue;
+			}
+			clusterBin[k] = by*binsX + bx;
+			binStart[clusterBin[k]+1] ++;
+		}
+		for (int i=1; i<binStart.length; i++) {
+			binStart[i] += binStart[i-1];
+		}
+		// fill bins in increasing cluster order
+		final int[] binClusters = new int[binStart[binStart.length-1]];
+		int[] binFill = Arrays.copyOf(binStart, binStart.length-1);
+		for (int k=0; k<clusterPosition.length; k++) {
+			if (clusterBin[k] >= 0) {
+				binClusters[binFill[clusterBin[k]] ++] = k;
+			}
+		}
+
+		final int w = width, h = height, g = gridSize;
+		final int[] labels = this.labels;
+		final float[] distances = this.distances;
+		final int[] distancesInt = this.distancesInt;
+		final boolean intMode = integerDistances;
+		final boolean[] activeCells = this.activeCells;
+		final int[][] clusterPosition = this.clusterPosition;
+		final short[][] img = this.img;
+		final int nbK = clusterPosition.length;
+		// blocks of cell rows, each has own partial sums
+		final int nbBlocks = Math.min(nbY, 4 * Math.max(1, Threading.nbAvailableThread()));
+		final ClusterSums[] partial = accumulate ? prepareClusterSums(nbBlocks, nbK) : null;
+
+		// each task takes whole rows of cells
+		Threading.parallelFor(0, nbBlocks, 1, new Threading.RangeTask() {
+			@Override
+			public void run(int bBegin, int bEnd) {
+				final int sz = 2*g +1;
+				int[] cand = new int[16];
+				// temporary distances of one window row
+				final float[] row = new float[sz];
+				final int[] rowInt = new int[sz];
+				int nbCand, k, b, i, j, cxB, cxE, cyB, cyE, xB, xE, yB, yE;
+
+				for (int blk=bBegin; blk<bEnd; blk++) {
+					final ClusterSums sums = accumulate ? partial[blk] : null;
+					if (sums != null) {
+						sums.reset();
+					}
+					for (int cy=blk*nbY/nbBlocks; cy<(blk+1)*nbY/nbBlocks; cy++) {
+						cyB = cy*g;
+						cyE = Math.min(cyB+g, h);
+
+						for (int cx=0; cx<nbX; cx++) {
+							cxB = cx*g;
+							cxE = Math.min(cxB+g, w);
+							// the cell is not reached by any changed cluster
+							if (activeCells != null && !activeCells[cy*nbX + cx]) {
+								if (sums != null) {
+									sums.addCell(img, labels, intMode ? null : distances, distancesInt, w, cxB, cxE, cyB, cyE);
+								}
+								continue;
+							}
+							// reset distances of all own pixels
+							for (int y=cyB; y<cyE; y++) {
+								if (intMode) {
+									Arrays.fill(distancesInt, y*w + cxB, y*w + cxE, Integer.MAX_VALUE);
+								} else {
+									Arrays.fill(distances, y*w + cxB, y*w + cxE, Float.MAX_VALUE);
+								}
+							}
+
+							// collect candidates from 3x3 neighbouring bins
+							nbCand = 0;
+							for (int ny=cy; ny<cy+3; ny++) {
+								for (int nx=cx; nx<cx+3; nx++) {
+									b = ny*binsX + nx;
+									if (nbCand + binStart[b+1] - binStart[b] > cand.length) {
+										cand = Arrays.copyOf(cand, 2*(nbCand + binStart[b+1] - binStart[b]));
+									}
+									for (int c=binStart[b]; c<binStart[b+1]; c++) {
+										cand[nbCand ++] = binClusters[c];
+									}
+								}
+							}
+							// the same order of clusters as for cluster-centric version
+							Arrays.sort(cand, 0, nbCand);
+
+							for (int c=0; c<nbCand; c++) {
+								k = cand[c];
+								// window of the cluster restricted to the actual cell
+								xB = Math.max(cxB, clusterPosition[k][0]-g);
+								xE = Math.min(cxE, clusterPosition[k][0]+g);
+								yB = Math.max(cyB, clusterPosition[k][1]-g);
+								yE = Math.min(cyE, clusterPosition[k][1]+g);
+
+								if (xE <= xB) {		continue;		}
+								j = clusterPosition[k][1]-yB+g;
+								for (int y=yB; y<yE; y++, j-- ) {
+									// the mirrored grid row, so the index goes up with x
+									i = j*sz + sz-1 - (clusterPosition[k][0]-xB+g);
+									assignWindowRow(k, y*w + xB, xE-xB, i, row, rowInt);
+								}
+							}
+							// the cell is finished so its pixels can be counted
+							if (sums != null) {
+								sums.addCell(img, labels, intMode ? null : distances, distancesInt, w, cxB, cxE, cyB, cyE);
+							}
+						}
+					}
+				}
+			}
+		});
+
+		if (!accumulate) {
+			return null;
+		}
+		// reduction in fixed order of blocks, so it is deterministic
+		for (int i=1; i<nbBlocks; i++) {
+			partial[0].add(partial[i]);
+		}
+		return partial[0];
+	}
+
+
+	/**
+	 * the partial sums for given number of blocks, allocated once and
+	 * reused while the number of blocks, clusters and channels stays
+	 * 
+	 * @return ClusterSums[nbBlocks]
+	 */
+	protected ClusterSums[] prepareClusterSums (final int nbBlocks, final int nbK) {
+		if (fusedSums == null || fusedSums.length != nbBlocks 
+				|| fusedSums[0].count.length != nbK || fusedSums[0].nbChannels != img.length) {
+			fusedSums = new ClusterSums[nbBlocks];
+			for (int i=0; i<nbBlocks; i++) {
+				fusedSums[i] = new ClusterSums(nbK, img.length);
+			}
+		}
+		return fusedSums;
+	}
+
+
+	/**
+	 * Assign the cluster to a run of pixels in one row of its window, 
+	 * the kernel used by the pixel-centric assignment
+	 * 
+	 * @param k is the cluster index
+	 * @param idx is the image index of the first pixel
+	 * @param n is the number of pixels in the run
+	 * @param gIdx is the index of the first pixel in the mirrored grid
+	 * @param row is a temporary float buffer of size at least n
+	 * @param rowInt is a temporary int buffer of size at least n
+	 */
+	protected void assignWindowRow (final int k, final int idx, final int n, final int gIdx, 
+			final float[] row, final int[] rowInt) {
+		final int[] c = clusterColour[k];
+		if (adaptiveCompactness) {
+			assignRowScaled(img[0], img[1], img[2], idx, n, c[0], c[1], c[2], clusterFactor[k], 
+					distGridRow, gIdx, k, distances, labels, row);
+		} else if (integerDistances) {
+			assignRowInt(img[0], img[1], img[2], idx, n, c[0], c[1], c[2], 
+					distGridInt, gIdx, k, distancesInt, labels, rowInt);
+		} else {
+			assignRow(img[0], img[1], img[2], idx, n, c[0], c[1], c[2], 
+					distGridRow, gIdx, k, distances, labels, row);
+		}
+	}
+
+
+	/**
+	 * One iteration in a single pass - assignment, residual error and new 
+	 * cluster centres the same way as in update()
+	 * 
+	 * @return float residual error of the assignment
+	 */
+	protected float assignmentUpdateFused () {
+		ClusterSums sums = assignmentPixelCentric(true);
+		for (int k=0; k<clusterPosition.length; k++) {
+			// empty cluster is reset as in the update
+			if (sums.count[k] == 0) {
+				Arrays.fill(clusterColour[k], 0);
+				Arrays.fill(clusterPosition[k], 0);
+				continue;
+			}
+			// over all image channels
+			for (int c=0; c<sums.nbChannels; c++) {
+				clusterColour[k][c] = (int) (sums.colour[sums.nbChannels*k + c] / sums.count[k]);
+			}
+			// over all positions
+			clusterPosition[k][0] = (int) (sums.position[2*k] / sums.count[k]);
+			clusterPosition[k][1] = (int) (sums.position[2*k+1] / sums.count[k]);
+		}
+		if (integerDistances) {
+			return (float) (sums.error / (1 << DIST_SHIFT));
+		}
+		return (float) sums.error;
+	}
+
+
+	/**
+	 * Assign the cluster to a continuous run of pixels in one image row.
+	 * The distances are computed first into a temporary row without any 
+	 * branching and reading all arrays forward, so the JIT can unroll and 
+	 * vectorise it, then the minimum is selected in a second short pass.
+	 * The sum is evaluated in the same order as in assignmentFast() so the 
+	 * distances are equal to the last bit.
+	 *
+	 * @param imgL, imgA, imgB are the image channels
+	 * @param idx is the image index of the first pixel
+	 * @param n is the number of pixels in the run
+	 * @param cL, cA, cB is the cluster colour
+	 * @param grid is the mirrored distance grid (distGridRow)
+	 * @param gIdx is the grid index of the first pixel
+	 * @param k is the cluster index
+	 * @param distances is the minimal distance for each pixel
+	 * @param labels is the cluster index for each pixel
+	 * @param row is a temporary buffer of size at least n
+	 */
+	protected static void assignRow (final short[] imgL, final short[] imgA, final short[] imgB,
+			final int idx, final int n, final float cL, final float cA, final float cB,
+			final float[] grid, final int gIdx, final int k,
+			final float[] distances, final int[] labels, final float[] row) {
+		float dL, dA, dB;
+		for (int t=0; t<n; t++) {
+			dL = imgL[idx+t]-cL;
+			dA = imgA[idx+t]-cA;
+			dB = imgB[idx+t]-cB;
+			row[t] = ((dL * dL) + (dA * dA) + (dB * dB)) + grid[gIdx+t];
+		}
+		// if actual distance is smaller then the previous give new label 
+		for (int t=0; t<n; t++) {
+			if (row[t] < distances[idx+t]) {
+				distances[idx+t] = row[t];
+				labels[idx+t] = k;
+			}
+		}
+	}
+
+
+	/**
+	 * The version of assignRow() with the colour distance multiplied by 
+	 * a factor of the cluster, used in the adaptive mode
+	 *
+	 * @param imgL, imgA, imgB are the image channels
+	 * @param idx is the image index of the first pixel
+	 * @param n is the number of pixels in the run
+	 * @param cL, cA, cB is the cluster colour
+	 * @param a is the colour distance factor of the cluster
+	 * @param grid is the mirrored distance grid (distGridRow)
+	 * @param gIdx is the grid index of the first pixel
+	 * @param k is the cluster index
+	 * @param distances is the minimal distance for each pixel
+	 * @param labels is the cluster index for each pixel
+	 * @param row is a temporary buffer of size at least n
+	 */
+	protected static void assignRowScaled (final short[] imgL, final short[] imgA, final short[] imgB,
+			final int idx, final int n, final float cL, final float cA, final float cB, final float a,
+			final float[] grid, final int gIdx, final int k,
+			final float[] distances, final int[] labels, final float[] row) {
+		float dL, dA, dB;
+		for (int t=0; t<n; t++) {
+			dL = imgL[idx+t]-cL;
+			dA = imgA[idx+t]-cA;
+			dB = imgB[idx+t]-cB;
+			row[t] = a * ((dL * dL) + (dA * dA) + (dB * dB)) + grid[gIdx+t];
+		}
+		// if actual distance is smaller then the previous give new label 
+		for (int t=0; t<n; t++) {
+			if (row[t] < distances[idx+t]) {
+				distances[idx+t] = row[t];
+				labels[idx+t] = k;
+			}
+		}
+	}
+
+
+	/**
+	 * the weight of the squared spatial distance, in the adaptive mode 
+	 * it does not depend on the regularisation (see computeClusterFactors)
+	 * 
+	 * @return float
+	 */
+	protected float spatialFactor () {
+		return adaptiveCompactness ? INIT_COLOUR_DIST / (gridSize * gridSize) : factor;
+	}
+	
+	
+	/**
+	 * Precompute the colour distance factor of each cluster for the 
+	 * adaptive mode, D = dc^2 / m_k^2 + ds^2 / S^2 is scaled by the
+	 * constant INIT_COLOUR_DIST so each factor depends only on the maximum
+	 * of its cluster, the spatial term is the distance grid with
+	 * spatialFactor(). In the active-set mode the cells reached by 
+	 * the clusters with a changed factor are marked.
+	 */
+	protected void computeClusterFactors () {
+		float[] maxDist = computeMaxColourDistances();
+		if (clusterFactor == null || clusterFactor.length != maxDist.length) {
+			clusterFactor = new float[maxDist.length];
+		}
+		final int nbX = (width-1)/gridSize + 1;
+		float f;
+		for (int k=0; k<maxDist.length; k++) {
+			// a cluster with no or uniform pixels keeps the initial value
+			f = INIT_COLOUR_DIST / ((maxDist[k] > 0) ? maxDist[k] : INIT_COLOUR_DIST);
+			if (activeCells != null && f != clusterFactor[k]) {
+				markWindowCells(clusterPosition[k], nbX);
+			}
+			clusterFactor[k] = f;
+		}
+	}
+	
+	
+	/**
+	 * the maximal squared colour distance of pixels to their clusters 
+	 * by the actual labelling, in parallel over row strips
+	 * 
+	 * @return float[nbClusters]
+	 */
+	protected float[] computeMaxColourDistances () {
+		final int nbK = clusterColour.length;
+		final int nbStrips = Math.max(1, Math.min(height, 4 * Threading.nbAvailableThread()));
+		final float[][] partial = new float[nbStrips][];
+		final short[] imgL = img[0], imgA = img[1], imgB = img[2];
+		Threading.parallelFor(0, nbStrips, 1, new Threading.RangeTask() {
+			@Override
+			public void run(int begin, int end) {
+				for (int s = begin; s < end; s++) {
+					float[] mx = new float[nbK];
+					int k, dL, dA, dB;
+					for (int idx = (s*height/nbStrips)*width; idx < ((s+1)*height/nbStrips)*width; idx++) {
+						k = labels[idx];
+						dL = imgL[idx]-clusterColour[k][0];
+						dA = imgA[idx]-clusterColour[k][1];
+						dB = imgB[idx]-clusterColour[k][2];
+						mx[k] = Math.max(mx[k], (dL * dL) + (dA * dA) + (dB * dB));
+					}
+					partial[s] = mx;
+				}
+			}
+		});
+		for (int s = 1; s < nbStrips; s++) {
+			for (int k = 0; k < nbK; k++) {
+				partial[0][k] = Math.max(partial[0][k], partial[s][k]);
+			}
+		}
+		return partial[0];
+	}
+
+
+	/**
+	 * The integer version of assignRow(), the colour differences stay 
+	 * integers and the colour distance is shifted to the fixed point of 
+	 * the integer distance grid, so there is no conversion to float.
+	 *
+	 * @param imgL, imgA, imgB are the image channels
+	 * @param idx is the image index of the first pixel
+	 * @param n is the number of pixels in the run
+	 * @param cL, cA, cB is the cluster colour
+	 * @param grid is the mirrored distance grid in fixed point (distGridInt)
+	 * @param gIdx is the grid index of the first pixel
+	 * @param k is the cluster index
+	 * @param distances is the minimal distance for each pixel
+	 * @param labels is the cluster index for each pixel
+	 * @param row is a temporary buffer of size at least n
+	 */
+	protected static void assignRowInt (final short[] imgL, final short[] imgA, final short[] imgB,
+			final int idx, final int n, final int cL, final int cA, final int cB,
+			final int[] grid, final int gIdx, final int k,
+			final int[] distances, final int[] labels, final int[] row) {
+		int dL, dA, dB;
+		for (int t=0; t<n; t++) {
+			dL = imgL[idx+t]-cL;
+			dA = imgA[idx+t]-cA;
+			dB = imgB[idx+t]-cB;
+			row[t] = (((dL * dL) + (dA * dA) + (dB * dB)) << DIST_SHIFT) + grid[gIdx+t];
+		}
+		// if actual distance is smaller then the previous give new label 
+		for (int t=0; t<n; t++) {
+			if (row[t] < distances[idx+t]) {
+				distances[idx+t] = row[t];
+				labels[idx+t] = k;
+			}
+		}
+	}
+
+
 	/**
 	 * Assign cluster index to each pixel in image according the given metric
 	 */
@@ -436,9 +1645,7 @@ public class jSLIC {
 		Logging.logMsg(" -> fast parallel assignement running...");
 
 		// put minimal distances to maximum
-		for(float[] subarray : distances2D) {
-			Arrays.fill(subarray, Float.MAX_VALUE);
-		}
+		Arrays.fill(distances, Float.MAX_VALUE);
 		
 		final ThreadAssignment[] threads = new ThreadAssignment[Threading.nbAvailableThread()];
 		int deltaImg = (int) Math.ceil(width / (float)threads.length);
@@ -447,7 +1654,7 @@ public class jSLIC {
 		for (int iThread = 0; iThread < threads.length; iThread++) {
 			
 			// Concurrently run in as many threads as CPUs  
-			threads[iThread] = new ThreadAssignment(img2D, gridSize, distGrid, clusterPosition, clusterColour, distances2D, labels2D);
+			threads[iThread] = new ThreadAssignment(img, width, height, gridSize, distGrid, clusterPosition, clusterColour, distances, labels);
 			// for all regular regions
 			// because of a rounding the last has to cover rest of image
 			//endRange = (iThread < (threads.length-1)) ? (iThread+1)*deltaImg : width;
@@ -472,14 +1679,17 @@ public class jSLIC {
 		for(int[] subarray : clusterColour) {			Arrays.fill(subarray, 0);		}
 		for(int[] subarray : clusterPosition) {			Arrays.fill(subarray, 0);		}
 		
+		final short[] imgL = img[0], imgA = img[1], imgB = img[2];
+		int idx = 0;
+		
 		// cycle over whole image and by labels add current value to given cluster center
-		for (int x=0; x<width; x++ ) {
-			for (int y=0; y<height; y++ ) {
-				k = labels2D[x][y];
+		for (int y=0; y<height; y++ ) {
+			for (int x=0; x<width; x++, idx++ ) {
+				k = labels[idx];
 				// over all image channels
-				clusterColour[k][0] += img2D[x][y][0];
-				clusterColour[k][1] += img2D[x][y][1];
-				clusterColour[k][2] += img2D[x][y][2];
+				clusterColour[k][0] += imgL[idx];
+				clusterColour[k][1] += imgA[idx];
+				clusterColour[k][2] += imgB[idx];
 				// over all positions
 				clusterPosition[k][0] += x;
 				clusterPosition[k][1] += y;
@@ -522,7 +1732,7 @@ public class jSLIC {
 //		for (int iThread = 0; iThread < threads.length; iThread++) {
 //			
 //			// Concurrently run in as many threads as CPUs  
-//			threads[iThread] = new ThreadUpdate(img2D, gridSize, clusterPosition, clusterColour, labels2D, nbPixels);
+//			threads[iThread] = new ThreadUpdate(img, width, height, gridSize, clusterPosition, clusterColour, labels, nbPixels);
 //			// for all regular regions
 //			// because of a rounding the last has to cover rest of image
 //			//endRange = (iThread < (threads.length-1)) ? (iThread+1)*deltaImg : width;
@@ -560,7 +1770,7 @@ public class jSLIC {
 		for (int iThread = 0; iThread < threads.length; iThread++) {
 			
 			// Concurrently run in as many threads as CPUs  
-			threads[iThread] = new ThreadUpdate(img2D, gridSize, clusterPosition, clusterColour, labels2D, nbPixels);
+			threads[iThread] = new ThreadUpdate(img, width, height, gridSize, clusterPosition, clusterColour, labels, nbPixels);
 			// for all regular regions
 			// because of a rounding the last has to cover rest of image
 			//endRange = (iThread < (threads.length-1)) ? (iThread+1)*deltaImg : width;
@@ -613,11 +1823,18 @@ public class jSLIC {
 		// error metric
 		float err = 0;
 
-		// cycle over all distances
-		for (int x=0; x<width; x++ ) {
-			for (int y=0; y<height; y++ ) {
-				err += distances2D[x][y];
+		// in integer mode sum exactly and scale back at the end
+		if (distancesInt != null) {
+			long sum = 0;
+			for (int i=0; i<distancesInt.length; i++ ) {
+				sum += distancesInt[i];
 			}
+			return sum / (float)(1 << DIST_SHIFT);
+		}
+
+		// cycle over all distances
+		for (int i=0; i<distances.length; i++ ) {
+			err += distances[i];
 		}
 		return err;
 	}
@@ -645,10 +1862,10 @@ public class jSLIC {
 		// area of initial superpixel
 		int SUPSZ = gridSize*gridSize;
 		// create new array of labels and fill by -1
-		int[][] nlabels = new int[width][height];
-		for(int[] subarray : nlabels) { Arrays.fill(subarray, -1); }
+		int[] nlabels = new int[sz];
+		Arrays.fill(nlabels, -1);
 		// coordinates to run in the image
-		int x, y;
+		int x, y, idx, nIdx;
 		int lab = 0;
 		int adjlabel = 0; //adjacent label
 		// array of coordinates for all elements in the actual segment
@@ -659,10 +1876,11 @@ public class jSLIC {
         // cycle over all pixels in image
 		for( int j = 0; j < height; j++ ) {
 			for( int i = 0; i < width; i++ ) {
+				idx = j*width + i;
 				
-				if( nlabels[i][j] > -1) { 	continue; 	}
+				if( nlabels[idx] > -1) { 	continue; 	}
 				
-				nlabels[i][j] = lab;
+				nlabels[idx] = lab;
 				// Start a new segment
 				xvec[0] = i;
 				yvec[0] = j;
@@ -671,8 +1889,9 @@ public class jSLIC {
 					x = xvec[0] + dx[n];
 					y = yvec[0] + dy[n];
 					if( (x >= 0 && x < width) && (y >= 0 && y < height) ) {
-						if(nlabels[x][y] >= 0) {
-							adjlabel = nlabels[x][y];
+						nIdx = y*width + x;
+						if(nlabels[nIdx] >= 0) {
+							adjlabel = nlabels[nIdx];
 						}
 					}
 				}
@@ -685,10 +1904,11 @@ public class jSLIC {
 						y = yvec[c] + dy[n];
 						// conditions if it is still the same segment
 						if( (x >= 0 && x < width) && (y >= 0 && y < height) ) {
-							if( 0 > nlabels[x][y] && labels2D[i][j] == labels2D[x][y] ) {
+							nIdx = y*width + x;
+							if( 0 > nlabels[nIdx] && labels[idx] == labels[nIdx] ) {
 								xvec[count] = x;
 								yvec[count] = y;
-								nlabels[x][y] = lab;
+								nlabels[nIdx] = lab;
 								count++;
 							}
 						}
@@ -699,25 +1919,110 @@ public class jSLIC {
 				// shift by 2, which means that it reduces segments 4times smaller
 				if(count <= SUPSZ >> 2) {
 					for( int c = 0; c < count; c++ ) {
-						nlabels[xvec[c]][yvec[c]] = adjlabel;
+						nlabels[yvec[c]*width + xvec[c]] = adjlabel;
 					}
 					lab--;
 				}
 				lab++;
 			}
 		}
-		this.labels2D = nlabels;
+		this.labels = nlabels;
 		this.nbLabels = lab;
 	}
 	
 	
+	/**
+	 * assign a cluster index to each final segment, it is the cluster of 
+	 * the most of the segment pixels, so the small fragments merged into 
+	 * the segment by the post-processing do not decide its identity
+	 * 
+	 * @param clusterLabels is the labelling by clusters before post-processing
+	 */
+	protected void computeSegmentClusters(final int[] clusterLabels) {
+		int maxLabel = 0;
+		for (int i=0; i<labels.length; i++) {
+			maxLabel = Math.max(maxLabel, labels[i]);
+		}
+		segmentClusters = new int[maxLabel+1];
+		// majority vote in a single pass (Boyer-Moore), a segment is made 
+		// mostly of one cluster with only a few merged fragments
+		int[] votes = new int[maxLabel+1];
+		for (int i=0; i<labels.length; i++) {
+			int s = labels[i];
+			if (votes[s] == 0) {
+				segmentClusters[s] = clusterLabels[i];
+				votes[s] = 1;
+			} else if (segmentClusters[s] == clusterLabels[i]) {
+				votes[s] ++;
+			} else {
+				votes[s] --;
+			}
+		}
+	}
+	
+	
+	/**
+	 * gives segmentation where segments are labelled by the cluster index, 
+	 * so with warm start the labels are consistent with the previous run
+	 * 
+	 * @return Labelling2D by cluster indexes
+	 */
+	public Labelling2D getClusterSegmentation() {
+		return new Labelling2D(getClusterLabels(), width, height);
+	}
+	
+	
+	/**
+	 * gives labelling by the cluster indexes as getClusterSegmentation()
+	 * 
+	 * @return int[Width*Height] in row-major order
+	 */
+	public int[] getClusterLabels() {
+		int[] lab = new int[labels.length];
+		for (int i=0; i<labels.length; i++) {
+			lab[i] = segmentClusters[labels[i]];
+		}
+		return lab;
+	}
+	
+	
+	/**
+	 * gives the final cluster centre positions
+	 * 
+	 * @return int[nbClusters][2]
+	 */
+	public int[][] getClusterPositions() {
+		return this.clusterPosition;
+	}
+	
+	
+	/**
+	 * gives the final cluster centre colours
+	 * 
+	 * @return int[nbClusters][channels]
+	 */
+	public int[][] getClusterColours() {
+		return this.clusterColour;
+	}
+	
+	
+	/**
+	 * gives the number of iterations performed by the last clustering
+	 * 
+	 * @return int nb iterations
+	 */
+	public int getNbIterations() {
+		return this.nbIterations;
+	}
+	
+	
 	/**
 	 * gives segmentation with segmented indexes
 	 * 
 	 * @return int[Width][Height] returns indexes of segmented superpixels
 	 */
 	public Labelling2D getSegmentation() {
-		return new Labelling2D(labels2D);
+		return new Labelling2D(labels, width, height);
 	}	
 	
 	
@@ -736,11 +2041,82 @@ public class jSLIC {
 	 * get the converted image in LAB colour space in case of RGB otherwise 
 	 * only gray intensity values
 	 * 
-	 * @return int[Width][Height][channels]
+	 * @return short[channels][Width*Height] planar image in row-major order
 	 */
-	public int[][][] getImage() {
-		return this.img2D;
+	public short[][] getImage() {
+		return this.img;
 	}
 	
 }
 
+
+/**
+ * @class Cluster Sums
+ * 
+ * @brief partial sums of colours and positions for each cluster together 
+ * with the residual error, accumulated by one task of the fused pass
+ */
+class ClusterSums {
+
+	protected int nbChannels;
+	protected int[] count;
+	// sums of colour channels [nbChannels*k + c] and positions [2*k + d]
+	protected long[] colour, position;
+	protected double error = 0;
+
+	public ClusterSums(int nbClusters, int nbChannels) {
+		this.nbChannels = nbChannels;
+		count = new int[nbClusters];
+		colour = new long[nbChannels*nbClusters];
+		position = new long[2*nbClusters];
+	}
+
+	/**
+	 * set all sums to zero, so the arrays can be used again
+	 */
+	public void reset() {
+		Arrays.fill(count, 0);
+		Arrays.fill(colour, 0);
+		Arrays.fill(position, 0);
+		error = 0;
+	}
+
+	/**
+	 * add all pixels of the image cell [xB, xE) x [yB, yE)
+	 */
+	public void addCell(final short[][] img, 
+			final int[] labels, final float[] distances, final int[] distancesInt, 
+			final int width, final int xB, final int xE, final int yB, final int yE) {
+		int k, idx;
+		for (int y=yB; y<yE; y++) {
+			idx = y*width + xB;
+			for (int x=xB; x<xE; x++, idx++) {
+				k = labels[idx];
+				count[k] ++;
+				for (int c=0; c<nbChannels; c++) {
+					colour[nbChannels*k + c] += img[c][idx];
+				}
+				position[2*k] += x;
+				position[2*k+1] += y;
+				error += (distances != null) ? distances[idx] : distancesInt[idx];
+			}
+		}
+	}
+
+	/**
+	 * add sums of another part
+	 */
+	public void add(final ClusterSums other) {
+		for (int i=0; i<count.length; i++) {
+			count[i] += other.count[i];
+		}
+		for (int i=0; i<colour.length; i++) {
+			colour[i] += other.colour[i];
+		}
+		for (int i=0; i<position.length; i++) {
+			position[i] += other.position[i];
+		}
+		error += other.error;
+	}
+
+}
@@ -0,0 +1,555 @@
+/**
+ * @file
+ */
+
+package sc.fiji.CMP_BIA.segmentation.superpixels;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.measure.Calibration;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+
+import java.util.Arrays;
+
+import sc.fiji.CMP_BIA.segmentation.structures.Labelling2D;
+import sc.fiji.CMP_BIA.tools.Logging;
+import sc.fiji.CMP_BIA.tools.Threading;
+import sc.fiji.CMP_BIA.tools.converters.ConvertImage;
+
+/**
+ * @class SLIC supervoxels
+ * @version 0.1
+ * @category image segmentation
+ *
+ * @brief This is SLIC supervoxel segmentation for 3D image stacks (RGB and
+ * gray images) as an extension of the 2D jSLIC, the clusters are searched
+ * in x/y/z window and the assignment and update run in parallel over z-slabs.
+ *
+ * @details The voxel spacing is taken from the image calibration and it is
+ * normalised to the pixel width, so the grid size in z direction (in slices)
+ * is rescaled such that the supervoxels are compact in physical space.
+ * The volume is stored as planar flat arrays with index (z*height + y)*width + x.
+ *
+ * @see http://ivrg.epfl.ch/research/superpixels
+ */
+public class jSLIC3D {
+
+	// original image we work with
+	protected ImagePlus image;
+	protected int width, height, depth;
+	// relative voxel spacing in y and z with respect to x
+	protected float spacingY = 1f, spacingZ = 1f;
+	// volume converted into LAB colour space - dim short[channels][Width*Height*Depth]
+	protected short[][] img = null;
+	// initial regular grid size in x/y and in z (in slices)
+	protected int gridSize, gridSizeZ;
+	// superpixel elasticity in range (0,1)
+	protected float regul;
+	// labeling per each voxel - dim int[Width*Height*Depth]
+	protected int[] labels = null;
+	// minimal distance according the assigned label - dim float[Width*Height*Depth]
+	protected float[] distances = null;
+	// number of estimated segments (labels)
+	protected int nbLabels;
+	// vector of cluster's colours - dim int[nbClusters][channels]
+	protected int[][] clusterColour = null;
+	// vector of cluster's positions - dim int[nbClusters][3]
+	protected int[][] clusterPosition = null;
+	// stopping treshold value in percent of initial error
+	protected float errTreshold = 0.1f;
+	// according the VLFeat library the regul is in range {0,1}
+	protected float factor;
+	// precomputed distances - dim float[(2*gridSizeZ+1)*(2*gridSize+1)*(2*gridSize+1)]
+	protected float[] distGrid = null;
+
+	/**
+	 * Constructor that sets the input image stack.
+	 *
+	 * @param im is the input ImagePlus
+	 */
+	public jSLIC3D (ImagePlus im) {
+		this.image = im;
+
+		// (width, height, nChannels, nSlices, nFrames)
+		int[] dims = image.getDimensions();
+		this.width = dims[0];
+		this.height = dims[1];
+		this.depth = dims[3];
+		if (dims[2] != 1 || dims[4] != 1) {
+			IJ.error("ERROR: Not supported image dimensions, only single channel and time frame!");
+			return;
+		}
+
+		// anisotropic voxel size normalised to the pixel width
+		Calibration cal = image.getCalibration();
+		if (cal != null && cal.pixelWidth > 0) {
+			spacingY = (float) (cal.pixelHeight / cal.pixelWidth);
+			spacingZ = (float) (cal.pixelDepth / cal.pixelWidth);
+		}
+
+		int sz = width*height*depth;
+		labels = new int[sz];
+		distances = new float[sz];
+
+		Logging.logMsg("SLIC 3D: image convert.");
+		convertImage();
+	}
+
+	/**
+	 * Convert all slices into the LAB colour space and copy them into volume
+	 */
+	protected void convertImage() {
+		int szSlice = width*height;
+		ImageStack stack = image.getStack();
+		img = new short[3][width*height*depth];
+		for (int z=0; z<depth; z++) {
+			ImageProcessor ip = stack.getProcessor(z+1);
+			short[][] slice;
+			switch (image.getType()) {
+				// convert image from RGB to CIE LAB colour space
+				case ImagePlus.COLOR_RGB:
+					slice = ConvertImage.rgb2cieLABplanar(ip);
+					break;
+				// convert the gray images
+				case ImagePlus.GRAY8:
+				case ImagePlus.GRAY16:
+				case ImagePlus.GRAY32:
+					slice = ConvertImage.gray2cieLABplanar(ip);
+					break;
+				default:
+					Logging.logMsg("ERROR: Not supported colour space!");
+					return;
+			}
+			for (int c=0; c<img.length; c++) {
+				System.arraycopy(slice[c], 0, img[c], z*szSlice, szSlice);
+			}
+		}
+	}
+
+	/**
+	 * Process the whole segmentation process
+	 *
+	 * @param grid integer number defining the initial regular grid size
+	 * @param reg float defining the superpixel elasticity in range (0,1)
+	 */
+	public void process (int grid, float reg) {
+		process (grid, reg, 9);
+	}
+
+	/**
+	 * Process the whole segmentation process
+	 *
+	 * @param grid integer number defining the initial regular grid size in pixels
+	 * @param reg float defining the superpixel elasticity in range (0,1)
+	 * @param maxIter number of maximal iterations
+	 */
+	public void process (int grid, float reg, int maxIter) {
+		this.gridSize = (grid < 5) ? 5 : grid;
+		this.regul = (reg < 0) ? 0 : reg;
+		// the same physical size in z direction
+		this.gridSizeZ = Math.max(1, Math.round(gridSize / spacingZ));
+		// according the VLFeat library the regul is in range {0,1}
+		this.factor = (regul*regul) * (float)(gridSize);
+		float err, lastErr = Float.MAX_VALUE;
+		long startTime, estimTime;
+
+		Logging.logMsg("SLIC 3D: running with gridSize: " + Integer.toString(gridSize) + " ("
+				+ Integer.toString(gridSizeZ) + " slices) regularity " + Float.toString(regul));
+
+		initClusters();
+		computeDistGrid();
+
+		float initErr = computeResidualError();
+
+		for (int i=0; i<maxIter; i++) {
+
+			startTime = System.currentTimeMillis();
+			assignment();
+
+			err = computeResidualError();
+			Logging.logMsg("SLIC 3D:  iter " + Integer.toString(i+1) + ", inter. distance is " + Float.toString(err));
+
+			update();
+
+			// STOP criterion, if consecutive errors are smaller then given treshold
+			if ( (lastErr-err) < (initErr*errTreshold)) {
+				Logging.logMsg("SLIC 3D: terminate with diff error " + (lastErr-err));
+				i = maxIter;
+			} else {
+				lastErr = err;
+			}
+
+			estimTime = System.currentTimeMillis() - startTime;
+			Logging.logMsg(" -> took " + Float.toString((float)estimTime/1000) + "s");
+		}
+
+		startTime = System.currentTimeMillis();
+		Logging.logMsg("SLIC 3D: enforce label connectivity.");
+		enforceLabelConnectivity();
+		estimTime = System.currentTimeMillis() - startTime;
+		Logging.logMsg(" -> took " + Float.toString((float)estimTime/1000) + "s");
+
+		Logging.logMsg("SLIC 3D: DONE.");
+	}
+
+	/**
+	 * Initialisation of clusters by the regular 3D grid
+	 */
+	protected void initClusters () {
+		int maxColumn = (int) Math.ceil(width / (float)gridSize);
+		int maxRow = (int) Math.ceil(height / (float)gridSize);
+		int maxSlice = (int) Math.ceil(depth / (float)gridSizeZ);
+		int nbClusters = maxColumn * maxRow * maxSlice;
+		clusterColour = new int[nbClusters][img.length];
+		clusterPosition = new int[nbClusters][3];
+
+		// do initial assignment - assign labels by initial regular grid
+		int idx = 0;
+		for (int z=0; z<depth; z++ ) {
+			for (int y=0; y<height; y++ ) {
+				for (int x=0; x<width; x++, idx++ ) {
+					labels[idx] = ((z/gridSizeZ)*maxRow + (y/gridSize))*maxColumn + (x/gridSize);
+				}
+			}
+		}
+
+		update();
+	}
+
+	/**
+	 * pre-compute the spatial part of the distance for all offsets
+	 * in the cluster window taking into account the voxel spacing
+	 */
+	protected void computeDistGrid() {
+		int sx = 2*gridSize +1;
+		int sz = 2*gridSizeZ +1;
+		distGrid = new float[sz*sx*sx];
+		float dx, dy, dz;
+		int i = 0;
+		for (int z=0; z<sz; z++ ) {
+			dz = (z-gridSizeZ) * spacingZ;
+			for (int y=0; y<sx; y++ ) {
+				dy = (y-gridSize) * spacingY;
+				for (int x=0; x<sx; x++, i++ ) {
+					dx = x-gridSize;
+					distGrid[i] = ((dx*dx) + (dy*dy) + (dz*dz)) * factor;
+				}
+			}
+		}
+	}
+
+	/**
+	 * split the volume into z-slabs, one per thread
+	 *
+	 * @return int[nbThreads+1] slab borders
+	 */
+	protected int[] slabRanges() {
+		int nb = Math.max(1, Math.min(Threading.nbAvailableThread(), depth));
+		int[] ranges = new int[nb+1];
+		for (int i = 0; i <= nb; i++) {
+			ranges[i] = (int) ((long)depth * i / nb);
+		}
+		return ranges;
+	}
+
+	/**
+	 * Assign cluster index to each voxel in parallel over z-slabs
+	 */
+	protected void assignment () {
+		// put minimal distances to maximum
+		Arrays.fill(distances, Float.MAX_VALUE);
+
+		int[] ranges = slabRanges();
+		final ThreadAssignment3D[] threads = new ThreadAssignment3D[ranges.length-1];
+		for (int iThread = 0; iThread < threads.length; iThread++) {
+			threads[iThread] = new ThreadAssignment3D(this, ranges[iThread], ranges[iThread+1]);
+		}
+		Threading.startAndJoin(threads);
+	}
+
+	/**
+	 * Update the cluster centers in parallel over z-slabs with reduction
+	 * of the partial sums at the end
+	 */
+	protected void update () {
+		int[] ranges = slabRanges();
+		final ThreadUpdate3D[] threads = new ThreadUpdate3D[ranges.length-1];
+		for (int iThread = 0; iThread < threads.length; iThread++) {
+			threads[iThread] = new ThreadUpdate3D(this, ranges[iThread], ranges[iThread+1]);
+		}
+		Threading.startAndJoin(threads);
+
+		long nb;
+		long[] sum = new long[3 + img.length];
+		// cycle over all clusters and divide them by nb assigned voxels (get mean)
+		for (int k=0; k<clusterPosition.length; k++) {
+			nb = 0;
+			Arrays.fill(sum, 0);
+			for (int i = 0; i < threads.length; i++) {
+				nb += threads[i].nbPixels[k];
+				for (int c = 0; c < sum.length; c++) {
+					sum[c] += threads[i].sums[k*sum.length + c];
+				}
+			}
+			if (nb == 0) {		continue;	}
+			clusterPosition[k][0] = (int) (sum[0] / nb);
+			clusterPosition[k][1] = (int) (sum[1] / nb);
+			clusterPosition[k][2] = (int) (sum[2] / nb);
+			for (int c = 0; c < img.length; c++) {
+				clusterColour[k][c] = (int) (sum[3+c] / nb);
+			}
+		}
+	}
+
+	/**
+	 * Count residual distance to nearest clusters by given metric
+	 *
+	 * @return float returns a sum over all distances to nearest cluster
+	 */
+	protected float computeResidualError () {
+		float err = 0;
+		for (int i=0; i<distances.length; i++ ) {
+			err += distances[i];
+		}
+		return err;
+	}
+
+	/**
+	 * Enforce Label Connectivity in 6-neighbourhood, the components smaller
+	 * then a quarter of initial supervoxel are merged to adjacent one
+	 * (the same approach as jSLIC uses in 2D)
+	 */
+	protected void enforceLabelConnectivity() {
+		// 6-connectivity, the slice neighbours go first so the adjacent label
+		// is taken from the same slice if possible (as the closer voxels)
+		final int[] dx = { 0,  0, -1,  0,  1,  0};
+		final int[] dy = { 0,  0,  0, -1,  0,  1};
+		final int[] dz = {-1,  1,  0,  0,  0,  0};
+
+		int szSlice = width*height;
+		int sz = szSlice*depth;
+		// volume of initial supervoxel
+		int SUPSZ = gridSize*gridSize*gridSizeZ;
+		int[] nlabels = new int[sz];
+		Arrays.fill(nlabels, -1);
+		int x, y, z, idx, nIdx, cIdx;
+		int lab = 0;
+		int adjlabel = 0; //adjacent label
+		// array of indexes for all elements in the actual segment
+		int[] vec = new int[sz];
+		int count;
+
+		for (idx = 0; idx < sz; idx++) {
+			if( nlabels[idx] > -1) { 	continue; 	}
+
+			nlabels[idx] = lab;
+			vec[0] = idx;
+			// Quickly find an adjacent label for use later if needed
+			x = idx % width;
+			y = (idx / width) % height;
+			z = idx / szSlice;
+			for( int n = 0; n < dx.length; n++ ) {
+				if( (x+dx[n] >= 0 && x+dx[n] < width) && (y+dy[n] >= 0 && y+dy[n] < height)
+						&& (z+dz[n] >= 0 && z+dz[n] < depth) ) {
+					nIdx = idx + dz[n]*szSlice + dy[n]*width + dx[n];
+					if(nlabels[nIdx] >= 0) {
+						adjlabel = nlabels[nIdx];
+					}
+				}
+			}
+
+			count = 1; // segment size
+			// region growing method and storing voxels belongs to segment
+			for( int c = 0; c < count; c++ ) {
+				cIdx = vec[c];
+				x = cIdx % width;
+				y = (cIdx / width) % height;
+				z = cIdx / szSlice;
+				for( int n = 0; n < dx.length; n++ ) {
+					if( (x+dx[n] >= 0 && x+dx[n] < width) && (y+dy[n] >= 0 && y+dy[n] < height)
+							&& (z+dz[n] >= 0 && z+dz[n] < depth) ) {
+						nIdx = cIdx + dz[n]*szSlice + dy[n]*width + dx[n];
+						if( 0 > nlabels[nIdx] && labels[idx] == labels[nIdx] ) {
+							vec[count] = nIdx;
+							nlabels[nIdx] = lab;
+							count++;
+						}
+					}
+				}
+			}
+			// If segment size is less then a limit, assign an
+			// adjacent label found before, and decrement label count.
+			if(count <= SUPSZ >> 2) {
+				for( int c = 0; c < count; c++ ) {
+					nlabels[vec[c]] = adjlabel;
+				}
+				lab--;
+			}
+			lab++;
+		}
+		this.labels = nlabels;
+		this.nbLabels = lab;
+	}
+
+	/**
+	 * gives the supervoxel labels
+	 *
+	 * @return int[Width*Height*Depth] with index (z*Height + y)*Width + x
+	 */
+	public int[] getLabels() {
+		return this.labels;
+	}
+
+	/**
+	 * gives segmentation of a single slice
+	 *
+	 * @param z is the slice index starting from 0
+	 * @return Labelling2D of the given slice
+	 */
+	public Labelling2D getSegmentation(int z) {
+		int[] slice = Arrays.copyOfRange(labels, z*width*height, (z+1)*width*height);
+		return new Labelling2D(slice, width, height);
+	}
+
+	/**
+	 * gives segmentation as image stack, the float type is used to keep
+	 * exact labels up to 2^24 which the 16bit images can not cover
+	 *
+	 * @return ImagePlus stack of labels
+	 */
+	public ImagePlus getSegmentationStack() {
+		int szSlice = width*height;
+		ImageStack stack = new ImageStack(width, height);
+		for (int z=0; z<depth; z++) {
+			float[] px = new float[szSlice];
+			for (int i=0; i<szSlice; i++) {
+				px[i] = labels[z*szSlice + i];
+			}
+			stack.addSlice(new FloatProcessor(width, height, px));
+		}
+		ImagePlus im = new ImagePlus("supervoxels", stack);
+		im.setCalibration(image.getCalibration());
+		return im;
+	}
+
+	/**
+	 * gives the number of all various labels in segmentation, where the
+	 * max labels are {0,..,(n-1)}
+	 *
+	 * @return int number of labels
+	 */
+	public int getNbLabels() {
+		return this.nbLabels;
+	}
+
+}
+
+
+/**
+ * The particular thread for assignment in given z-slab, it visits all
+ * clusters reaching the slab and writes only inside the slab
+ */
+class ThreadAssignment3D implements Runnable {
+	protected jSLIC3D sp;
+	// range of slices
+	protected int zBegin, zEnd;
+
+	public ThreadAssignment3D(jSLIC3D slic, int zB, int zE) {
+		sp = slic;
+		zBegin = zB;
+		zEnd = zE;
+	}
+
+	@Override
+	public void run() {
+		final int w = sp.width, h = sp.height, g = sp.gridSize, gz = sp.gridSizeZ;
+		final int szSlice = w*h;
+		final int sx = 2*g +1;
+		final short[] imgL = sp.img[0], imgA = sp.img[1], imgB = sp.img[2];
+		final float[] distGrid = sp.distGrid, distances = sp.distances;
+		final int[] labels = sp.labels;
+		int xB, xE, yB, yE, zB, zE, i, idx;
+		float dist, dL, dA, dB;
+		int[] pos, clr;
+
+		for (int k=0; k<sp.clusterPosition.length; k++) {
+			pos = sp.clusterPosition[k];
+			clr = sp.clusterColour[k];
+			// window of the cluster clipped by the slab and the volume
+			zB = Math.max(zBegin, pos[2]-gz);
+			zE = Math.min(zEnd, pos[2]+gz+1);
+			if (zB >= zE) {		continue;	}
+			xB = Math.max(0, pos[0]-g);
+			xE = Math.min(w, pos[0]+g+1);
+			yB = Math.max(0, pos[1]-g);
+			yE = Math.min(h, pos[1]+g+1);
+
+			for (int z=zB; z<zE; z++) {
+				for (int y=yB; y<yE; y++) {
+					i = ((z-pos[2]+gz)*sx + (y-pos[1]+g))*sx + (xB-pos[0]+g);
+					idx = z*szSlice + y*w + xB;
+					for (int x=xB; x<xE; x++, i++, idx++) {
+						dL = imgL[idx]-clr[0];
+						dA = imgA[idx]-clr[1];
+						dB = imgB[idx]-clr[2];
+						dist = (dL * dL) + (dA * dA) + (dB * dB) + distGrid[i];
+						// if actual distance is smaller then the previous give new label
+						if (dist < distances[idx]) {
+							labels[idx] = k;
+							distances[idx] = dist;
+						}
+					}
+				}
+			}
+		}
+	}
+}
+
+
+/**
+ * The particular thread for update in given z-slab, computing the partial
+ * sums of positions and colours per cluster
+ */
+class ThreadUpdate3D implements Runnable {
+	protected jSLIC3D sp;
+	// range of slices
+	protected int zBegin, zEnd;
+	// number per cluster
+	protected int[] nbPixels = null;
+	// partial sums {x, y, z, colours...} per cluster
+	protected long[] sums = null;
+
+	public ThreadUpdate3D(jSLIC3D slic, int zB, int zE) {
+		sp = slic;
+		zBegin = zB;
+		zEnd = zE;
+	}
+
+	@Override
+	public void run() {
+		final int w = sp.width, h = sp.height;
+		final int nbClr = sp.img.length;
+		final int stride = 3 + nbClr;
+		final int[] labels = sp.labels;
+		nbPixels = new int[sp.clusterPosition.length];
+		sums = new long[sp.clusterPosition.length * stride];
+		int k, idx = zBegin*w*h;
+
+		for (int z=zBegin; z<zEnd; z++) {
+			for (int y=0; y<h; y++) {
+				for (int x=0; x<w; x++, idx++) {
+					k = labels[idx];
+					nbPixels[k] ++;
+					sums[k*stride] += x;
+					sums[k*stride+1] += y;
+					sums[k*stride+2] += z;
+					for (int c=0; c<nbClr; c++) {
+						sums[k*stride+3+c] += sp.img[c][idx];
+					}
+				}
+			}
+		}
+	}
+}
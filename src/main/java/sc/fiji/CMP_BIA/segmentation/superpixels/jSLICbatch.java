@@ -0,0 +1,447 @@
+/**
+ * @file
+ */
+
+package sc.fiji.CMP_BIA.segmentation.superpixels;
+
+import ij.IJ;
+import ij.ImagePlus;
+
+import java.io.File;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import sc.fiji.CMP_BIA.segmentation.structures.LabelFile;
+import sc.fiji.CMP_BIA.segmentation.structures.Labelling2D;
+import sc.fiji.CMP_BIA.segmentation.tools.Descriptors2D;
+import sc.fiji.CMP_BIA.tools.Logging;
+import sc.fiji.CMP_BIA.tools.Threading;
+
+/**
+ * @class SLIC superpixels for a batch of images
+ * @version 0.1
+ * @category image segmentation
+ *
+ * @brief Pipelined segmentation of many images (e.g. a directory) where
+ * the decoding, segmentation and export of different images overlap, so
+ * the processors do not idle while an image is read or written.
+ *
+ * @details The pipeline has three stages connected by bounded queues:
+ * 1) decode - images are opened and converted to LAB (by the constructor
+ *    of the segmenter) by several threads in parallel;
+ * 2) segment - jSLICp2D (or jSLICgray / jSLICmulti as in the plugin)
+ *    clustering and optionally the colour descriptors of superpixels;
+ * 3) write - the labellings and features are exported asynchronously.
+ * A full queue blocks the previous stage (backpressure) so only a few
+ * images are resident at once. Each stage has its own thread budget and
+ * the parallel loops of decode and segment stages run in their own pools.
+ */
+public class jSLICbatch {
+
+	// directory for the exported results
+	protected File outDir;
+	// segmentation parameters
+	protected int gridSize = 30;
+	protected float regul = 0.2f;
+	protected int maxIter = 9;
+	// thread budget of each stage
+	protected int decodeThreads, segmentThreads, writeThreads;
+	// capacity of the queues between stages
+	protected int queueSize = 4;
+	// export also the mean colour of each superpixel
+	protected boolean exportFeatures = false;
+	// export the labellings in the binary format instead of text
+	protected boolean binaryLabels = false;
+	// number of processed and failed images in the last run
+	protected AtomicInteger nbDone = new AtomicInteger(0);
+	protected AtomicInteger nbFailed = new AtomicInteger(0);
+
+	// image extensions accepted by listImages()
+	protected static final String[] IMAGE_EXTENSIONS = {".tif", ".tiff", ".png", ".jpg", ".jpeg", ".bmp", ".gif"};
+
+	/**
+	 * Constructor with the directory where the results are exported,
+	 * the thread budget is split as a quarter for decoding, the rest
+	 * for segmentation and a single writer
+	 *
+	 * @param out is the output directory, created if it does not exist
+	 */
+	public jSLICbatch (String out) {
+		this.outDir = new File(out);
+		int nb = Math.max(1, Threading.nbAvailableThread());
+		setThreads(Math.max(1, nb / 4), Math.max(1, nb - nb / 4), 1);
+	}
+
+	/**
+	 * set the thread budget of each stage
+	 *
+	 * @param decode is the nb of threads opening and converting images
+	 * @param segment is the nb of threads for the clustering
+	 * @param write is the nb of threads exporting the results
+	 */
+	public void setThreads(int decode, int segment, int write) {
+		this.decodeThreads = Math.max(1, decode);
+		this.segmentThreads = Math.max(1, segment);
+		this.writeThreads = Math.max(1, write);
+	}
+
+	/**
+	 * set the capacity of queues between stages, it bounds the number
+	 * of images waiting in memory
+	 *
+	 * @param size is the number of images in a queue
+	 */
+	public void setQueueSize(int size) {
+		this.queueSize = Math.max(1, size);
+	}
+
+	/**
+	 * export also the mean RGB colour of each superpixel into a CSV file
+	 *
+	 * @param b turns the export on
+	 */
+	public void setExportFeatures(boolean b) {
+		this.exportFeatures = b;
+	}
+
+	/**
+	 * export the labellings in the compact binary format (see LabelFile)
+	 * as <name>.lbl instead of the text <name>.txt
+	 *
+	 * @param b turns the binary export on
+	 */
+	public void setBinaryLabels(boolean b) {
+		this.binaryLabels = b;
+	}
+
+	/**
+	 * list all images in a directory by their extensions, sorted by name
+	 *
+	 * @param dir is the path to directory
+	 * @return String[] paths to images
+	 */
+	public static String[] listImages(String dir) {
+		ArrayList<String> paths = new ArrayList<String>();
+		File[] files = new File(dir).listFiles();
+		if (files == null) {
+			return new String[0];
+		}
+		for (File f : files) {
+			String name = f.getName().toLowerCase();
+			for (String ext : IMAGE_EXTENSIONS) {
+				if (f.isFile() && name.endsWith(ext)) {
+					paths.add(f.getPath());
+					break;
+				}
+			}
+		}
+		String[] res = paths.toArray(new String[paths.size()]);
+		Arrays.sort(res);
+		return res;
+	}
+
+	/**
+	 * Segment all images in the given directory
+	 *
+	 * @param dir is the path to directory with images
+	 * @param grid integer number defining the initial regular grid size
+	 * @param reg float defining the superpixel elasticity in range (0,1)
+	 * @return number of successfully processed images
+	 */
+	public int process (String dir, int grid, float reg) throws InterruptedException {
+		return process(listImages(dir), grid, reg);
+	}
+
+	/**
+	 * Segment all given images
+	 *
+	 * @param paths are the paths to images
+	 * @param grid integer number defining the initial regular grid size
+	 * @param reg float defining the superpixel elasticity in range (0,1)
+	 * @return number of successfully processed images
+	 */
+	public int process (String[] paths, int grid, float reg) throws InterruptedException {
+		return process(paths, grid, reg, 9);
+	}
+
+	/**
+	 * Segment all given images, the results are exported into the output
+	 * directory as <name>.txt (or <name>.lbl) labelling and <name>_features.csv
+	 *
+	 * @param paths are the paths to images
+	 * @param grid integer number defining the initial regular grid size
+	 * @param reg float defining the superpixel elasticity in range (0,1)
+	 * @param maxIter number of maximal iterations
+	 * @return number of successfully processed images
+	 */
+	public int process (final String[] paths, int grid, float reg, int maxIter) throws InterruptedException {
+		this.gridSize = grid;
+		this.regul = reg;
+		this.maxIter = maxIter;
+		nbDone.set(0);
+		nbFailed.set(0);
+		outDir.mkdirs();
+		long startTime = System.currentTimeMillis();
+
+		// more images in the segmentation stage at once, as parts of the
+		// clustering (e.g. connectivity) are sequential
+		int nbSegmenters = (segmentThreads + 3) / 4;
+		Logging.logMsg("SLIC batch: " + Integer.toString(paths.length) + " images with threads decode: "
+				+ Integer.toString(decodeThreads) + ", segment: " + Integer.toString(segmentThreads)
+				+ ", write: " + Integer.toString(writeThreads));
+
+		final BlockingQueue<BatchJob> decoded = new ArrayBlockingQueue<BatchJob>(queueSize);
+		final BlockingQueue<BatchJob> segmented = new ArrayBlockingQueue<BatchJob>(queueSize);
+		final ForkJoinPool decodePool = new ForkJoinPool(decodeThreads);
+		final ForkJoinPool segmentPool = new ForkJoinPool(segmentThreads);
+		ExecutorService decoders = Executors.newFixedThreadPool(decodeThreads);
+		ExecutorService segmenters = Executors.newFixedThreadPool(nbSegmenters);
+		ExecutorService writers = Executors.newFixedThreadPool(writeThreads);
+
+		// stage 1: take the next path, open and convert the image
+		final AtomicInteger next = new AtomicInteger(0);
+		for (int t = 0; t < decodeThreads; t++) {
+			decoders.execute(new Runnable() {
+				@Override
+				public void run() {
+					Threading.setThreadPool(decodePool);
+					try {
+						int i;
+						while ((i = next.getAndIncrement()) < paths.length) {
+							BatchJob job = decode(paths[i]);
+							if (job != null) {
+								decoded.put(job);
+							}
+						}
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+					} finally {
+						Threading.setThreadPool(null);
+					}
+				}
+			});
+		}
+		// stage 2: clustering till the end mark
+		for (int t = 0; t < nbSegmenters; t++) {
+			segmenters.execute(new Runnable() {
+				@Override
+				public void run() {
+					Threading.setThreadPool(segmentPool);
+					try {
+						BatchJob job;
+						while ((job = decoded.take()) != BatchJob.END) {
+							if (segment(job)) {
+								segmented.put(job);
+							}
+						}
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+					} finally {
+						Threading.setThreadPool(null);
+					}
+				}
+			});
+		}
+		// stage 3: export till the end mark
+		for (int t = 0; t < writeThreads; t++) {
+			writers.execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						BatchJob job;
+						while ((job = segmented.take()) != BatchJob.END) {
+							write(job);
+						}
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+					}
+				}
+			});
+		}
+
+		// close the stages one after another
+		try {
+			closeStage(decoders, decoded, nbSegmenters);
+			closeStage(segmenters, segmented, writeThreads);
+			writers.shutdown();
+			writers.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+		} finally {
+			decoders.shutdownNow();
+			segmenters.shutdownNow();
+			writers.shutdownNow();
+			decodePool.shutdown();
+			segmentPool.shutdown();
+		}
+
+		long estimTime = System.currentTimeMillis() - startTime;
+		Logging.logMsg("SLIC batch: processed " + Integer.toString(nbDone.get()) + ", failed "
+				+ Integer.toString(nbFailed.get()) + " -> took " + Float.toString((float)estimTime/1000) + "s");
+		return nbDone.get();
+	}
+
+	/**
+	 * wait till all workers of a stage finished and send the end mark
+	 * to each worker of the following stage
+	 */
+	private void closeStage(ExecutorService stage, BlockingQueue<BatchJob> queue, int nbNext) throws InterruptedException {
+		stage.shutdown();
+		stage.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+		for (int i = 0; i < nbNext; i++) {
+			queue.put(BatchJob.END);
+		}
+	}
+
+	/**
+	 * open an image and create its segmenter which converts the image
+	 *
+	 * @param path is the path to image
+	 * @return BatchJob or null if the image can not be processed
+	 */
+	protected BatchJob decode(String path) {
+		try {
+			ImagePlus im = IJ.openImage(path);
+			if (im == null) {
+				failed(path, "can not be opened");
+				return null;
+			}
+			if (im.getNSlices() > 1 || im.getNFrames() > 1) {
+				failed(path, "is not a 2D image");
+				return null;
+			}
+			return new BatchJob(path, im, createSegmenter(im));
+		} catch (Exception e) {
+			failed(path, e.toString());
+			return null;
+		}
+	}
+
+	/**
+	 * create the segmenter according the image type in the same way as the plugin
+	 *
+	 * @param im is the input ImagePlus
+	 * @return jSLICp2D
+	 */
+	protected jSLICp2D createSegmenter(ImagePlus im) {
+		if (im.getNChannels() > 1) {
+			return new jSLICmulti(im);
+		} else if (im.getType() == ImagePlus.COLOR_RGB) {
+			return new jSLICp2D(im);
+		} else {
+			return new jSLICgray(im);
+		}
+	}
+
+	/**
+	 * run the clustering and compute features, then release the image
+	 *
+	 * @param job is the decoded image
+	 * @return true if the segmentation succeeded
+	 */
+	protected boolean segment(BatchJob job) {
+		try {
+			job.sp.process(gridSize, regul, maxIter, 0.1f);
+			job.segm = job.sp.getSegmentation();
+			if (exportFeatures) {
+				Descriptors2D desc = new Descriptors2D(job.image, job.segm);
+				desc.computeColourMeanRGB();
+				job.features = desc.getDescMatrixFloat();
+			}
+			return true;
+		} catch (Exception e) {
+			failed(job.path, e.toString());
+			return false;
+		} finally {
+			job.image = null;
+			job.sp = null;
+		}
+	}
+
+	/**
+	 * export the labelling and features into the output directory
+	 *
+	 * @param job is the segmented image
+	 */
+	protected void write(BatchJob job) {
+		String name = new File(job.path).getName();
+		int dot = name.lastIndexOf('.');
+		if (dot > 0) {
+			name = name.substring(0, dot);
+		}
+		PrintWriter out = null;
+		try {
+			if (binaryLabels) {
+				LabelFile.write(new File(outDir, name + LabelFile.EXTENSION).getPath(), job.segm);
+			} else {
+				job.segm.exportToFile(new File(outDir, name + ".txt").getPath());
+			}
+			if (job.features != null) {
+				out = new PrintWriter(new File(outDir, name + "_features.csv"), "UTF-8");
+				for (int i = 0; i < job.features.length; i++) {
+					out.print(Integer.toString(i));
+					for (int j = 0; j < job.features[i].length; j++) {
+						out.print("," + Float.toString(job.features[i][j]));
+					}
+					out.println();
+				}
+			}
+			nbDone.incrementAndGet();
+		} catch (Exception e) {
+			failed(job.path, e.toString());
+		} finally {
+			if (out != null) {
+				out.close();
+			}
+		}
+	}
+
+	/**
+	 * log a failed image and count it
+	 */
+	private void failed(String path, String msg) {
+		nbFailed.incrementAndGet();
+		Logging.logMsg("SLIC batch: ERROR image '" + path + "' " + msg);
+	}
+
+	/**
+	 * @return number of failed images in the last run
+	 */
+	public int getNbFailed() {
+		return nbFailed.get();
+	}
+
+	/**
+	 * @return the output directory
+	 */
+	public File getOutputDir() {
+		return outDir;
+	}
+
+}
+
+/**
+ * an image passing through the pipeline stages
+ */
+class BatchJob {
+	// mark closing a stage
+	static final BatchJob END = new BatchJob(null, null, null);
+
+	final String path;
+	ImagePlus image;
+	jSLICp2D sp;
+	Labelling2D segm = null;
+	float[][] features = null;
+
+	BatchJob(String p, ImagePlus im, jSLICp2D s) {
+		path = p;
+		image = im;
+		sp = s;
+	}
+}
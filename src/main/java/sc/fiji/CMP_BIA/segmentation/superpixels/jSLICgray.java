@@ -0,0 +1,56 @@
+/**
+ * @file
+ */
+
+package sc.fiji.CMP_BIA.segmentation.superpixels;
+
+import ij.ImagePlus;
+
+import sc.fiji.CMP_BIA.tools.PixelAccess;
+
+/**
+ * @class SLIC superpixels for gray images
+ * @version 0.1
+ * @category image segmentation
+ *
+ * @brief SLIC superpixels on a single intensity channel in its native
+ * depth (8, 16 or 32 bit) with a 1D colour term, instead of converting
+ * the gray image to 8 bit and expanding it to 3 LAB channels.
+ *
+ * @details It is the single channel case of jSLICmulti, the intensities
+ * are read directly from the image and linearly stretched from the image
+ * range to (0, 255), which is the range of the L channel, so the
+ * regularisation has the same meaning as for colour images.
+ * RGB images are processed on their brightness.
+ */
+public class jSLICgray extends jSLICmulti {
+
+	/**
+	 * Constructor that sets the input image.
+	 *
+	 * @param im is the input ImagePlus
+	 */
+	public jSLICgray(ImagePlus im) {
+		super(im);
+	}
+
+	/**
+	 * the only channel is the intensity, for RGB image the brightness
+	 *
+	 * @see jSLICmulti#readChannels()
+	 */
+	@Override
+	protected PixelAccess[] readChannels() {
+		return new PixelAccess[]{ PixelAccess.wrap(image.getProcessor()) };
+	}
+
+	/**
+	 * get the intensities stretched to the range (0, 255)
+	 *
+	 * @return float[Width*Height] intensity image in row-major order
+	 */
+	public float[] getIntensity() {
+		return this.channels[0];
+	}
+
+}
@@ -0,0 +1,615 @@
+/**
+ * @file
+ */
+
+package sc.fiji.CMP_BIA.segmentation.superpixels;
+
+import java.util.Arrays;
+
+import ij.ImagePlus;
+import ij.process.ImageProcessor;
+
+import sc.fiji.CMP_BIA.tools.Logging;
+import sc.fiji.CMP_BIA.tools.PixelAccess;
+import sc.fiji.CMP_BIA.tools.Threading;
+
+/**
+ * @class SLIC superpixels for multi-channel images
+ * @version 0.1
+ * @category image segmentation
+ *
+ * @brief SLIC superpixels on any number of channels of a composite image
+ * (e.g. fluorescence panels) with optional weight of each channel.
+ *
+ * @details The channels are read in their native depth and each of them
+ * is linearly stretched from its own range to (0, 255), which is the range
+ * of the L channel, so the regularisation has the same meaning as for the
+ * colour images. The image is kept in planar form float[channels][W*H]
+ * and the colour distance is sum_c w_c (I_c - C_c)^2, there are separate
+ * row kernels for 1 to 4 channels so the JIT can unroll them. The cluster
+ * channels are kept in float, clusterColour holds them rounded which is
+ * also used for the convergence, the active set follows the float channels.
+ * An RGB image is taken as 3 channels and the integer distances are not
+ * supported.
+ */
+public class jSLICmulti extends jSLICp2D {
+
+	// range of the stretched channels, the same as for the L channel
+	protected static final float CHANNEL_RANGE = 255.f;
+	// stretched channels, planar in row-major order - dim float[channels][Width*Height]
+	protected float[][] channels;
+	// weight of each channel in the colour distance
+	protected float[] weights;
+	// vector of cluster's channels - dim float[nbClusters*channels], index (k*channels + c)
+	protected float[] clusterMeans;
+	// the cluster's channels before the last update
+	protected float[] lastMeans = null;
+
+	/**
+	 * Constructor that sets the input image.
+	 *
+	 * @param im is the input ImagePlus
+	 */
+	public jSLICmulti(ImagePlus im) {
+		super(im);
+	}
+
+	/**
+	 * Constructor that sets the input image and the channel weights.
+	 *
+	 * @param im is the input ImagePlus
+	 * @param w is the weight of each channel
+	 */
+	public jSLICmulti(ImagePlus im, float[] w) {
+		super(im);
+		setChannelWeights(w);
+	}
+
+	/**
+	 * Set the weight of each channel in the colour distance
+	 *
+	 * @param w is float[channels], null means all ones
+	 */
+	public void setChannelWeights(final float[] w) {
+		// the gradient depends on the weights
+		gradient = null;
+		weights = new float[nbChannels];
+		if (w == null) {
+			Arrays.fill(weights, 1.f);
+			return;
+		}
+		if (w.length != nbChannels) {
+			Logging.logMsg("ERROR: given " + Integer.toString(w.length) + " weights for " + Integer.toString(nbChannels) + " channels!");
+			Arrays.fill(weights, 1.f);
+			return;
+		}
+		System.arraycopy(w, 0, weights, 0, nbChannels);
+	}
+
+	/**
+	 * Read all channels in native depth and stretch each of them to the
+	 * range of the L channel
+	 */
+	@Override
+	protected void convertImage() {
+		PixelAccess[] px = readChannels();
+		nbChannels = px.length;
+		Logging.logMsg(" -> " + Integer.toString(nbChannels) + " channels of native depth");
+		channels = new float[nbChannels][];
+		for (int c = 0; c < nbChannels; c++) {
+			channels[c] = stretchChannel(px[c]);
+		}
+		setChannelWeights(null);
+	}
+
+	/**
+	 * gives access to the pixels of all image channels, for a composite
+	 * image its channels and for an RGB image the colour channels
+	 *
+	 * @return PixelAccess[channels]
+	 */
+	protected PixelAccess[] readChannels() {
+		int nb = image.getNChannels();
+		if (nb == 1 && image.getType() == ImagePlus.COLOR_RGB) {
+			final PixelAccess rgb = PixelAccess.wrap(image.getProcessor());
+			PixelAccess[] px = new PixelAccess[3];
+			for (int c = 0; c < 3; c++) {
+				px[c] = new ChannelPixelAccess(rgb, c);
+			}
+			return px;
+		}
+		PixelAccess[] px = new PixelAccess[nb];
+		for (int c = 0; c < nb; c++) {
+			ImageProcessor ip = (nb == 1) ? image.getProcessor()
+					: image.getStack().getProcessor(image.getStackIndex(c+1, 1, 1));
+			px[c] = PixelAccess.wrap(ip);
+		}
+		return px;
+	}
+
+	/**
+	 * linear stretch of the channel from its range to (0, CHANNEL_RANGE)
+	 *
+	 * @param px is the channel pixels
+	 * @return float[Width*Height] in row-major order
+	 */
+	protected float[] stretchChannel(final PixelAccess px) {
+		final int sz = width*height;
+		float min = Float.MAX_VALUE, max = -Float.MAX_VALUE, v;
+		for (int i = 0; i < sz; i++) {
+			v = px.getf(i);
+			min = Math.min(min, v);
+			max = Math.max(max, v);
+		}
+		Logging.logMsg(" -> channel in range (" + Float.toString(min) + ", " + Float.toString(max) + ")");
+
+		final double low = min;
+		final double scale = (max > min) ? CHANNEL_RANGE / ((double)max - min) : 1.;
+		final float[] res = new float[sz];
+		Threading.parallelFor(0, height, new Threading.RangeTask() {
+			@Override
+			public void run(int begin, int end) {
+				for (int idx = begin*width; idx < end*width; idx++) {
+					res[idx] = (float) ((px.getf(idx) - low) * scale);
+				}
+			}
+		});
+		return res;
+	}
+
+	/**
+	 * Initialisation of clusters on the regular grid
+	 */
+	@Override
+	protected void initClusters () {
+		// compute needed number of clusters
+		int nbClusters = (int) (Math.ceil((float)width/(float)gridSize) * Math.ceil((float)height/(float)gridSize));
+		clusterColour = new int[nbClusters][nbChannels];
+		clusterPosition = new int[nbClusters][2];
+		clusterMeans = new float[nbClusters*nbChannels];
+
+		// do initial assignment - assign labels by initial regular grid
+		int maxColumn = (int) Math.ceil(width / (float)gridSize);
+		for (int y=0; y<height; y++ ) {
+			for (int x=0; x<width; x++ ) {
+				labels[y*width + x] = (int) ((y/gridSize)*maxColumn + (x/gridSize));
+			}
+		}
+
+		update();
+		distGrid = null;
+	}
+
+	/**
+	 * Assign cluster index to each pixel, always the parallel pixel-centric
+	 * assignment (with the active set if it is switched on)
+	 */
+	@Override
+	protected void assignment () {
+		// the clusters were given from outside (warm start)
+		if (clusterMeans == null || clusterMeans.length != clusterColour.length*nbChannels) {
+			clusterMeans = new float[clusterColour.length*nbChannels];
+			for (int k=0; k<clusterColour.length; k++) {
+				for (int c=0; c<nbChannels; c++) {
+					clusterMeans[k*nbChannels + c] = clusterColour[k][c];
+				}
+			}
+		}
+		assignmentPixelCentric();
+	}
+
+	/**
+	 * @see jSLIC#assignWindowRow(int, int, int, int, float[], int[])
+	 */
+	@Override
+	protected void assignWindowRow (final int k, final int idx, final int n, final int gIdx,
+			final float[] row, final int[] rowInt) {
+		final int o = k*nbChannels;
+		// the colour distance factor of the cluster in adaptive mode
+		final float a = adaptiveCompactness ? clusterFactor[k] : 1.f;
+		switch (nbChannels) {
+			case 1:
+				distanceRow1(channels[0], clusterMeans[o], weights[0], a, idx, n, distGridRow, gIdx, row);
+				break;
+			case 2:
+				distanceRow2(channels[0], channels[1], clusterMeans[o], clusterMeans[o+1],
+						weights[0], weights[1], a, idx, n, distGridRow, gIdx, row);
+				break;
+			case 3:
+				distanceRow3(channels[0], channels[1], channels[2], clusterMeans[o], clusterMeans[o+1], clusterMeans[o+2],
+						weights[0], weights[1], weights[2], a, idx, n, distGridRow, gIdx, row);
+				break;
+			case 4:
+				distanceRow4(channels, clusterMeans, o, weights, a, idx, n, distGridRow, gIdx, row);
+				break;
+			default:
+				distanceRowN(channels, clusterMeans, o, weights, a, idx, n, distGridRow, gIdx, row);
+				break;
+		}
+		// if actual distance is smaller then the previous give new label
+		for (int t=0; t<n; t++) {
+			if (row[t] < distances[idx+t]) {
+				distances[idx+t] = row[t];
+				labels[idx+t] = k;
+			}
+		}
+	}
+
+	/**
+	 * distances of a run of pixels to a cluster for a single channel
+	 *
+	 * @param img is the channel
+	 * @param c is the cluster value
+	 * @param w is the channel weight
+	 * @param a is the colour distance factor of the cluster
+	 * @param idx is the image index of the first pixel
+	 * @param n is the number of pixels in the run
+	 * @param grid is the mirrored distance grid (distGridRow)
+	 * @param gIdx is the grid index of the first pixel
+	 * @param row is the output buffer of size at least n
+	 */
+	protected static void distanceRow1 (final float[] img, final float c, final float w, final float a,
+			final int idx, final int n, final float[] grid, final int gIdx, final float[] row) {
+		float d;
+		for (int t=0; t<n; t++) {
+			d = img[idx+t]-c;
+			row[t] = a * (w * d * d) + grid[gIdx+t];
+		}
+	}
+
+	/**
+	 * distances of a run of pixels to a cluster for two channels
+	 *
+	 * @see distanceRow1
+	 */
+	protected static void distanceRow2 (final float[] img0, final float[] img1, final float c0, final float c1,
+			final float w0, final float w1, final float a, final int idx, final int n, final float[] grid, final int gIdx, final float[] row) {
+		float d0, d1;
+		for (int t=0; t<n; t++) {
+			d0 = img0[idx+t]-c0;
+			d1 = img1[idx+t]-c1;
+			row[t] = a * ((w0 * d0 * d0) + (w1 * d1 * d1)) + grid[gIdx+t];
+		}
+	}
+
+	/**
+	 * distances of a run of pixels to a cluster for three channels
+	 *
+	 * @see distanceRow1
+	 */
+	protected static void distanceRow3 (final float[] img0, final float[] img1, final float[] img2,
+			final float c0, final float c1, final float c2, final float w0, final float w1, final float w2, final float a,
+			final int idx, final int n, final float[] grid, final int gIdx, final float[] row) {
+		float d0, d1, d2;
+		for (int t=0; t<n; t++) {
+			d0 = img0[idx+t]-c0;
+			d1 = img1[idx+t]-c1;
+			d2 = img2[idx+t]-c2;
+			row[t] = a * ((w0 * d0 * d0) + (w1 * d1 * d1) + (w2 * d2 * d2)) + grid[gIdx+t];
+		}
+	}
+
+	/**
+	 * distances of a run of pixels to a cluster for four channels
+	 *
+	 * @param img is the planar image float[4][]
+	 * @param clusters is the flat cluster channels
+	 * @param o is the offset of the cluster in clusters
+	 * @param w is the channel weights
+	 * @see distanceRow1
+	 */
+	protected static void distanceRow4 (final float[][] img, final float[] clusters, final int o, final float[] w, final float a,
+			final int idx, final int n, final float[] grid, final int gIdx, final float[] row) {
+		final float[] img0 = img[0], img1 = img[1], img2 = img[2], img3 = img[3];
+		final float c0 = clusters[o], c1 = clusters[o+1], c2 = clusters[o+2], c3 = clusters[o+3];
+		final float w0 = w[0], w1 = w[1], w2 = w[2], w3 = w[3];
+		float d0, d1, d2, d3;
+		for (int t=0; t<n; t++) {
+			d0 = img0[idx+t]-c0;
+			d1 = img1[idx+t]-c1;
+			d2 = img2[idx+t]-c2;
+			d3 = img3[idx+t]-c3;
+			row[t] = a * ((w0 * d0 * d0) + (w1 * d1 * d1) + (w2 * d2 * d2) + (w3 * d3 * d3)) + grid[gIdx+t];
+		}
+	}
+
+	/**
+	 * distances of a run of pixels to a cluster for any number of channels,
+	 * the channels are added one by one over the whole run
+	 *
+	 * @see distanceRow4
+	 */
+	protected static void distanceRowN (final float[][] img, final float[] clusters, final int o, final float[] w, final float a,
+			final int idx, final int n, final float[] grid, final int gIdx, final float[] row) {
+		Arrays.fill(row, 0, n, 0.f);
+		float d, cc, wc;
+		for (int c=0; c<img.length; c++) {
+			final float[] imgC = img[c];
+			cc = clusters[o+c];
+			wc = w[c];
+			for (int t=0; t<n; t++) {
+				d = imgC[idx+t]-cc;
+				row[t] += wc * d * d;
+			}
+		}
+		for (int t=0; t<n; t++) {
+			row[t] = a * row[t] + grid[gIdx+t];
+		}
+	}
+
+	/**
+	 * Update the cluster channels and positions, the image is split
+	 * into a fixed number of row strips so the sums are deterministic
+	 */
+	@Override
+	protected void update () {
+		final int nbK = clusterPosition.length;
+		final int nbC = nbChannels;
+		final int nbStrips = Math.max(1, Math.min(height, 16));
+		final double[][] sumC = new double[nbStrips][];
+		final long[][] sumXY = new long[nbStrips][];
+		final int[][] counts = new int[nbStrips][];
+
+		Threading.parallelFor(0, nbStrips, 1, new Threading.RangeTask() {
+			@Override
+			public void run(int begin, int end) {
+				for (int s = begin; s < end; s++) {
+					double[] sC = new double[nbK*nbC];
+					long[] sXY = new long[2*nbK];
+					int[] cnt = new int[nbK];
+					int k, idx;
+					for (int y = s*height/nbStrips; y < (s+1)*height/nbStrips; y++) {
+						idx = y*width;
+						for (int x = 0; x < width; x++, idx++) {
+							k = labels[idx];
+							for (int c = 0; c < nbC; c++) {
+								sC[k*nbC + c] += channels[c][idx];
+							}
+							sXY[2*k] += x;
+							sXY[2*k+1] += y;
+							cnt[k] ++;
+						}
+					}
+					sumC[s] = sC;
+					sumXY[s] = sXY;
+					counts[s] = cnt;
+				}
+			}
+		});
+
+		if (clusterMeans == null || clusterMeans.length != nbK*nbC) {
+			clusterMeans = new float[nbK*nbC];
+		}
+		lastMeans = clusterMeans.clone();
+		double sC;
+		long sX, sY;
+		int nb;
+		for (int k=0; k<nbK; k++) {
+			sX = 0; sY = 0; nb = 0;
+			// reduction in fixed order of strips
+			for (int s = 0; s < nbStrips; s++) {
+				sX += sumXY[s][2*k];
+				sY += sumXY[s][2*k+1];
+				nb += counts[s][k];
+			}
+			// empty cluster is reset as in the update
+			if (nb == 0) {
+				Arrays.fill(clusterMeans, k*nbC, (k+1)*nbC, 0.f);
+				Arrays.fill(clusterColour[k], 0);
+				Arrays.fill(clusterPosition[k], 0);
+				continue;
+			}
+			for (int c = 0; c < nbC; c++) {
+				sC = 0;
+				for (int s = 0; s < nbStrips; s++) {
+					sC += sumC[s][k*nbC + c];
+				}
+				clusterMeans[k*nbC + c] = (float) (sC / nb);
+				clusterColour[k][c] = Math.round(clusterMeans[k*nbC + c]);
+			}
+			clusterPosition[k][0] = (int) (sX / nb);
+			clusterPosition[k][1] = (int) (sY / nb);
+		}
+	}
+
+	/**
+	 * the change is detected on the float channels, so also a change
+	 * smaller then the rounding marks the cells of the cluster
+	 *
+	 * @see jSLIC#clusterChanged(int, int[][], int[][])
+	 */
+	@Override
+	protected boolean clusterChanged (final int k, final int[][] lastPosition, final int[][] lastColour) {
+		if (lastMeans == null || lastMeans.length != clusterMeans.length
+				|| !Arrays.equals(lastPosition[k], clusterPosition[k])) {
+			return true;
+		}
+		for (int c = 0; c < nbChannels; c++) {
+			if (lastMeans[k*nbChannels + c] != clusterMeans[k*nbChannels + c]) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * the maximal weighted squared colour distance of pixels to their
+	 * clusters, in parallel over row strips
+	 *
+	 * @see jSLIC#computeMaxColourDistances()
+	 */
+	@Override
+	protected float[] computeMaxColourDistances () {
+		final int nbK = clusterPosition.length;
+		final int nbC = nbChannels;
+		final int nbStrips = Math.max(1, Math.min(height, 4 * Threading.nbAvailableThread()));
+		final float[][] partial = new float[nbStrips][];
+		Threading.parallelFor(0, nbStrips, 1, new Threading.RangeTask() {
+			@Override
+			public void run(int begin, int end) {
+				for (int s = begin; s < end; s++) {
+					float[] mx = new float[nbK];
+					float dist, d;
+					int k;
+					for (int idx = (s*height/nbStrips)*width; idx < ((s+1)*height/nbStrips)*width; idx++) {
+						k = labels[idx];
+						dist = 0;
+						for (int c = 0; c < nbC; c++) {
+							d = channels[c][idx] - clusterMeans[k*nbC + c];
+							dist += weights[c] * d * d;
+						}
+						mx[k] = Math.max(mx[k], dist);
+					}
+					partial[s] = mx;
+				}
+			}
+		});
+		for (int s = 1; s < nbStrips; s++) {
+			for (int k = 0; k < nbK; k++) {
+				partial[0][k] = Math.max(partial[0][k], partial[s][k]);
+			}
+		}
+		return partial[0];
+	}
+
+	/**
+	 * @see jSLIC#setClusterColourAt(int, int)
+	 */
+	@Override
+	protected void setClusterColourAt (int k, int idx) {
+		for (int c = 0; c < nbChannels; c++) {
+			clusterMeans[k*nbChannels + c] = channels[c][idx];
+			clusterColour[k][c] = Math.round(channels[c][idx]);
+		}
+	}
+
+	/**
+	 * the gradient over the weighted channels
+	 *
+	 * @see jSLIC#computeGradientMap(float[])
+	 */
+	@Override
+	protected void computeGradientMap (final float[] grad) {
+		Threading.parallelFor(1, Math.max(1, height-1), new Threading.RangeTask() {
+			@Override
+			public void run(int begin, int end) {
+				int i;
+				float dx, dy, d;
+				for (int y = begin; y < end; y++) {
+					for (int x = 1; x < width-1; x++) {
+						i = y*width + x;
+						dx = 0;
+						dy = 0;
+						for (int c = 0; c < nbChannels; c++) {
+							d = channels[c][i-1] - channels[c][i+1];
+							dx += weights[c] * d*d;
+							d = channels[c][i-width] - channels[c][i+width];
+							dy += weights[c] * d*d;
+						}
+						grad[i] = (dx*dx) + (dy*dy);
+					}
+				}
+			}
+		});
+	}
+
+	/**
+	 * the fused pass is done as the assignment followed by the update
+	 */
+	@Override
+	protected float assignmentUpdateFused () {
+		assignment();
+		float err = computeResidualError();
+		update();
+		return err;
+	}
+
+	/**
+	 * the integer distances are not supported for the multi-channel images
+	 */
+	@Override
+	public void setIntegerDistances (boolean enable) {
+		if (enable) {
+			Logging.logMsg("SLIC: integer distances are not supported for multi-channel images.");
+		}
+	}
+
+	/**
+	 * the pyramid is not supported for the multi-channel images,
+	 * the clustering always runs in full resolution
+	 */
+	@Override
+	public void setPyramid (int levels, int refinement) {
+		if (levels > 0) {
+			Logging.logMsg("SLIC: pyramid is not supported for multi-channel images.");
+		}
+	}
+
+	/**
+	 * the colour sums are weighted by sqrt(w_c), so the merging compares
+	 * the segments by the same distance as the clustering
+	 *
+	 * @see jSLICp2D#computeColourSums(int[], int)
+	 */
+	@Override
+	protected double[][] computeColourSums(final int[] regions, int nb) {
+		double[][] sums = new double[nb][nbChannels];
+		for (int c = 0; c < nbChannels; c++) {
+			final float[] ch = channels[c];
+			final double w = Math.sqrt(weights[c]);
+			for (int i = 0; i < regions.length; i++) {
+				sums[regions[i]][c] += ch[i];
+			}
+			if (w != 1.) {
+				for (int l = 0; l < nb; l++) {
+					sums[l][c] *= w;
+				}
+			}
+		}
+		return sums;
+	}
+
+	/**
+	 * @return int number of clustered channels
+	 */
+	public int getNbChannels() {
+		return this.nbChannels;
+	}
+
+	/**
+	 * get the channels stretched to the range (0, 255)
+	 *
+	 * @return float[channels][Width*Height] planar image in row-major order
+	 */
+	public float[][] getChannels() {
+		return this.channels;
+	}
+
+}
+
+
+/**
+ * single channel of an RGB image
+ */
+class ChannelPixelAccess extends PixelAccess {
+
+	private final PixelAccess rgb;
+	private final int channel;
+
+	ChannelPixelAccess(PixelAccess px, int c) {
+		super(px.getWidth(), px.getHeight());
+		rgb = px;
+		channel = c;
+	}
+
+	@Override
+	public int get(int idx) {
+		return rgb.get(idx, channel);
+	}
+
+	@Override
+	public float getf(int idx) {
+		return rgb.get(idx, channel);
+	}
+
+}
@@ -4,13 +4,13 @@
 
 package sc.fiji.CMP_BIA.segmentation.superpixels;
 
-import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.HashMap;
 
 import sc.fiji.CMP_BIA.segmentation.structures.Labelling;
 import sc.fiji.CMP_BIA.segmentation.structures.Labelling2D;
+import sc.fiji.CMP_BIA.segmentation.structures.RegionAdjacencyGraph;
 import sc.fiji.CMP_BIA.segmentation.tools.Connectivity2D;
+import sc.fiji.CMP_BIA.segmentation.tools.RegionMerging;
 import sc.fiji.CMP_BIA.tools.Logging;
 import ij.ImagePlus;
 
@@ -45,7 +45,8 @@ public class jSLICp2D extends jSLIC {
 	protected void assignment () {
 		//assignmentSimple();
 		//assignmentFast();
-		assignmentParallel();
+		//assignmentParallel();
+		assignmentPixelCentric();
 	} 
 	
 	/**
@@ -57,59 +58,22 @@ public class jSLICp2D extends jSLIC {
 	}
 	
 	/**
-	 * counting the colour means over superpixels
+	 * summing the colours over segments
 	 * 
-	 * @param lb is initial labelling
-	 * @return int[nbLabels][3] colour means in CEIlab
+	 * @param regions is the labelling int[width*height] in row-major order
+	 * @param nb is the number of labels
+	 * @return double[nb][channels] colour sums
 	 */
-	protected int[][] computeColourMeans(Labelling2D lb) {
-		int l;
-		// colour means
-		int[][] means = new int[lb.getMaxLabel()+1][3];
-		// put minimal distances to maximum
-		for(int[] subarray : means) {
-			Arrays.fill(subarray, 0);
+	protected double[][] computeColourSums(final int[] regions, int nb) {
+		double[][] sums = new double[nb][3];
+		for (int i = 0; i < regions.length; i++) {
+			sums[regions[i]][0] += img[0][i];
+			sums[regions[i]][1] += img[1][i];
+			sums[regions[i]][2] += img[2][i];
 		}
-		// counting
-		int[] counts = new int[lb.getMaxLabel()+1];
-		Arrays.fill(counts, 0);
-		
-		// summing
-		for (int i = 0; i < lb.getWidth(); i++) {
-			for (int j = 0; j < lb.getHeight(); j++) {
-				l = lb.getLabel(i, j);
-				means[l][0] += img2D[i][j][0];
-				means[l][1] += img2D[i][j][1];
-				means[l][2] += img2D[i][j][2];
-				counts[l] ++;
-			}
-		}
-		
-		// norming
-		for (int i = 0; i < means.length; i++) {
-			means[i][0] /= counts[i];
-			means[i][1] /= counts[i];
-			means[i][2] /= counts[i];
-		}
-		
-		return means;
+		return sums;
 	}
 	
-	/**
-	 * 
-	 * @param c1
-	 * @param c2
-	 * @return
-	 */
-	protected float clrDiff(int[] c1, int[] c2) {
-		float dL = (float)(c2[0]-c1[0]);
-		float dA = (float)(c2[1]-c1[1]);
-		float dB = (float)(c2[2]-c1[2]);
-		float diff = (dL*dL) + (dA*dA) + (dB*dB);
-		diff = (float) Math.sqrt(diff);
-		return diff;
-	}
-		
 	/**
 	 * 
 	 * @param sizeTrashold
@@ -117,12 +81,12 @@ public class jSLICp2D extends jSLIC {
 	@Override
 	protected void enforceLabelConnectivity(){
 		// long startTime, estimTime;
-//		HashMap<Integer, ArrayList<Integer>> relabel = new HashMap<Integer, ArrayList<Integer>>();
 		
 		//startTime = System.currentTimeMillis();
 		Logging.logMsg(" -> running...");
 		// split all disconnected components
-		Labelling2D lb = new Labelling2D( Connectivity2D.enforceIndividualRegions(labels2D, Connectivity2D.CONNECT4) );
+		int[] regions = Connectivity2D.enforceIndividualRegions(labels, width, height, Connectivity2D.CONNECT4);
+		Labelling2D lb = new Labelling2D( regions, width, height );
 		nbLabels = lb.getMaxLabel()+1;
 		//estimTime = System.currentTimeMillis() - startTime;
 		//Logging.logMsg(" -> enforceIndividualRegions() took " + Float.toString((float)estimTime/1000) + "s");
@@ -131,64 +95,22 @@ public class jSLICp2D extends jSLIC {
 		// find the interconnectivity among segments
 		int mSize = 4*gridSize*gridSize;
 		int[] hist = lb.getLabelHist();
-		ArrayList<ArrayList<Integer>> connect = Connectivity2D.findSegmetNeighbors(lb.getData(), lb.getMaxLabel(), Connectivity2D.CONNECT4);
+		RegionAdjacencyGraph rag = RegionAdjacencyGraph.fromLabelling(regions, width, height, nbLabels, Connectivity2D.CONNECT4);
 		//estimTime = System.currentTimeMillis() - startTime;
 		//Logging.logMsg(" -> findSegmetNeighbors() took " + Float.toString((float)estimTime/1000) + "s");
 		//Logging.logMsg(" -> elements " + Integer.toString(hist.length) );
 				
 		//startTime = System.currentTimeMillis();
-		// compute the colour means of all segments
-		int[][] clrMeans = computeColourMeans(lb);
+		// compute the colour sums of all segments
+		double[][] clrSums = computeColourSums(regions, nbLabels);
 		//estimTime = System.currentTimeMillis() - startTime;
 		//Logging.logMsg(" -> computeColourMeans() took " + Float.toString((float)estimTime/1000) + "s");
 				
 		//startTime = System.currentTimeMillis();
-		int similarID;
-		float similarVal, rltSize;
-		// init LUT
-		int[] lut = lb.getLUT();
-		// over all segments
-		for (int i = 0; i < lut.length; i++) {
-			
-			// find closest colour
-			similarID = -1;
-			similarVal = Float.MAX_VALUE;
-			float diff;
-			for (int j = 0; j<connect.get(i).size(); j++) {
-				// compute diff
-				rltSize = (float)hist[ lut[connect.get(i).get(j)] ] / (float)mSize;
-				diff = clrDiff(clrMeans[i], clrMeans[ lut[connect.get(i).get(j)] ] ) / rltSize;
-				//diff = clrDiff(clrMeans[i], clrMeans[ lut[connect.get(i).get(j)] ] );
-				// find min
-				if (diff < similarVal) {
-					similarID = connect.get(i).get(j);
-					similarVal = diff;
-				}
-			}
-
-			//System.out.print(Integer.toString(similarID)+" / "+Integer.toString(connect.get(i).size()));
-			
-			rltSize = (float)hist[i] / (float)mSize;
-			//if ( (rltSize*rltSize*Math.log(Math.E+similarVal)) < 1. ) {
-			if ( (rltSize*rltSize*(1+similarVal)) < 0.25 ) {  // BEST
-			//if ( (rltSize*rltSize*(1+similarVal)) < 0.5 ) {
-			//if ( (rltSize*rltSize*(1+similarVal)*regul) < 1. ) {
-			//if ( (rltSize*rltSize*Math.log(Math.E+similarVal)/regul) < 0.05 ) {
-			//if (hist[i]>0  &&  hist[i] < (mSize/16)) {
-
-//				relabel.put( lut[ similarID ] , new ArrayList<Integer>(lut[i]) );
-				lut[i] = lut[ similarID ];
-				//lut[i] = lut[  connect.get(i).get(similarID) ];
-				//lut[i] = lut[ connect.get(i).get(0) ];
-				
-				if (i != lut[i]) {
-					updateClrMeansAndHist(clrMeans, hist, i, lut[i]);
-				}
-
-				//updateClustersAndLUT(lut, hist, clrMeans, i);
-//				updateClustersAndLUT(lut, hist, clrMeans, i, relabel);
-			}
-		}
+		// merge the small segments while (rltSize*rltSize*(1+similarVal)) < 0.25,
+		// always the one with lowest score first
+		RegionMerging merging = new RegionMerging(rag, hist, clrSums, mSize);
+		int[] lut = merging.merge(0.25);
 		//estimTime = System.currentTimeMillis() - startTime;
 		//Logging.logMsg(" -> merging() took " + Float.toString((float)estimTime/1000) + "s");
 		
@@ -199,81 +121,12 @@ public class jSLICp2D extends jSLIC {
 		//estimTime = System.currentTimeMillis() - startTime;
 		//Logging.logMsg(" -> determineContinuousLabelling() took " + Float.toString((float)estimTime/1000) + "s");
 		
-		labels2D = lb.getData();
+		labels = lb.getDataRowMajor();
 		
 		//super.enforceLabelConnectivity();
 
 		Logging.logMsg(" -> done.");
 	}
-
-
-	/**
-	 * 
-	 * @param lut
-	 * @param hist
-	 * @param clrMeans
-	 * @param idx
-	 */
-	@SuppressWarnings("unused")
-	private void updateClustersAndLUT(int[] lut, int[] hist, int[][] clrMeans, int idxOld) {
-		int idxNew = lut[idxOld];
-		// fixme - too slow... reimplemented as updateClustersAndLUT
-		for (int j = 0; j < idxOld; j++) {
-			if (lut[j] == idxOld) {
-				//updateClrMeansAndHist(clrMeans, hist, j, idxNew);
-				lut[j] = idxNew;
-			}
-		}
-	}
-	
-	/**
-	 * 
-	 * @param lut
-	 * @param hist
-	 * @param clrMeans
-	 * @param idxOld
-	 * @param relabel
-	 */
-	@SuppressWarnings("unused")
-	private void updateClustersAndLUT(int[] lut, int[] hist, int[][] clrMeans, int idxOld, HashMap<Integer, ArrayList<Integer>> relabel) {
-		int idxNew = lut[idxOld];
-		// find labels relabeld by this label
-		if (relabel.containsKey(idxOld)) {
-			int j;
-			// upadte segment by the previous segments
-			ArrayList<Integer> subList = relabel.get(idxOld);
-			for (int i = 0; i < subList.size(); i++) {
-				j = subList.get(i);
-				//updateClrMeansAndHist(clrMeans, hist, j, idxNew);
-				lut[j] = idxNew;
-			}
-			// merge lists
-			relabel.get(idxNew).addAll(subList);
-			relabel.remove(idxOld);
-		}
-	}
-
-	/**
-	 * @param clrMeans
-	 * @param hist
-	 * @param i
-	 * @param iNew
-	 */
-	protected void updateClrMeansAndHist(int[][] clrMeans, int[] hist, int i, int iNew) {
-		// update colours - sum
-		clrMeans[iNew][0] = clrMeans[iNew][0]*hist[iNew] + clrMeans[i][0]*hist[i]*hist[i];
-		clrMeans[iNew][1] = clrMeans[iNew][1]*hist[iNew] + clrMeans[i][1]*hist[i]*hist[i];
-		clrMeans[iNew][2] = clrMeans[iNew][2]*hist[iNew] + clrMeans[i][2]*hist[i]*hist[i];
-		
-		// update hist
-		hist[iNew] += hist[i];
-		hist[i] = 0;
-		
-		// update colours - norm
-		clrMeans[iNew][0] /= hist[iNew];
-		clrMeans[iNew][1] /= hist[iNew];
-		clrMeans[iNew][2] /= hist[iNew];
-	}
 			
 }
 
@@ -282,32 +135,36 @@ public class jSLICp2D extends jSLIC {
  * @author JB
  *
  */
-abstract class ThreadParticularImg2D extends Thread {
-	// source image
-	protected int[][][] img = null;
+abstract class ThreadParticularImg2D implements Runnable {
+	// source image - planar dim short[channels][width*height]
+	protected short[][] img = null;
+	// image size
+	protected int width, height;
 	// cluster centres
     protected int[][] clusterPositions = null;
     protected int[][] clusterColours = null;
-    // labelling
-    protected int[][] labels = null;
+    // labelling - row-major dim int[width*height]
+    protected int[] labels = null;
     // grid size
     protected int gridSize;
     // set range
     protected int[] rangeWidth, rangeHeight;
     	
-    { setPriority(Thread.NORM_PRIORITY); }  
-                	
     /**
      * initialisation / copy reference to all needed variables 
      * 
-     * @param im - image
+     * @param im - planar image
+     * @param w - image width
+     * @param h - image height
      * @param cPos - clusters positions
      * @param cClr - cluster colours
      * @param lab - given labelling
      * @param dGrid - recomputed grid
      */
-    public ThreadParticularImg2D(int[][][] im, int[][] cPos, int[][] cClr, int[][] lab, final int gSize) {
+    public ThreadParticularImg2D(short[][] im, final int w, final int h, int[][] cPos, int[][] cClr, int[] lab, final int gSize) {
 		img = im;
+		width = w;
+		height = h;
 		clusterPositions = cPos;
 		clusterColours = cClr;
 		labels = lab;
@@ -325,10 +182,10 @@ abstract class ThreadParticularImg2D extends Thread {
     public void setRangeImg(final int bW, final int eW, final int bH, final int eH) {
     	rangeWidth = new int[2];
     	rangeWidth[0] = (bW>=0) ? bW : 0;
-    	rangeWidth[1] = (eW<img.length) ? eW : img.length;
+    	rangeWidth[1] = (eW<width) ? eW : width;
     	rangeHeight = new int[2];
     	rangeHeight[0] = (bH>=0) ? bH : 0;
-    	rangeHeight[1] = (eH<img[0].length) ? eH : img[0].length;
+    	rangeHeight[1] = (eH<height) ? eH : height;
 	}
 }
 
@@ -340,13 +197,15 @@ abstract class ThreadParticularImg2D extends Thread {
 class ThreadAssignment extends ThreadParticularImg2D {  
     // precomputed distances
     protected float[] distGrid = null;
-    // estimated distances
-    protected float[][] distances = null;
+    // estimated distances - row-major dim float[width*height]
+    protected float[] distances = null;
     		
     /**
      * initialisation / copy reference to all needed variables 
      * 
-     * @param im - image
+     * @param im - planar image
+     * @param w - image width
+     * @param h - image height
      * @param gSize - grid size
      * @param dGrid - recomputed grid
      * @param cPos - clusters positions
@@ -354,8 +213,8 @@ class ThreadAssignment extends ThreadParticularImg2D {
      * @param dist - the internal distances
      * @param lab - given labelling
      */
-    public ThreadAssignment(final int[][][] im, final int gSize, final float[] dGrid, final int[][] cPos, final int[][] cClr, final float[][] dist, int[][] lab) {
-		super(im, cPos, cClr, lab, gSize);
+    public ThreadAssignment(final short[][] im, final int w, final int h, final int gSize, final float[] dGrid, final int[][] cPos, final int[][] cClr, final float[] dist, int[] lab) {
+		super(im, w, h, cPos, cClr, lab, gSize);
 		distGrid = dGrid;
 		distances = dist;
 	}
@@ -366,18 +225,19 @@ class ThreadAssignment extends ThreadParticularImg2D {
     @Override
     public void run() {  
     	// init
-    	int xB, xE, yB, yE, i;
+    	int xB, xE, yB, yE, i, idx;
 		float dist, dL, dA, dB;
 		int sz = 2*gridSize +1;
 		// temporary variables - differences
 		float distLAB;
+		final short[] imgL = img[0], imgA = img[1], imgB = img[2];
 		            	
     	// cycle over all clusters and compute distances to all pixels in surrounding
 		for (int k=0; k<clusterPositions.length; k++) {
 
 			// compute region of interest for given cluster of size 2*gridSize 
 			// which is inside the image
-			xB = Math.max(rangeHeight[0], (int)(clusterPositions[k][0]-gridSize));
+			xB = Math.max(rangeWidth[0], (int)(clusterPositions[k][0]-gridSize));
 			xE = Math.min((int)(clusterPositions[k][0]+gridSize), rangeWidth[1]);
 			yB = Math.max(rangeHeight[0], (int)(clusterPositions[k][1]-gridSize));
 			yE = Math.min((int)(clusterPositions[k][1]+gridSize), rangeHeight[1]);
@@ -385,19 +245,21 @@ class ThreadAssignment extends ThreadParticularImg2D {
 			//i=clusterPosition[k][0]-xB+gridSize;
 			
 			// cycle over all pixels in 2*gridSize region
-			for (int x=xB; x<xE; x++ ) {
+			for (int y=yB; y<yE; y++ ) {
 
 				//j=clusterPosition[k][1]-yB+gridSize;
 				
-				i = (clusterPositions[k][0]-x+gridSize) * sz;
-				i += clusterPositions[k][1]-yB+gridSize;
+				// the grid is symmetric so the row can be indexed by y
+				i = (clusterPositions[k][1]-y+gridSize) * sz;
+				i += clusterPositions[k][0]-xB+gridSize;
+				idx = y*width + xB;
 				
-				for (int y=yB; y<yE; y++, i-- ) {
+				for (int x=xB; x<xE; x++, i--, idx++ ) {
 
 					// faster then the for cycle...
-					dL = img[x][y][0]-clusterColours[k][0];
-					dA = img[x][y][1]-clusterColours[k][1];
-					dB = img[x][y][2]-clusterColours[k][2];
+					dL = imgL[idx]-clusterColours[k][0];
+					dA = imgA[idx]-clusterColours[k][1];
+					dB = imgB[idx]-clusterColours[k][2];
 					distLAB = (dL * dL) + (dA * dA) + (dB * dB);
 					
 					// by SLIC article
@@ -409,9 +271,9 @@ class ThreadAssignment extends ThreadParticularImg2D {
 					// dist = (float) (Math.sqrt(distLAB) + Math.sqrt(distPos) * (regul/(double)gridSize));
 										
 					// if actual distance is smaller then the previous give new label 
-					if (dist < distances[x][y]) {
-						labels[x][y] = k;
-						distances[x][y] = dist;
+					if (dist < distances[idx]) {
+						labels[idx] = k;
+						distances[idx] = dist;
 					}
 				}
 			}			
@@ -434,13 +296,15 @@ class ThreadUpdate extends ThreadParticularImg2D {
     /**
      * initialisation / copy reference to all needed variables 
      * 
-     * @param im - image
+     * @param im - planar image
+     * @param w - image width
+     * @param h - image height
      * @param cPos - clusters positions
      * @param cClr - cluster colours
      * @param lab - given labelling
      */
-    public ThreadUpdate(final int[][][] im, final int gSize, int[][] cPos, int[][] cClr, final int[][] lab, int[] nbPx) {
-		super(im, cPos, cClr, lab, gSize);
+    public ThreadUpdate(final short[][] im, final int w, final int h, final int gSize, int[][] cPos, int[][] cClr, final int[] lab, int[] nbPx) {
+		super(im, w, h, cPos, cClr, lab, gSize);
     	nbPixels = nbPx;
 	}
     
@@ -494,15 +358,17 @@ class ThreadUpdate extends ThreadParticularImg2D {
 		for(int[] subarray : clusterColours) {			Arrays.fill(subarray, 0);		}
 		clusterPositions = new int[nbPixels.length][2];
 		for(int[] subarray : clusterPositions) {			Arrays.fill(subarray, 0);		}
-		int k;    	
+		int k, idx;    	
+		final short[] imgL = img[0], imgA = img[1], imgB = img[2];
    		// cycle over all pixels in region
-		for (int x=rangeWidth[0]; x<rangeWidth[1]; x++ ) {
-			for (int y=rangeHeight[0]; y<rangeHeight[1]; y++) {
-				k = labels[x][y];
+		for (int y=rangeHeight[0]; y<rangeHeight[1]; y++) {
+			idx = y*width + rangeWidth[0];
+			for (int x=rangeWidth[0]; x<rangeWidth[1]; x++, idx++ ) {
+				k = labels[idx];
 				// over all image channels
-				clusterColours[k][0] += img[x][y][0];
-				clusterColours[k][1] += img[x][y][1];
-				clusterColours[k][2] += img[x][y][2];
+				clusterColours[k][0] += imgL[idx];
+				clusterColours[k][1] += imgA[idx];
+				clusterColours[k][2] += imgB[idx];
 				// over all positions
 				clusterPositions[k][0] += x;
 				clusterPositions[k][1] += y;
@@ -0,0 +1,143 @@
+/**
+ * @file
+ */
+
+package sc.fiji.CMP_BIA.segmentation.superpixels;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+
+import sc.fiji.CMP_BIA.segmentation.structures.Labelling2D;
+import sc.fiji.CMP_BIA.tools.Logging;
+
+/**
+ * @class SLIC superpixels for time-lapse
+ * @version 0.1
+ * @category image segmentation
+ *
+ * @brief SLIC superpixels over a time-lapse sequence where each frame is
+ * warm started from the converged cluster centres of the previous frame.
+ *
+ * @details Consecutive frames differ only slightly so the clustering
+ * converges in a few iterations, and the segments are labelled by the
+ * cluster index which is kept over all frames, so the superpixels can be
+ * tracked. The frames are taken from the time dimension of a hyperstack,
+ * or from the slices if the image has no time frames.
+ */
+public class jSLICtemporal {
+
+	// the time-lapse image
+	protected ImagePlus image;
+	protected int nbFrames;
+	// tolerance in mean movement of cluster centres for warm started frames
+	protected int convergenceShift = 1;
+	// segmentation of each frame by cluster indexes
+	protected Labelling2D[] segmentations = null;
+	// number of iterations for each frame
+	protected int[] nbIterations = null;
+
+	/**
+	 * Constructor that sets the input time-lapse image.
+	 *
+	 * @param im is the input ImagePlus
+	 */
+	public jSLICtemporal (ImagePlus im) {
+		this.image = im;
+		// (width, height, nChannels, nSlices, nFrames)
+		int[] dims = image.getDimensions();
+		this.nbFrames = (dims[4] > 1) ? dims[4] : dims[3];
+	}
+
+	/**
+	 * Set the tolerance in mean movement of cluster centres (in pixels and colour
+	 * units) when a warm started frame is considered as converged
+	 *
+	 * @param shift is the maximal mean change of the cluster centres
+	 */
+	public void setConvergenceShift (int shift) {
+		this.convergenceShift = shift;
+	}
+
+	/**
+	 * Process the whole sequence
+	 *
+	 * @param grid integer number defining the initial regular grid size
+	 * @param reg float defining the superpixel elasticity in range (0,1)
+	 */
+	public void process (int grid, float reg) {
+		process (grid, reg, 9);
+	}
+
+	/**
+	 * Process the whole sequence
+	 *
+	 * @param grid integer number defining the initial regular grid size
+	 * @param reg float defining the superpixel elasticity in range (0,1)
+	 * @param maxIter number of maximal iterations per frame
+	 */
+	public void process (int grid, float reg, int maxIter) {
+		segmentations = new Labelling2D[nbFrames];
+		nbIterations = new int[nbFrames];
+		ImageStack stack = image.getStack();
+		int[][] positions = null, colours = null;
+		int[] clusterLabels = null;
+
+		for (int t = 0; t < nbFrames; t++) {
+			Logging.logMsg("SLIC temporal: frame " + Integer.toString(t+1) + " / " + Integer.toString(nbFrames));
+			ImagePlus frame = new ImagePlus("frame", stack.getProcessor(frameIndex(t)));
+			jSLIC sp = new jSLICp2D(frame);
+			if (positions != null) {
+				sp.setInitialClusters(positions, colours, clusterLabels);
+				sp.setConvergenceShift(convergenceShift);
+			}
+			sp.process(grid, reg, maxIter, 0.1f);
+
+			positions = sp.getClusterPositions();
+			colours = sp.getClusterColours();
+			clusterLabels = sp.getClusterLabels();
+			segmentations[t] = new Labelling2D(clusterLabels, sp.width, sp.height);
+			nbIterations[t] = sp.getNbIterations();
+		}
+	}
+
+	/**
+	 * the stack index of given frame
+	 *
+	 * @param t is the frame index starting from 0
+	 * @return int stack index starting from 1
+	 */
+	protected int frameIndex(int t) {
+		if (image.getNFrames() > 1) {
+			return image.getStackIndex(1, 1, t+1);
+		}
+		return t+1;
+	}
+
+	/**
+	 * gives segmentation of given frame labelled by the cluster indexes
+	 * which are consistent over all frames
+	 *
+	 * @param t is the frame index starting from 0
+	 * @return Labelling2D
+	 */
+	public Labelling2D getSegmentation(int t) {
+		return segmentations[t];
+	}
+
+	/**
+	 * gives the number of performed iterations per frame
+	 *
+	 * @return int[nbFrames]
+	 */
+	public int[] getNbIterations() {
+		return nbIterations;
+	}
+
+	/**
+	 * @return int number of processed frames
+	 */
+	public int getNbFrames() {
+		return nbFrames;
+	}
+
+}
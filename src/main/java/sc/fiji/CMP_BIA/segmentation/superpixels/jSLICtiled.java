@@ -0,0 +1,539 @@
+/**
+ * @file
+ */
+
+package sc.fiji.CMP_BIA.segmentation.superpixels;
+
+import ij.ImagePlus;
+import ij.process.ByteProcessor;
+import ij.process.ColorProcessor;
+import ij.process.ImageProcessor;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+
+import sc.fiji.CMP_BIA.segmentation.structures.Labelling2D;
+import sc.fiji.CMP_BIA.tools.Logging;
+import sc.fiji.CMP_BIA.tools.TileSource;
+import sc.fiji.CMP_BIA.tools.converters.ConvertImage;
+
+/**
+ * @class SLIC superpixels in tiles
+ * @version 0.1
+ * @category image segmentation
+ *
+ * @brief Out-of-core SLIC superpixels for huge 2D images (e.g. whole-slide
+ * histology) which do not fit into memory. The image is streamed tile by
+ * tile from a TileSource and only a single tile with its overlap is resident.
+ *
+ * @details The superpixels follow one global regular grid, the tiles are
+ * aligned to this grid so each cluster has a global index and it is owned
+ * by the tile containing its initial seed. The processing has two passes:
+ * 1) clustering - tiles in raster order are segmented with an overlap of
+ *    2*gridSize, the clusters owned by already processed tiles are kept
+ *    fixed so the seams follow the finished neighbours, and the final
+ *    centres of owned clusters are stored in the global cluster table;
+ * 2) labelling - each pixel is assigned to its nearest cluster from the
+ *    global table, so the labels are globally consistent across seams.
+ * The labelling is either assembled in memory as Labelling2D (including
+ * the connectivity enforcement) or streamed into a raw label file.
+ * The 16bit and 32bit gray images are linearly stretched into 8bit by
+ * the intensity range of the whole source, found in an extra pass.
+ * A source opened from a path is owned by this object and released by
+ * close(), the given sources are left open for the caller.
+ */
+public class jSLICtiled implements AutoCloseable {
+
+	// source of image tiles
+	protected TileSource source;
+	// the source was opened here so it is also closed here
+	protected boolean ownSource = false;
+	protected int width, height;
+	// size of tile, multiple of the grid size
+	protected int tileSize = 1024;
+	// initial regular grid size
+	protected int gridSize;
+	// superpixel elasticity in range (0,1)
+	protected float regul;
+	// nb of grid cells (clusters) in each direction
+	protected int nbCols, nbRows;
+	// global cluster table, for cluster k it is {x, y, L, a, b} at k*CLUSTER_STRIDE
+	protected int[] clusters = null;
+	// clusters which have got some pixels assigned
+	protected boolean[] alive = null;
+	// number of estimated segments (labels)
+	protected int nbLabels;
+	// global intensity range {min, max} of gray images deeper then 8bit
+	protected double[] grayRange = null;
+
+	protected static final int CLUSTER_STRIDE = 5;
+
+	/**
+	 * Constructor over image in memory or a virtual image
+	 *
+	 * @param im is the input ImagePlus
+	 */
+	public jSLICtiled (ImagePlus im) {
+		this(TileSource.fromImage(im));
+	}
+
+	/**
+	 * Constructor over any source of image tiles,
+	 * e.g. TileSource.fromTiff(path) for reading from disk
+	 *
+	 * @param src is the TileSource
+	 */
+	public jSLICtiled (TileSource src) {
+		this.source = src;
+		this.width = src.getWidth();
+		this.height = src.getHeight();
+	}
+
+	/**
+	 * Constructor reading the tiles directly from a TIFF file, the file
+	 * stays open till close(), e.g. in try-with-resources
+	 *
+	 * @param path is the path to the uncompressed TIFF image
+	 * @throws IOException if the file can not be read or is not supported
+	 */
+	public jSLICtiled (String path) throws IOException {
+		this(TileSource.fromTiff(path));
+		this.ownSource = true;
+	}
+
+	/**
+	 * release the source if it was opened by this object
+	 */
+	@Override
+	public void close() {
+		if (ownSource) {
+			source.close();
+			ownSource = false;
+		}
+	}
+
+	/**
+	 * set the tile size, it is rounded up to multiple of the grid size
+	 *
+	 * @param size is the size of tile side in pixels
+	 */
+	public void setTileSize(int size) {
+		this.tileSize = size;
+	}
+
+	/**
+	 * Process the clustering over all tiles
+	 *
+	 * @param grid integer number defining the initial regular grid size
+	 * @param reg float defining the superpixel elasticity in range (0,1)
+	 */
+	public void process (int grid, float reg) throws IOException {
+		process (grid, reg, 9);
+	}
+
+	/**
+	 * Process the clustering over all tiles, the labelling is computed
+	 * by getSegmentation() or saveSegmentation(path)
+	 *
+	 * @param grid integer number defining the initial regular grid size
+	 * @param reg float defining the superpixel elasticity in range (0,1)
+	 * @param maxIter number of maximal iterations per tile
+	 */
+	public void process (int grid, float reg, int maxIter) throws IOException {
+		this.gridSize = (grid < 5) ? 5 : grid;
+		this.regul = (reg < 0) ? 0 : reg;
+		// align the tiles to the grid
+		int cells = Math.max(1, (int) Math.ceil(tileSize / (float)gridSize));
+		tileSize = cells * gridSize;
+
+		nbCols = (int) Math.ceil(width / (float)gridSize);
+		nbRows = (int) Math.ceil(height / (float)gridSize);
+		clusters = new int[nbCols * nbRows * CLUSTER_STRIDE];
+		alive = new boolean[nbCols * nbRows];
+
+		int nbTilesX = (int) Math.ceil(width / (float)tileSize);
+		int nbTilesY = (int) Math.ceil(height / (float)tileSize);
+		int margin = 2 * gridSize;
+		long startTime = System.currentTimeMillis();
+
+		Logging.logMsg("SLIC tiled: running with gridSize: " + Integer.toString(gridSize)
+				+ " regularity " + Float.toString(regul) + " over " + Integer.toString(nbTilesX*nbTilesY) + " tiles");
+
+		for (int tr = 0; tr < nbTilesY; tr++) {
+			for (int tc = 0; tc < nbTilesX; tc++) {
+				Logging.logMsg("SLIC tiled: clustering tile [" + Integer.toString(tc) + ", " + Integer.toString(tr) + "]");
+				// tile with its overlap inside the image
+				int x0 = Math.max(0, tc*tileSize - margin);
+				int y0 = Math.max(0, tr*tileSize - margin);
+				int x1 = Math.min(width, (tc+1)*tileSize + margin);
+				int y1 = Math.min(height, (tr+1)*tileSize + margin);
+
+				TileClustering slic = new TileClustering(readTile(x0, y0, x1-x0, y1-y0), x0, y0, x1-x0, y1-y0);
+				slic.initParameters(gridSize, regul);
+				slic.initTileClusters(this, tc, tr);
+				slic.clustering(maxIter);
+				slic.storeClusters(this, tc, tr);
+			}
+		}
+
+		long estimTime = System.currentTimeMillis() - startTime;
+		Logging.logMsg("SLIC tiled: clustering took " + Float.toString((float)estimTime/1000) + "s");
+	}
+
+	/**
+	 * read the image region and convert it into LAB colour space, the gray
+	 * images deeper then 8bit are stretched by the global intensity range
+	 * so all tiles share the same scaling
+	 *
+	 * @return short[channels][w*h] planar image in row-major order
+	 */
+	protected short[][] readTile(int x, int y, int w, int h) throws IOException {
+		ImageProcessor ip = source.readRegion(x, y, w, h);
+		if (ip instanceof ColorProcessor) {
+			return ConvertImage.rgb2cieLABplanar(ip);
+		}
+		if ( !(ip instanceof ByteProcessor) ) {
+			if (grayRange == null) {
+				grayRange = sourceRange();
+			}
+			ip.setMinAndMax(grayRange[0], grayRange[1]);
+			ip = ip.convertToByte(true);
+		}
+		return ConvertImage.gray2cieLABplanar(ip);
+	}
+
+	/**
+	 * find the intensity range over the whole source, it is streamed
+	 * tile by tile in the same way as the clustering
+	 *
+	 * @return double[] {min, max}
+	 */
+	protected double[] sourceRange() throws IOException {
+		double min = Double.MAX_VALUE, max = -Double.MAX_VALUE;
+		for (int y = 0; y < height; y += tileSize) {
+			for (int x = 0; x < width; x += tileSize) {
+				ImageProcessor ip = source.readRegion(x, y, Math.min(width, x+tileSize) - x, Math.min(height, y+tileSize) - y);
+				for (int i = 0; i < ip.getPixelCount(); i++) {
+					float v = ip.getf(i);
+					if (v < min) { min = v; }
+					if (v > max) { max = v; }
+				}
+			}
+		}
+		// constant image would give zero range
+		if (max <= min) {
+			max = min + 1;
+		}
+		Logging.logMsg("SLIC tiled: intensity range [" + Double.toString(min) + ", " + Double.toString(max) + "]");
+		return new double[]{min, max};
+	}
+
+	/**
+	 * Assign labels (global cluster indexes) to the given tile
+	 * with respect to the final global cluster table
+	 *
+	 * @return int[w*h] in row-major order
+	 */
+	protected int[] labelTile(int x, int y, int w, int h) throws IOException {
+		TileClustering slic = new TileClustering(readTile(x, y, w, h), x, y, w, h);
+		slic.initParameters(gridSize, regul);
+		return slic.assignFixedClusters(this);
+	}
+
+	/**
+	 * Compute the labelling in memory followed by enforcing the label
+	 * connectivity as in the standard jSLIC
+	 *
+	 * @return Labelling2D of the whole image
+	 */
+	public Labelling2D getSegmentation() throws IOException {
+		int nbTilesX = (int) Math.ceil(width / (float)tileSize);
+		int nbTilesY = (int) Math.ceil(height / (float)tileSize);
+		// the standard post-processing over whole image, no colours are needed
+		TileClustering whole = new TileClustering(null, 0, 0, width, height);
+		whole.initParameters(gridSize, regul);
+		int[] labels = whole.labels;
+
+		Logging.logMsg("SLIC tiled: labelling...");
+		for (int tr = 0; tr < nbTilesY; tr++) {
+			for (int tc = 0; tc < nbTilesX; tc++) {
+				int x0 = tc*tileSize, y0 = tr*tileSize;
+				int w = Math.min(width, x0+tileSize) - x0;
+				int h = Math.min(height, y0+tileSize) - y0;
+				int[] lab = labelTile(x0, y0, w, h);
+				for (int j = 0; j < h; j++) {
+					System.arraycopy(lab, j*w, labels, (y0+j)*width + x0, w);
+				}
+			}
+		}
+
+		Logging.logMsg("SLIC tiled: enforce label connectivity.");
+		whole.enforceLabelConnectivity();
+		nbLabels = whole.getNbLabels();
+
+		return whole.getSegmentation();
+	}
+
+	/**
+	 * Stream the labelling into a raw file of signed 32bit integers in
+	 * big-endian and row-major order (it can be opened in ImageJ by
+	 * File>Import>Raw), only one band of tiles is resident in memory.
+	 * The labels are the global cluster indexes without the connectivity
+	 * enforcement which needs the whole image.
+	 *
+	 * @param path is the output file
+	 */
+	public void saveSegmentation(String path) throws IOException {
+		int nbTilesX = (int) Math.ceil(width / (float)tileSize);
+		int nbTilesY = (int) Math.ceil(height / (float)tileSize);
+		RandomAccessFile file = new RandomAccessFile(path, "rw");
+		file.setLength((long)width * height * 4);
+
+		Logging.logMsg("SLIC tiled: labelling into '" + path + "'");
+		try {
+			for (int tr = 0; tr < nbTilesY; tr++) {
+				int y0 = tr*tileSize;
+				int h = Math.min(height, y0+tileSize) - y0;
+				// one band of labels
+				int[] band = new int[width * h];
+				for (int tc = 0; tc < nbTilesX; tc++) {
+					int x0 = tc*tileSize;
+					int w = Math.min(width, x0+tileSize) - x0;
+					int[] lab = labelTile(x0, y0, w, h);
+					for (int j = 0; j < h; j++) {
+						System.arraycopy(lab, j*w, band, j*width + x0, w);
+					}
+				}
+				// the band is continuous part of the file
+				ByteBuffer buf = ByteBuffer.allocate(width * 4);
+				file.seek((long)y0 * width * 4);
+				for (int j = 0; j < h; j++) {
+					buf.clear();
+					buf.asIntBuffer().put(band, j*width, width);
+					file.write(buf.array());
+				}
+			}
+		} finally {
+			file.close();
+		}
+		nbLabels = nbCols * nbRows;
+	}
+
+	/**
+	 * gives the number of all various labels in segmentation
+	 *
+	 * @return int number of labels
+	 */
+	public int getNbLabels() {
+		return this.nbLabels;
+	}
+
+	/**
+	 * gives the global cluster table
+	 *
+	 * @return int[nbClusters*5] with {x, y, L, a, b} per cluster
+	 */
+	public int[] getClusters() {
+		return this.clusters;
+	}
+
+}
+
+
+/**
+ * @class Tile clustering
+ *
+ * @brief SLIC restricted to a single tile, the local clusters are mapped
+ * to the global clusters of jSLICtiled by the grid cell they start in
+ */
+class TileClustering extends jSLIC {
+
+	// tile origin in the whole image
+	protected int originX, originY;
+	// range of global grid cells covering the tile
+	protected int cellX, cellY, cellCols, cellRows;
+	// global cluster index for each local cluster
+	protected int[] globalIdx = null;
+	// local clusters which may not be changed
+	protected boolean[] fixed = null;
+	// values of fixed clusters, dim int[nbClusters][positions]
+	protected int[][] fixedPosition = null;
+	protected int[][] fixedColour = null;
+
+	/**
+	 * @param planes is the tile image in planar form
+	 * @param x0 is the tile begin in width
+	 * @param y0 is the tile begin in height
+	 * @param w is the tile width
+	 * @param h is the tile height
+	 */
+	public TileClustering(short[][] planes, int x0, int y0, int w, int h) {
+		super(planes, w, h);
+		originX = x0;
+		originY = y0;
+	}
+
+	@Override
+	protected void assignment () {
+		assignmentFast();
+	}
+
+	@Override
+	protected void update () {
+		updateParallel();
+		// restore the clusters owned by already finished tiles
+		for (int k = 0; k < fixed.length; k++) {
+			if (fixed[k]) {
+				clusterPosition[k][0] = fixedPosition[k][0];
+				clusterPosition[k][1] = fixedPosition[k][1];
+				System.arraycopy(fixedColour[k], 0, clusterColour[k], 0, clusterColour[k].length);
+			}
+		}
+	}
+
+	/**
+	 * set the range of grid cells covering the tile
+	 */
+	protected void initCells(jSLICtiled tiled) {
+		cellX = originX / gridSize;
+		cellY = originY / gridSize;
+		cellCols = (originX + width + gridSize-1) / gridSize - cellX;
+		cellRows = (originY + height + gridSize-1) / gridSize - cellY;
+		int n = cellCols * cellRows;
+		globalIdx = new int[n];
+		fixed = new boolean[n];
+		fixedPosition = new int[n][2];
+		fixedColour = new int[n][img.length];
+		clusterPosition = new int[n][2];
+		clusterColour = new int[n][img.length];
+		for (int r = 0; r < cellRows; r++) {
+			for (int c = 0; c < cellCols; c++) {
+				globalIdx[r*cellCols + c] = (cellY+r) * tiled.nbCols + (cellX+c);
+			}
+		}
+	}
+
+	/**
+	 * copy the global cluster into fixed local cluster in local coordinates,
+	 * the cluster without pixels is moved out of reach of any pixel
+	 */
+	protected void fixCluster(jSLICtiled tiled, int k) {
+		int g = globalIdx[k] * jSLICtiled.CLUSTER_STRIDE;
+		fixed[k] = true;
+		if (tiled.alive[globalIdx[k]]) {
+			fixedPosition[k][0] = tiled.clusters[g] - originX;
+			fixedPosition[k][1] = tiled.clusters[g+1] - originY;
+		} else {
+			fixedPosition[k][0] = -4 * gridSize;
+			fixedPosition[k][1] = -4 * gridSize;
+		}
+		for (int c = 0; c < fixedColour[k].length; c++) {
+			fixedColour[k][c] = tiled.clusters[g+2+c];
+		}
+	}
+
+	/**
+	 * initial labelling by the global regular grid, the clusters of already
+	 * processed tiles (in raster order) are fixed
+	 *
+	 * @param tiled is the parent holding the global cluster table
+	 * @param tc is the tile column
+	 * @param tr is the tile row
+	 */
+	public void initTileClusters(jSLICtiled tiled, int tc, int tr) {
+		initCells(tiled);
+		int cellsPerTile = tiled.tileSize / gridSize;
+		for (int k = 0; k < globalIdx.length; k++) {
+			int ownerC = (cellX + k % cellCols) / cellsPerTile;
+			int ownerR = (cellY + k / cellCols) / cellsPerTile;
+			if (ownerR < tr || (ownerR == tr && ownerC < tc)) {
+				fixCluster(tiled, k);
+			}
+		}
+
+		// do initial assignment - assign labels by initial regular grid
+		for (int y=0; y<height; y++ ) {
+			for (int x=0; x<width; x++ ) {
+				labels[y*width + x] = ((originY+y)/gridSize - cellY) * cellCols + ((originX+x)/gridSize - cellX);
+			}
+		}
+		update();
+	}
+
+	/**
+	 * write the clusters owned by this tile into the global cluster table
+	 *
+	 * @param tiled is the parent holding the global cluster table
+	 * @param tc is the tile column
+	 * @param tr is the tile row
+	 */
+	public void storeClusters(jSLICtiled tiled, int tc, int tr) {
+		int cellsPerTile = tiled.tileSize / gridSize;
+		int[] counts = new int[globalIdx.length];
+		for (int i = 0; i < labels.length; i++) {
+			counts[labels[i]] ++;
+		}
+		for (int k = 0; k < globalIdx.length; k++) {
+			int ownerC = (cellX + k % cellCols) / cellsPerTile;
+			int ownerR = (cellY + k / cellCols) / cellsPerTile;
+			if (ownerC != tc || ownerR != tr) {
+				continue;
+			}
+			int g = globalIdx[k] * jSLICtiled.CLUSTER_STRIDE;
+			tiled.alive[globalIdx[k]] = (counts[k] > 0);
+			tiled.clusters[g] = clusterPosition[k][0] + originX;
+			tiled.clusters[g+1] = clusterPosition[k][1] + originY;
+			for (int c = 0; c < clusterColour[k].length; c++) {
+				tiled.clusters[g+2+c] = clusterColour[k][c];
+			}
+		}
+	}
+
+	/**
+	 * assign the tile pixels to the final global clusters, the clusters
+	 * in the range of 2*gridSize around the tile are taken into account
+	 *
+	 * @param tiled is the parent holding the global cluster table
+	 * @return int[w*h] global cluster indexes in row-major order
+	 */
+	public int[] assignFixedClusters(jSLICtiled tiled) {
+		int x0 = Math.max(0, originX - 2*gridSize) / gridSize;
+		int y0 = Math.max(0, originY - 2*gridSize) / gridSize;
+		int x1 = Math.min(tiled.nbCols, (originX + width + 3*gridSize-1) / gridSize);
+		int y1 = Math.min(tiled.nbRows, (originY + height + 3*gridSize-1) / gridSize);
+		cellX = x0;
+		cellY = y0;
+		cellCols = x1 - x0;
+		cellRows = y1 - y0;
+
+		int n = cellCols * cellRows;
+		globalIdx = new int[n];
+		fixed = new boolean[n];
+		fixedPosition = new int[n][2];
+		fixedColour = new int[n][img.length];
+		clusterPosition = new int[n][2];
+		clusterColour = new int[n][img.length];
+		for (int k = 0; k < n; k++) {
+			globalIdx[k] = (cellY + k/cellCols) * tiled.nbCols + (cellX + k%cellCols);
+			fixCluster(tiled, k);
+			clusterPosition[k] = fixedPosition[k].clone();
+			clusterColour[k] = fixedColour[k].clone();
+		}
+
+		// fallback for pixels out of reach of any cluster is own grid cell
+		for (int y=0; y<height; y++ ) {
+			for (int x=0; x<width; x++ ) {
+				labels[y*width + x] = ((originY+y)/gridSize - cellY) * cellCols + ((originX+x)/gridSize - cellX);
+			}
+		}
+		assignment();
+
+		// map to global indexes
+		for (int i = 0; i < labels.length; i++) {
+			labels[i] = globalIdx[labels[i]];
+		}
+		return labels;
+	}
+
+}
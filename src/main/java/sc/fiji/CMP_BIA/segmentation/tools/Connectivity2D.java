@@ -7,6 +7,8 @@ package sc.fiji.CMP_BIA.segmentation.tools;
 import java.util.ArrayList;
 import java.util.Arrays;
 
+import sc.fiji.CMP_BIA.tools.Threading;
+
 
 
 /**
@@ -110,6 +112,180 @@ abstract public class Connectivity2D {
 		return segmNew;
 	}
 
+
+	/**
+	 * Estimation of connected components for multi-class segmentation on 2D
+	 * in parallel by the two-pass union-find labelling. The image is split 
+	 * into horizontal strips labelled independently, then the borders 
+	 * between strips are merged and the final labels are assigned in one 
+	 * pass. The root of each component is its first pixel in row-major 
+	 * order, so the numbering is the same as for the region growing 
+	 * enforceIndividualRegions(int[][], int[][]).
+	 * Note: the neighbourhood is taken as symmetric (as CONNECT4 and CONNECT8)
+	 * 
+	 * @param segm is the initial labeling int[width*height] in row-major order
+	 * @param width is the image width
+	 * @param height is the image height
+	 * @param neighborCoords is type of connectivity, assume 4 or 8
+	 * @return int[width*height] is new relabeled segmentation in row-major order
+	 */
+	public static int[] enforceIndividualRegions(final int[] segm, final int width, final int height, final int[][] neighborCoords) {
+		final int sz = width*height;
+		// parent in the union-find forest, always pointing to a lower index
+		final int[] parent = new int[sz];
+		final int[] segmNew = new int[sz];
+		if (sz == 0) {		return segmNew;		}
+
+		// only the neighbours before the pixel in row-major order are needed
+		int nb = 0;
+		final int[] offX = new int[neighborCoords.length];
+		final int[] offY = new int[neighborCoords.length];
+		int maxDy = 0;
+		for (int[] nc : neighborCoords) {
+			if (nc[1] < 0 || (nc[1] == 0 && nc[0] < 0)) {
+				offX[nb] = nc[0];
+				offY[nb] = nc[1];
+			} else if (nc[1] > 0 || nc[0] > 0) {
+				// the mirrored neighbour
+				offX[nb] = -nc[0];
+				offY[nb] = -nc[1];
+			} else {
+				continue;
+			}
+			maxDy = Math.max(maxDy, -offY[nb]);
+			nb ++;
+		}
+		final int nbOff = nb, dyMax = maxDy;
+
+		final int nbStrips = Math.max(1, Math.min(height, 4 * Threading.nbAvailableThread()));
+		final int[] stripBegin = new int[nbStrips + 1];
+		for (int i = 0; i <= nbStrips; i++) {
+			stripBegin[i] = (int) ((long) i * height / nbStrips);
+		}
+
+		// 1) label each strip independently
+		Threading.parallelFor(0, nbStrips, 1, new Threading.RangeTask() {
+			@Override
+			public void run(int begin, int end) {
+				for (int s = begin; s < end; s++) {
+					unionRows(segm, parent, width, stripBegin[s], stripBegin[s+1], stripBegin[s], offX, offY, nbOff, true);
+				}
+			}
+		});
+
+		// 2) merge the first rows of each strip with the strip above
+		for (int s = 1; s < nbStrips; s++) {
+			unionRows(segm, parent, width, stripBegin[s], Math.min(stripBegin[s] + dyMax, stripBegin[s+1]), stripBegin[s], offX, offY, nbOff, false);
+		}
+
+		// 3) point all pixels directly to the roots and count roots per strip
+		final int[] stripRoots = new int[nbStrips + 1];
+		Threading.parallelFor(0, nbStrips, 1, new Threading.RangeTask() {
+			@Override
+			public void run(int begin, int end) {
+				int r, count;
+				for (int s = begin; s < end; s++) {
+					count = 0;
+					for (int i = stripBegin[s]*width; i < stripBegin[s+1]*width; i++) {
+						// only reading the other strips, they are being rewritten
+						r = i;
+						while (parent[r] != r) {
+							r = parent[r];
+						}
+						parent[i] = r;
+						count += (r == i) ? 1 : 0;
+					}
+					stripRoots[s+1] = count;
+				}
+			}
+		});
+		for (int s = 0; s < nbStrips; s++) {
+			stripRoots[s+1] += stripRoots[s];
+		}
+
+		// 4) number the roots in row-major order
+		Threading.parallelFor(0, nbStrips, 1, new Threading.RangeTask() {
+			@Override
+			public void run(int begin, int end) {
+				int lab;
+				for (int s = begin; s < end; s++) {
+					lab = stripRoots[s];
+					for (int i = stripBegin[s]*width; i < stripBegin[s+1]*width; i++) {
+						if (parent[i] == i) {
+							segmNew[i] = lab ++;
+						}
+					}
+				}
+			}
+		});
+
+		// 5) final relabelling of all other pixels
+		Threading.parallelFor(0, nbStrips, 1, new Threading.RangeTask() {
+			@Override
+			public void run(int begin, int end) {
+				for (int i = stripBegin[begin]*width; i < stripBegin[end]*width; i++) {
+					if (parent[i] != i) {
+						segmNew[i] = segmNew[parent[i]];
+					}
+				}
+			}
+		});
+
+		return segmNew;
+	}
+
+	/**
+	 * join pixels in rows [yB, yE) with their previous neighbours of the 
+	 * same label, which are inside the strip starting at yS (inside = true)
+	 * or above it (inside = false)
+	 */
+	private static void unionRows(final int[] segm, final int[] parent, final int width, 
+			final int yB, final int yE, final int yS, final int[] offX, final int[] offY, final int nbOff, final boolean inside) {
+		int idx, x2, y2, idx2;
+		for (int y = yB; y < yE; y++) {
+			idx = y*width;
+			for (int x = 0; x < width; x++, idx++) {
+				if (inside) {
+					parent[idx] = idx;
+				}
+				for (int n = 0; n < nbOff; n++) {
+					x2 = x + offX[n];
+					y2 = y + offY[n];
+					if (x2 < 0 || x2 >= width || y2 < 0 || (y2 >= yS) != inside) {
+						continue;
+					}
+					idx2 = y2*width + x2;
+					if (segm[idx2] == segm[idx]) {
+						union(parent, idx, idx2);
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * find the root with path halving
+	 */
+	private static int find(final int[] parent, int i) {
+		while (parent[i] != i) {
+			parent[i] = parent[parent[i]];
+			i = parent[i];
+		}
+		return i;
+	}
+
+	/**
+	 * join two trees, the lower index becomes the root
+	 */
+	private static void union(final int[] parent, final int i, final int j) {
+		int ri = find(parent, i), rj = find(parent, j);
+		if (ri < rj) {
+			parent[rj] = ri;
+		} else if (rj < ri) {
+			parent[ri] = rj;
+		}
+	}
+
 	
 	/**
 	 * It goes over all pixels and by defined connectivity finds all neighbouring 
@@ -215,6 +391,76 @@ abstract public class Connectivity2D {
 		return boundaryPoints;
 	}
 	
+	/**
+	 * Finds all points where are 3 and more different classes in defined 
+	 * connectivity, the same points as findBoundaryPoints() but in linear 
+	 * time. The candidates are found in parallel and marked in a mask, then 
+	 * in a single scan a candidate is accepted only if there is no already 
+	 * accepted point in its neighbourhood.
+	 * 
+	 * @param labels is the initial labelling of size int[Width][Height]
+	 * @param neighbors defines relative position of neighbouring pixels 
+	 * of size int[connect][2]
+	 * @return int[2*nbPoints] coordinates as {x0, y0, x1, y1, ...}
+	 */
+	public static int[] findJunctionPoints(final int[][] labels, final int[][] neighbors) {
+		final int width = labels.length;
+		final int height = labels[0].length;
+		// marker mask indexed as (x*height + y)
+		final byte[] mask = new byte[width*height];
+		final byte CANDIDATE = 1, ACCEPTED = 2;
+
+		// 1) candidates with at least 3 different labels around
+		Threading.parallelFor(1, width-1, new Threading.RangeTask() {
+			@Override
+			public void run(int begin, int end) {
+				final int[] unique = new int[neighbors.length + 1];
+				int nbUnique, l, u;
+				for (int i = begin; i < end; i++) {
+					for (int j = 1; j < height-1; j++) {
+						unique[0] = labels[i][j];
+						nbUnique = 1;
+						for (int n = 0; n < neighbors.length; n++) {
+							l = labels[ i+neighbors[n][0] ][ j+neighbors[n][1] ];
+							for (u = 0; u < nbUnique; u++) {
+								if (unique[u] == l) {		break;		}
+							}
+							if (u == nbUnique) {
+								unique[nbUnique ++] = l;
+							}
+						}
+						if (nbUnique >= 3) {
+							mask[i*height + j] = CANDIDATE;
+						}
+					}
+				}
+			}
+		});
+
+		// 2) accept candidates in the scan order, only the mask is checked
+		int[] points = new int[64];
+		int nbPoints = 0;
+		boolean free;
+		for (int i = 1; i < width-1; i++) {
+			for (int j = 1; j < height-1; j++) {
+				if (mask[i*height + j] != CANDIDATE) {		continue;		}
+				free = true;
+				for (int n = 0; n < neighbors.length && free; n++) {
+					free = mask[(i+neighbors[n][0])*height + j+neighbors[n][1]] != ACCEPTED;
+				}
+				if (free) {
+					mask[i*height + j] = ACCEPTED;
+					if (nbPoints + 2 > points.length) {
+						points = Arrays.copyOf(points, 2*points.length);
+					}
+					points[nbPoints ++] = i;
+					points[nbPoints ++] = j;
+				}
+			}
+		}
+		return Arrays.copyOf(points, nbPoints);
+	}
+	
 	/**
 	 * returns coordinates of neighbouring points belonging to the boundaries 
 	 * among different labels in given segmentation, it assume that each segment 
@@ -6,7 +6,7 @@ package sc.fiji.CMP_BIA.segmentation.tools;
 import java.util.Arrays;
 
 import sc.fiji.CMP_BIA.segmentation.structures.Labelling2D;
-import sc.fiji.CMP_BIA.tools.converters.ConvertImage;
+import sc.fiji.CMP_BIA.tools.PixelAccess;
 import sc.fiji.CMP_BIA.transform.wavelets.HaarWavelets;
 import ij.ImagePlus;
 
@@ -74,19 +74,18 @@ public class Descriptors2D extends Descriptors<Labelling2D> {
 		// sum variable for colours
 		int[][] segmColour = new int[segmentation.getMaxLabel()+1][3];
 		for(int[] subarray : segmColour) {			Arrays.fill(subarray, 0);		}
-		int k; // segment index (local)
-		int c[]; // pixel values (local)
-		
-		// separate to 2D function... 
+		int k, idx; // segment and pixel index (local)
+		// the pixels are read directly from the image
+		PixelAccess px = PixelAccess.wrap(image.getProcessor());
 		
 		// cycle over whole image and by labels add current value to given cluster center
 		for (int x=0; x<Width; x++ ) {
 			for (int y=0; y<Height; y++ ) {
 				k = segmentation.getLabel(x, y);
-				c = image.getPixel(x, y); 
-				segmColour[k][0] += c[0];
-				segmColour[k][1] += c[1];
-				segmColour[k][2] += c[2];
+				idx = y*Width + x;
+				segmColour[k][0] += px.get(idx, 0);
+				segmColour[k][1] += px.get(idx, 1);
+				segmColour[k][2] += px.get(idx, 2);
 				nbPixels[k] ++;
 			}
 		}
@@ -139,39 +138,36 @@ public class Descriptors2D extends Descriptors<Labelling2D> {
 	 */
 	public void computeTextureWaveletsHaar (int levels) {
 		// init local variables
-		float[][] haar;
+		float[] haar;
 		int w = Width;
 		int h = Height;
 		int scale = 1;
 		
-		// convert the rgb to simple brightness
-		float[][] img = ConvertImage.rgb2bright( image.getProcessor() );
+		// the first level reads the brightness directly from the image
+		PixelAccess img = PixelAccess.wrap( image.getProcessor() );
 		
 		// go over all levels
 		for (int i=0; i<levels; i++) {
 			// compute Haar
 			haar = HaarWavelets.computeHaarForward(img);
+			// size of the Haar frames
+			int hw = img.getWidth();
+			int hh = img.getHeight();
 						
 			// scaling given by haar filter of ration 2
 			w = w / 2;
 			h = h / 2;
 			scale = scale *2;
 			
-			//ImageProcessor tt = new FloatProcessor(haar);
-			//ImagePlus ttt = new ImagePlus();
-			//ttt.setProcessor(tt);
-			//ttt.show();
-			
 			// compute energies by given function
-			energyWaveletHaar(haar, scale);
+			energyWaveletHaar(haar, hw, hh, scale);
 			
 			// copy low pass image from haar frames
-			img = new float[w][h];
-			for (int x=0; x<w; x++) {
-				for (int y=0; y<h; y++) {
-					img[x][y] = haar[x][y];
-				}
+			float[] low = new float[w*h];
+			for (int y=0; y<h; y++) {
+				System.arraycopy(haar, y*hw, low, y*w, w);
 			}
+			img = PixelAccess.wrap(low, w, h);
 		}
 			
 	}
@@ -180,11 +176,14 @@ public class Descriptors2D extends Descriptors<Labelling2D> {
 	 * Compute the energies over 3 of 4 Haar frames (namely Low*High, High*Low 
 	 * and High*High) belonging to each element of given segmentation
 	 * 
-	 * @param haarFrame is matrix of all 4 aligned Haar frames
+	 * @param haarFrame is float[width*height] of all 4 aligned Haar frames
+	 * in row-major order
+	 * @param width is the width of the Haar frames
+	 * @param height is the height of the Haar frames
 	 * @param scale is int which gives the ration between the haar frames 
 	 * and the segmentation defining individual elements 
 	 */
-	protected void energyWaveletHaar(float[][] haarFrame, int scale) {
+	protected void energyWaveletHaar(float[] haarFrame, int width, int height, int scale) {
 
 		// init temporary variables
 		float[][] listF = new float[nbSegments][3];
@@ -195,8 +194,8 @@ public class Descriptors2D extends Descriptors<Labelling2D> {
 		int k;
 		float f, ff, fLH, fHH, fHL;
 		// offsets, we assume half and half decomposition
-		int offsetX = haarFrame.length / 2;
-		int offsetY = haarFrame[0].length / 2;
+		int offsetX = width / 2;
+		int offsetY = height / 2;
 				
 		// go over qurter of all positions in the Haar frames 
 		for (int x=0; x<offsetX; x++) {
@@ -205,11 +204,11 @@ public class Descriptors2D extends Descriptors<Labelling2D> {
 				k = segmentation.getLabel(x*scale, y*scale);
 				// compute the energy as x^2
 				// region L*H
-				fLH = haarFrame[offsetX +x][y];
+				fLH = haarFrame[y*width + offsetX +x];
 				// region H*L
-				fHL = haarFrame[x][offsetY +y];
+				fHL = haarFrame[(offsetY +y)*width + x];
 				// region H*H
-				fHH = haarFrame[offsetX +x][offsetY +y];
+				fHH = haarFrame[(offsetY +y)*width + offsetX +x];
 				// increment nb
 				listF[k][0] += (fLH*fLH);
 				listF[k][1] += (fHL*fHL);
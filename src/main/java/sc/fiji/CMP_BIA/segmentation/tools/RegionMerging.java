@@ -0,0 +1,388 @@
+/**
+ * @file
+ */
+package sc.fiji.CMP_BIA.segmentation.tools;
+
+import java.util.Arrays;
+
+import sc.fiji.CMP_BIA.segmentation.structures.RegionAdjacencyGraph;
+
+/**
+ * @class Region Merging
+ * @version 0.1
+ * @category image segmentation
+ *
+ * @brief Greedy merging of small regions into their most similar neighbour.
+ * The regions are kept in a union-find forest with incremental colour sums
+ * and sizes, the candidates wait in a binary heap ordered by their merging
+ * score. The entries are invalidated lazily, an entry is valid while both
+ * the region and its target are unchanged (by version stamps), otherwise
+ * the popped region is evaluated again by the actual state.
+ *
+ * @details For region i with relative size s_i = size_i / refSize the best
+ * neighbour j minimises d_ij = |mean_i - mean_j| / s_j and the region is
+ * merged while s_i^2 * (1 + d_ij) < threshold, the region with the lowest
+ * score is merged first. By default each region decides once about its
+ * merge as in the original post-processing, the merged regions are not
+ * scored again. With repeated merging a region with a grown score is pushed
+ * back and the merged regions are scored again and keep merging while they
+ * pass the threshold, then the shorter neighbour
+ * list is appended to the longer one and only the regions on the appended
+ * side are scored again, so with E edges all merges take O(E log E).
+ */
+public class RegionMerging {
+
+	// union-find parent of each region
+	protected int[] parent;
+	// size, colour sums and mean colours of each root region, the colours
+	// are stored in a single array as [region * nbChannels + channel]
+	protected long[] size;
+	protected double[] colourSum, colourMean;
+	protected int nbChannels;
+	// neighbours of each root region, may contain merged or repeated regions
+	protected int[][] adjacency;
+	protected int[] nbAdjacent;
+	// the lowest score pushed for each region
+	protected double[] key;
+	// increased with each change of the region, the heap entries of
+	// an unchanged region keep their target
+	protected int[] version;
+	// stamps for removing repeated neighbours
+	protected int[] mark;
+	protected int stamp = 0;
+	// score of the last evaluated region
+	protected double bestScore;
+	// reference size of a region (e.g. the grid area)
+	protected double refSize;
+	// number of performed merges
+	protected int nbMerges = 0;
+	// the merged regions are scored again and may merge further
+	protected boolean repeated = false;
+
+	/**
+	 * Constructor
+	 *
+	 * @param rag is the adjacency graph of all regions
+	 * @param sizes is number of pixels of each region
+	 * @param colourSums is double[nbRegions][nbChannels] colour sum of each region
+	 * @param reference is the reference size for the relative region size
+	 */
+	public RegionMerging(final RegionAdjacencyGraph rag, final int[] sizes, final double[][] colourSums, double reference) {
+		int nb = rag.getNbNodes();
+		int[] offsets = rag.getOffsets(), neighbours = rag.getNeighbours();
+		parent = new int[nb];
+		size = new long[nb];
+		adjacency = new int[nb][];
+		nbAdjacent = new int[nb];
+		key = new double[nb];
+		mark = new int[nb];
+		version = new int[nb];
+		nbChannels = (nb > 0) ? colourSums[0].length : 0;
+		colourSum = new double[nb * nbChannels];
+		colourMean = new double[nb * nbChannels];
+		for (int i = 0; i < nb; i++) {
+			parent[i] = i;
+			size[i] = sizes[i];
+			for (int c = 0; c < nbChannels; c++) {
+				colourSum[i*nbChannels + c] = colourSums[i][c];
+				colourMean[i*nbChannels + c] = (sizes[i] > 0) ? colourSums[i][c] / sizes[i] : 0;
+			}
+			adjacency[i] = Arrays.copyOfRange(neighbours, offsets[i], offsets[i+1]);
+			nbAdjacent[i] = adjacency[i].length;
+			key[i] = Double.MAX_VALUE;
+		}
+		refSize = reference;
+	}
+
+	/**
+	 * score again the merged regions so they keep merging while they pass
+	 * the threshold, which gives coarser segmentations
+	 *
+	 * @param b turns the repeated merging on
+	 */
+	public void setRepeatedMerging(boolean b) {
+		this.repeated = b;
+	}
+
+	/**
+	 * Merge the regions while the best score is below the threshold
+	 *
+	 * @param threshold is the maximal score of a merged region
+	 * @return int[nbRegions] LUT giving the final region of each region
+	 */
+	public int[] merge(final double threshold) {
+		MinHeap heap = new MinHeap(parent.length);
+		int a, b, root, begin, n, best;
+		for (a = 0; a < parent.length; a++) {
+			b = evaluate(a);
+			push(heap, a, b, version[a], bestScore, threshold);
+		}
+
+		double score, rlt, rltN, bestDiff, d;
+		while (heap.size() > 0) {
+			a = heap.topRegion();
+			b = heap.topTarget();
+			score = heap.topScore();
+			// the score holds only for unchanged region and target
+			boolean valid = (heap.topVersion() == version[a] && heap.topTargetVersion() == version[b]);
+			heap.pop();
+			// the region was already merged into another one
+			if (parent[a] != a) {
+				continue;
+			}
+			key[a] = Double.MAX_VALUE;
+			// the region or its target was changed, evaluate it again
+			if (!valid || parent[b] != b) {
+				b = evaluate(a);
+				if (b < 0 || bestScore >= threshold) {
+					continue;
+				}
+				// with repeated merging the region waits for its new score,
+				// otherwise it decides now by the actual state
+				if (repeated && bestScore > score) {
+					push(heap, a, b, version[a], bestScore, threshold);
+					continue;
+				}
+			}
+			begin = Math.max(nbAdjacent[a], nbAdjacent[b]);
+			root = join(a, b);
+			nbMerges ++;
+			// each region decides only once, the changed neighbours are
+			// evaluated again when popped
+			if (!repeated) {
+				continue;
+			}
+
+			// score again the regions on the appended side and the new
+			// region with them, the others are evaluated when popped
+			rlt = size[root] / refSize;
+			bestDiff = Double.MAX_VALUE;
+			best = -1;
+			for (int k = begin; k < nbAdjacent[root]; k++) {
+				n = find(adjacency[root][k]);
+				if (n == root) {		continue;		}
+				d = colourDiff(root, n);
+				if (d / (size[n] / refSize) < bestDiff) {
+					bestDiff = d / (size[n] / refSize);
+					best = n;
+				}
+				rltN = size[n] / refSize;
+				push(heap, n, root, version[n], rltN * rltN * (1 + d / rlt), threshold);
+			}
+			// only a lower bound, the other neighbours were not visited
+			push(heap, root, best, -1, rlt * rlt * (1 + bestDiff), threshold);
+		}
+
+		int[] lut = new int[parent.length];
+		for (int i = 0; i < lut.length; i++) {
+			lut[i] = find(i);
+		}
+		return lut;
+	}
+
+	/**
+	 * compute the best neighbour of the region and its score, the
+	 * neighbour list is reduced to distinct actual regions
+	 *
+	 * @return int the best neighbour, or -1 if there is none
+	 */
+	protected int evaluate(int a) {
+		double best = Double.MAX_VALUE, d;
+		int target = -1, n;
+		int m = 0;
+		stamp ++;
+		mark[a] = stamp;
+		for (int k = 0; k < nbAdjacent[a]; k++) {
+			n = find(adjacency[a][k]);
+			if (mark[n] == stamp) {		continue;		}
+			mark[n] = stamp;
+			adjacency[a][m ++] = n;
+			d = colourDiff(a, n) / (size[n] / refSize);
+			if (d < best || (d == best && n < target)) {
+				best = d;
+				target = n;
+			}
+		}
+		nbAdjacent[a] = m;
+		double rlt = size[a] / refSize;
+		bestScore = rlt * rlt * (1 + best);
+		return target;
+	}
+
+	/**
+	 * push the region if it may merge and the score is lower than the
+	 * one already waiting in the heap, the entry keeps the actual version
+	 * of the target and given version of the region (-1 forces a new evaluation)
+	 */
+	protected void push(MinHeap heap, int a, int target, int ver, double score, double threshold) {
+		if (target >= 0 && score < threshold && score < key[a]) {
+			key[a] = score;
+			heap.push(score, a, target, ver, version[target]);
+		}
+	}
+
+	/**
+	 * Euclidean distance of the mean colours of two regions
+	 */
+	protected double colourDiff(int a, int b) {
+		double diff = 0, d;
+		for (int c = 0; c < nbChannels; c++) {
+			d = colourMean[a*nbChannels + c] - colourMean[b*nbChannels + c];
+			diff += d*d;
+		}
+		return Math.sqrt(diff);
+	}
+
+	/**
+	 * merge region a with region b, the shorter neighbour list is appended
+	 * to the longer one, if each region decides only once the region a is
+	 * always merged into b so the target keeps its own decision
+	 *
+	 * @return int the new root
+	 */
+	protected int join(int a, int b) {
+		int root = (repeated && nbAdjacent[a] >= nbAdjacent[b]) ? a : b;
+		int other = (root == a) ? b : a;
+		parent[other] = root;
+		version[root] ++;
+		size[root] += size[other];
+		for (int c = 0; c < nbChannels; c++) {
+			colourSum[root*nbChannels + c] += colourSum[other*nbChannels + c];
+			colourMean[root*nbChannels + c] = colourSum[root*nbChannels + c] / size[root];
+		}
+		// append the neighbours of the merged region
+		int nb = nbAdjacent[root] + nbAdjacent[other];
+		if (nb > adjacency[root].length) {
+			adjacency[root] = Arrays.copyOf(adjacency[root], Math.max(nb, 2 * adjacency[root].length));
+		}
+		System.arraycopy(adjacency[other], 0, adjacency[root], nbAdjacent[root], nbAdjacent[other]);
+		nbAdjacent[root] = nb;
+		adjacency[other] = null;
+		nbAdjacent[other] = 0;
+		return root;
+	}
+
+	/**
+	 * find the root with path halving
+	 */
+	protected int find(int i) {
+		while (parent[i] != i) {
+			parent[i] = parent[parent[i]];
+			i = parent[i];
+		}
+		return i;
+	}
+
+	/**
+	 * @return int number of performed merges
+	 */
+	public int getNbMerges() {
+		return nbMerges;
+	}
+
+}
+
+
+/**
+ * @class Min Heap
+ *
+ * @brief binary heap of merging candidates in primitive arrays, ties are
+ * resolved by the lower region index so the order is deterministic
+ */
+class MinHeap {
+
+	protected double[] score;
+	protected int[] region, target, version, targetVersion;
+	protected int n = 0;
+
+	public MinHeap(int capacity) {
+		capacity = Math.max(capacity, 16);
+		score = new double[capacity];
+		region = new int[capacity];
+		target = new int[capacity];
+		version = new int[capacity];
+		targetVersion = new int[capacity];
+	}
+
+	public int size() {
+		return n;
+	}
+
+	public double topScore() {
+		return score[0];
+	}
+
+	public int topRegion() {
+		return region[0];
+	}
+
+	public int topTarget() {
+		return target[0];
+	}
+
+	public int topVersion() {
+		return version[0];
+	}
+
+	public int topTargetVersion() {
+		return targetVersion[0];
+	}
+
+	public void push(double s, int r, int t, int v, int tv) {
+		if (n == score.length) {
+			score = Arrays.copyOf(score, 2*n);
+			region = Arrays.copyOf(region, 2*n);
+			target = Arrays.copyOf(target, 2*n);
+			version = Arrays.copyOf(version, 2*n);
+			targetVersion = Arrays.copyOf(targetVersion, 2*n);
+		}
+		int i = n ++;
+		// sift up
+		while (i > 0) {
+			int p = (i-1) / 2;
+			if (!less(s, r, score[p], region[p])) {		break;		}
+			move(p, i);
+			i = p;
+		}
+		set(i, s, r, t, v, tv);
+	}
+
+	public void pop() {
+		n --;
+		if (n == 0) {		return;		}
+		double s = score[n];
+		int r = region[n], t = target[n], v = version[n], tv = targetVersion[n];
+		int i = 0, c;
+		// sift down
+		while ((c = 2*i + 1) < n) {
+			if (c+1 < n && less(score[c+1], region[c+1], score[c], region[c])) {
+				c ++;
+			}
+			if (!less(score[c], region[c], s, r)) {		break;		}
+			move(c, i);
+			i = c;
+		}
+		set(i, s, r, t, v, tv);
+	}
+
+	private static boolean less(double s1, int r1, double s2, int r2) {
+		return s1 < s2 || (s1 == s2 && r1 < r2);
+	}
+
+	private void move(int from, int to) {
+		score[to] = score[from];
+		region[to] = region[from];
+		target[to] = target[from];
+		version[to] = version[from];
+		targetVersion[to] = targetVersion[from];
+	}
+
+	private void set(int i, double s, int r, int t, int v, int tv) {
+		score[i] = s;
+		region[i] = r;
+		target[i] = t;
+		version[i] = v;
+		targetVersion[i] = tv;
+	}
+
+}
@@ -0,0 +1,252 @@
+/**
+ * @file
+ */
+package sc.fiji.CMP_BIA.tools;
+
+import ij.process.ByteProcessor;
+import ij.process.ColorProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+
+import sc.fiji.CMP_BIA.tools.converters.ConvertColour;
+
+/**
+ * @class Pixel Access
+ * @version 0.1
+ * @category image tools
+ *
+ * @brief Direct access to the backing pixel array of an ImageProcessor
+ * without copying it. The pixels are indexed in the ImageJ row-major
+ * order, so the index of pixel [x,y] is (y*width + x).
+ *
+ * @details Supported are ByteProcessor, ShortProcessor, FloatProcessor
+ * and ColorProcessor, other processors are read through getPixel.
+ */
+abstract public class PixelAccess {
+
+	protected final int width, height;
+
+	protected PixelAccess(int w, int h) {
+		width = w;
+		height = h;
+	}
+
+	/**
+	 * Wrap the pixel array of given processor
+	 *
+	 * @param ip is the ImageProcessor
+	 * @return PixelAccess
+	 */
+	public static PixelAccess wrap(final ImageProcessor ip) {
+		if (ip instanceof ByteProcessor) {
+			return new BytePixelAccess(ip.getWidth(), ip.getHeight(), (byte[]) ip.getPixels());
+		} else if (ip instanceof ShortProcessor) {
+			return new ShortPixelAccess(ip.getWidth(), ip.getHeight(), (short[]) ip.getPixels());
+		} else if (ip instanceof FloatProcessor) {
+			return new FloatPixelAccess(ip.getWidth(), ip.getHeight(), (float[]) ip.getPixels());
+		} else if (ip instanceof ColorProcessor) {
+			return new ColorPixelAccess(ip.getWidth(), ip.getHeight(), (int[]) ip.getPixels());
+		}
+		return new GenericPixelAccess(ip);
+	}
+
+	/**
+	 * Wrap a float array in row-major order
+	 *
+	 * @param pixels is float[w*h] indexed as (y*w + x)
+	 * @param w is the image width
+	 * @param h is the image height
+	 * @return PixelAccess
+	 */
+	public static PixelAccess wrap(final float[] pixels, int w, int h) {
+		return new FloatPixelAccess(w, h, pixels);
+	}
+
+	/**
+	 * @return int image width
+	 */
+	public int getWidth() {
+		return width;
+	}
+
+	/**
+	 * @return int image height
+	 */
+	public int getHeight() {
+		return height;
+	}
+
+	/**
+	 * @return int number of channels, 3 for RGB and 1 otherwise
+	 */
+	public int getNChannels() {
+		return 1;
+	}
+
+	/**
+	 * Get the pixel value as from ImageProcessor.getPixel(x, y, int[]),
+	 * for RGB images it is the packed colour 0xRRGGBB
+	 *
+	 * @param idx is the pixel index (y*width + x)
+	 * @return int pixel value
+	 */
+	abstract public int get(int idx);
+
+	/**
+	 * Get the value of given channel, for gray images the channel is ignored
+	 *
+	 * @param idx is the pixel index (y*width + x)
+	 * @param c is the channel index
+	 * @return int channel value
+	 */
+	public int get(int idx, int c) {
+		return get(idx);
+	}
+
+	/**
+	 * Get the pixel as float, for gray images the raw value and for RGB
+	 * images the brightness as ConvertColour.rgb2bright
+	 *
+	 * @param idx is the pixel index (y*width + x)
+	 * @return float pixel value
+	 */
+	abstract public float getf(int idx);
+
+}
+
+
+/**
+ * 8-bit gray image
+ */
+class BytePixelAccess extends PixelAccess {
+
+	private final byte[] pixels;
+
+	BytePixelAccess(int w, int h, byte[] px) {
+		super(w, h);
+		pixels = px;
+	}
+
+	@Override
+	public int get(int idx) {
+		return pixels[idx] & 0xff;
+	}
+
+	@Override
+	public float getf(int idx) {
+		return pixels[idx] & 0xff;
+	}
+
+}
+
+
+/**
+ * 16-bit gray image
+ */
+class ShortPixelAccess extends PixelAccess {
+
+	private final short[] pixels;
+
+	ShortPixelAccess(int w, int h, short[] px) {
+		super(w, h);
+		pixels = px;
+	}
+
+	@Override
+	public int get(int idx) {
+		return pixels[idx] & 0xffff;
+	}
+
+	@Override
+	public float getf(int idx) {
+		return pixels[idx] & 0xffff;
+	}
+
+}
+
+
+/**
+ * 32-bit float image
+ */
+class FloatPixelAccess extends PixelAccess {
+
+	private final float[] pixels;
+
+	FloatPixelAccess(int w, int h, float[] px) {
+		super(w, h);
+		pixels = px;
+	}
+
+	@Override
+	public int get(int idx) {
+		return (int) pixels[idx];
+	}
+
+	@Override
+	public float getf(int idx) {
+		return pixels[idx];
+	}
+
+}
+
+
+/**
+ * RGB image
+ */
+class ColorPixelAccess extends PixelAccess {
+
+	private final int[] pixels;
+
+	ColorPixelAccess(int w, int h, int[] px) {
+		super(w, h);
+		pixels = px;
+	}
+
+	@Override
+	public int getNChannels() {
+		return 3;
+	}
+
+	@Override
+	public int get(int idx) {
+		return pixels[idx] & 0xffffff;
+	}
+
+	@Override
+	public int get(int idx, int c) {
+		return (pixels[idx] >> (16 - 8*c)) & 0xff;
+	}
+
+	@Override
+	public float getf(int idx) {
+		int c = pixels[idx];
+		return ConvertColour.rgb2bright((c >> 16) & 0xff, (c >> 8) & 0xff, c & 0xff);
+	}
+
+}
+
+
+/**
+ * any other processor read through its getPixel
+ */
+class GenericPixelAccess extends PixelAccess {
+
+	private final ImageProcessor ip;
+
+	GenericPixelAccess(ImageProcessor p) {
+		super(p.getWidth(), p.getHeight());
+		ip = p;
+	}
+
+	@Override
+	public int get(int idx) {
+		return ip.getPixel(idx % width, idx / width);
+	}
+
+	@Override
+	public float getf(int idx) {
+		return ip.getPixelValue(idx % width, idx / width);
+	}
+
+}
@@ -2,8 +2,34 @@ package sc.fiji.CMP_BIA.tools;
 
 import ij.Prefs;
 
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RejectedExecutionException;
+
 public class Threading {
 
+	// shared work-stealing pool, created on first use
+	private static volatile ForkJoinPool pool = null;
+	// the pool was given from outside so it is not managed here
+	private static volatile boolean externalPool = false;
+	// time of the last check of the ImageJ settings [ns]
+	private static volatile long lastCheck = 0;
+	// the ImageJ settings are checked at most once in this period [ns]
+	private static final long CHECK_PERIOD = 1000000000L;
+	// pool of the current thread used instead of the shared one
+	private static final ThreadLocal<ForkJoinPool> threadPool = new ThreadLocal<ForkJoinPool>();
+
+	/**
+	 * The body of a parallel cycle processing a range of indexes
+	 */
+	public interface RangeTask {
+		/**
+		 * @param begin is the first index of the chunk
+		 * @param end is the index after the last one of the chunk
+		 */
+		void run(int begin, int end);
+	}
 
 	/** 
 	 * Create a Thread[] array as large as the number of processors available. 
@@ -14,24 +40,171 @@ public class Threading {
     	return Prefs.getThreads();
         //return Runtime.getRuntime().availableProcessors();   
     } 
-    
-    /** 
-     * Start all given threads and wait on each of them until all are done. 
-     * From Stephan Preibisch's Multithreading.java class. See: 
-     * http://repo.or.cz/w/trakem2.git?a=blob;f=mpi/fruitfly/general/MultiThreading.java;hb=HEAD 
-     */  
-    public static void startAndJoin(Thread[] threads) {  
-        for (int ithread = 0; ithread < threads.length; ++ithread) {  
-            threads[ithread].setPriority(Thread.NORM_PRIORITY);  
-            threads[ithread].start();  
-        }  
-  
-        try  {     
-            for (int ithread = 0; ithread < threads.length; ++ithread)  
-                threads[ithread].join();  
-        } catch (InterruptedException ie) {  
-            throw new RuntimeException(ie);  
-        }  
-    } 
-	
-}
\ No newline at end of file
+
+    /**
+     * Gives the shared pool, its parallelism follows the ImageJ settings
+     * (Edit>Options>Memory & Threads) checked at most once per second and
+     * it is re-created if they change. The new pool is swapped in first and
+     * then the old one is shut down, so its submitted tasks are finished.
+     *
+     * @return ForkJoinPool
+     */
+    public static ForkJoinPool getPool() {
+    	ForkJoinPool p = pool;
+    	if (p != null && (externalPool || System.nanoTime() - lastCheck < CHECK_PERIOD)) {
+    		return p;
+    	}
+    	ForkJoinPool old = null;
+    	synchronized (Threading.class) {
+    		p = pool;
+    		if (p == null || !externalPool) {
+    			lastCheck = System.nanoTime();
+    			int nb = Math.max(1, nbAvailableThread());
+    			if (p == null || p.getParallelism() != nb) {
+    				old = p;
+    				p = new ForkJoinPool(nb);
+    				pool = p;
+    			}
+    		}
+    	}
+    	if (old != null) {
+    		old.shutdown();
+    	}
+    	return p;
+    }
+
+    /**
+     * Set an external pool to be used by all parallel methods,
+     * null returns back to the pool following the ImageJ settings
+     *
+     * @param p is the ForkJoinPool
+     */
+    public static void setPool(ForkJoinPool p) {
+    	ForkJoinPool old;
+    	synchronized (Threading.class) {
+    		old = externalPool ? null : pool;
+    		externalPool = (p != null);
+    		pool = p;
+    		lastCheck = 0;
+    	}
+    	if (old != null) {
+    		old.shutdown();
+    	}
+    }
+
+    /**
+     * Set a pool used by all parallel methods called from the current thread
+     * instead of the shared one, so a group of threads (e.g. a stage of
+     * a pipeline) keeps its own thread budget, null returns back to the shared pool
+     *
+     * @param p is the ForkJoinPool
+     */
+    public static void setThreadPool(ForkJoinPool p) {
+    	if (p == null) {
+    		threadPool.remove();
+    	} else {
+    		threadPool.set(p);
+    	}
+    }
+
+    /**
+     * Run all given tasks in the shared pool and wait until all are done.
+     * If it is called from a task already running in the pool the current
+     * worker takes part in the computation instead of blocking.
+     *
+     * @param tasks are the runnable jobs (e.g. former threads)
+     */
+    public static void startAndJoin(final Runnable[] tasks) {
+    	final ForkJoinTask<?>[] jobs = new ForkJoinTask<?>[tasks.length];
+    	for (int i = 0; i < tasks.length; ++i) {
+    		jobs[i] = ForkJoinTask.adapt(tasks[i]);
+    	}
+    	invoke(new RecursiveAction() {
+			private static final long serialVersionUID = 1L;
+			@Override
+			protected void compute() {
+				ForkJoinTask.invokeAll(jobs);
+			}
+		});
+    }
+
+    /**
+     * Parallel cycle over the range [begin, end) which is recursively split
+     * into chunks of at most given size, so the idle workers can steal them
+     *
+     * @param begin is the first index
+     * @param end is the index after the last one
+     * @param chunk is the maximal number of indexes processed at once
+     * @param task is the body processing a chunk
+     */
+    public static void parallelFor(final int begin, final int end, final int chunk, final RangeTask task) {
+    	if (end <= begin) {		return;		}
+    	invoke(new RangeAction(begin, end, Math.max(1, chunk), task));
+    }
+
+    /**
+     * Parallel cycle over the range [begin, end) split into about four
+     * chunks per thread
+     *
+     * @param begin is the first index
+     * @param end is the index after the last one
+     * @param task is the body processing a chunk
+     */
+    public static void parallelFor(final int begin, final int end, final RangeTask task) {
+    	int chunk = (int) Math.ceil((end - begin) / (4. * Math.max(1, nbAvailableThread())));
+    	parallelFor(begin, end, chunk, task);
+    }
+
+    /**
+     * run the task in the pool of the current thread or the shared one,
+     * or directly if we are already inside a pool (except the common pool)
+     */
+    private static void invoke(ForkJoinTask<?> task) {
+    	ForkJoinPool p = threadPool.get();
+    	if (p == null) {
+    		p = getPool();
+    	}
+    	ForkJoinPool current = ForkJoinTask.getPool();
+    	if (ForkJoinTask.inForkJoinPool() && (current == p || current != ForkJoinPool.commonPool())) {
+    		task.invoke();
+    	} else {
+    		try {
+    			p.invoke(task);
+    		} catch (RejectedExecutionException e) {
+    			// the shared pool was replaced meanwhile, the task did not start
+    			ForkJoinPool q = getPool();
+    			if (q == p || threadPool.get() != null) {
+    				throw e;
+    			}
+    			q.invoke(task);
+    		}
+    	}
+    }
+
+    /**
+     * recursive splitting of an index range
+     */
+    private static class RangeAction extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		private final int begin, end, chunk;
+    	private final RangeTask task;
+
+    	RangeAction(int b, int e, int c, RangeTask t) {
+    		begin = b;
+    		end = e;
+    		chunk = c;
+    		task = t;
+    	}
+
+		@Override
+		protected void compute() {
+			if (end - begin <= chunk) {
+				task.run(begin, end);
+			} else {
+				int mid = (begin + end) >>> 1;
+				invokeAll(new RangeAction(begin, mid, chunk, task), new RangeAction(mid, end, chunk, task));
+			}
+		}
+    }
+
+}
@@ -0,0 +1,242 @@
+/**
+ * @file
+ */
+package sc.fiji.CMP_BIA.tools;
+
+import ij.ImagePlus;
+import ij.io.FileInfo;
+import ij.io.TiffDecoder;
+import ij.process.ByteProcessor;
+import ij.process.ColorProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+/**
+ * @class Tile Source
+ * @version 0.1
+ * @category image tools
+ *
+ * @brief Source of rectangular image regions (tiles) so the huge images
+ * do not have to be loaded into memory at once. The region is always
+ * returned as a new ImageProcessor of the requested size.
+ *
+ * @details Reading directly from disk is supported for uncompressed
+ * strip-based TIFF images of type 8bit, 16bit and RGB (as written by ImageJ)
+ */
+abstract public class TileSource implements AutoCloseable {
+
+	/**
+	 * @return int width of the whole image
+	 */
+	abstract public int getWidth();
+
+	/**
+	 * @return int height of the whole image
+	 */
+	abstract public int getHeight();
+
+	/**
+	 * Read the image region [x, x+w) x [y, y+h)
+	 *
+	 * @param x is the region begin in width
+	 * @param y is the region begin in height
+	 * @param w is the region width
+	 * @param h is the region height
+	 * @return ImageProcessor of size w x h
+	 * @throws IOException
+	 */
+	abstract public ImageProcessor readRegion(int x, int y, int w, int h) throws IOException;
+
+	/**
+	 * release all opened resources, the regions can not be read afterwards
+	 */
+	@Override
+	public void close() {
+	}
+
+	/**
+	 * Tile source over image already loaded or virtual image
+	 *
+	 * @param im is the ImagePlus
+	 * @return TileSource
+	 */
+	public static TileSource fromImage(final ImagePlus im) {
+		return new ImageTileSource(im);
+	}
+
+	/**
+	 * Tile source reading regions directly from a TIFF file
+	 *
+	 * @param path is the path to the uncompressed TIFF image
+	 * @return TileSource
+	 * @throws IOException if the file can not be read or is not supported
+	 */
+	public static TileSource fromTiff(final String path) throws IOException {
+		return new TiffTileSource(path);
+	}
+
+}
+
+
+/**
+ * @class Image Tile Source
+ *
+ * @brief reading regions of an ImagePlus by cropping its processor
+ */
+class ImageTileSource extends TileSource {
+
+	protected ImagePlus image;
+
+	public ImageTileSource(final ImagePlus im) {
+		image = im;
+	}
+
+	@Override
+	public int getWidth() {
+		return image.getWidth();
+	}
+
+	@Override
+	public int getHeight() {
+		return image.getHeight();
+	}
+
+	@Override
+	public ImageProcessor readRegion(int x, int y, int w, int h) {
+		ImageProcessor ip = image.getProcessor();
+		// the crop creates new processor with copied data
+		ip.setRoi(x, y, w, h);
+		ImageProcessor tile = ip.crop();
+		ip.resetRoi();
+		return tile;
+	}
+
+}
+
+
+/**
+ * @class TIFF Tile Source
+ *
+ * @brief reading regions of an uncompressed TIFF directly from disk row
+ * by row, so only the requested region is resident in memory
+ */
+class TiffTileSource extends TileSource {
+
+	protected FileInfo info;
+	protected RandomAccessFile file;
+	// number of bytes per pixel and per whole image row
+	protected int pxBytes;
+	protected long rowBytes;
+
+	public TiffTileSource(final String path) throws IOException {
+		File f = new File(path);
+		FileInfo[] infos = new TiffDecoder(f.getParent() + File.separator, f.getName()).getTiffInfo();
+		if (infos == null || infos.length == 0) {
+			throw new IOException("No image found in '" + path + "'.");
+		}
+		info = infos[0];
+		if (info.compression > FileInfo.COMPRESSION_NONE) {
+			throw new IOException("Only uncompressed TIFF images are supported.");
+		}
+		switch (info.fileType) {
+			case FileInfo.GRAY8:
+				pxBytes = 1;
+				break;
+			case FileInfo.GRAY16_UNSIGNED:
+				pxBytes = 2;
+				break;
+			case FileInfo.RGB:
+				pxBytes = 3;
+				break;
+			default:
+				throw new IOException("Not supported TIFF image type (" + Integer.toString(info.fileType) + ").");
+		}
+		rowBytes = (long)info.width * pxBytes;
+		file = new RandomAccessFile(f, "r");
+	}
+
+	@Override
+	public int getWidth() {
+		return info.width;
+	}
+
+	@Override
+	public int getHeight() {
+		return info.height;
+	}
+
+	/**
+	 * file position of the image row begin
+	 *
+	 * @param y is the row index
+	 * @return long position in file
+	 */
+	protected long rowOffset(int y) {
+		if (info.stripOffsets != null && info.stripOffsets.length > 0) {
+			int rps = (info.rowsPerStrip > 0) ? info.rowsPerStrip : info.height;
+			// strip offsets are unsigned 32bit values
+			long strip = info.stripOffsets[y / rps] & 0xffffffffL;
+			return strip + (y % rps) * rowBytes;
+		}
+		return info.getOffset() + y * rowBytes;
+	}
+
+	@Override
+	public ImageProcessor readRegion(int x, int y, int w, int h) throws IOException {
+		byte[] buf = new byte[w * pxBytes];
+		ImageProcessor ip;
+		switch (pxBytes) {
+			case 1:
+				ip = new ByteProcessor(w, h);
+				break;
+			case 2:
+				ip = new ShortProcessor(w, h);
+				break;
+			default:
+				ip = new ColorProcessor(w, h);
+				break;
+		}
+
+		for (int j = 0; j < h; j++) {
+			file.seek(rowOffset(y + j) + (long)x * pxBytes);
+			file.readFully(buf);
+			int idx = j * w;
+			switch (pxBytes) {
+				case 1:
+					System.arraycopy(buf, 0, (byte[]) ip.getPixels(), idx, w);
+					break;
+				case 2:
+					short[] px16 = (short[]) ip.getPixels();
+					for (int i = 0, b = 0; i < w; i++, b += 2) {
+						if (info.intelByteOrder) {
+							px16[idx + i] = (short) (((buf[b+1] & 0xff) << 8) | (buf[b] & 0xff));
+						} else {
+							px16[idx + i] = (short) (((buf[b] & 0xff) << 8) | (buf[b+1] & 0xff));
+						}
+					}
+					break;
+				default:
+					int[] pxRGB = (int[]) ip.getPixels();
+					for (int i = 0, b = 0; i < w; i++, b += 3) {
+						pxRGB[idx + i] = 0xff000000 | ((buf[b] & 0xff) << 16) | ((buf[b+1] & 0xff) << 8) | (buf[b+2] & 0xff);
+					}
+					break;
+			}
+		}
+		return ip;
+	}
+
+	@Override
+	public void close() {
+		try {
+			file.close();
+		} catch (IOException e) {
+			Logging.logMsg("ERROR: closing the TIFF file failed, " + e.getMessage());
+		}
+	}
+
+}
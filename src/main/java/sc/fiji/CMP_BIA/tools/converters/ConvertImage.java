@@ -4,6 +4,8 @@
 package sc.fiji.CMP_BIA.tools.converters;
 
 import sc.fiji.CMP_BIA.tools.Logging;
+import sc.fiji.CMP_BIA.tools.PixelAccess;
+import sc.fiji.CMP_BIA.tools.Threading;
 import ij.process.ImageProcessor;
 
 /**
@@ -32,15 +34,14 @@ abstract public class ConvertImage {
 		
 		// create pixel buffer
 		int[][][] img = new int[image.getWidth()][image.getHeight()][3];
-		int c[] = null; // pixel values (local)
+		PixelAccess px = PixelAccess.wrap(image);
+		int idx;
 		int lab[] = new int[3];
 		
 		for (int x=0; x<image.getWidth(); x++ ) {
 			for (int y=0; y<image.getHeight(); y++ ) {
-				c = image.getPixel(x, y, c); 
-				// Returns the pixel value at (x,y) as a 4 element array.
-				// RGB values are returned in the first 3 elements.
-		        ConvertColour.rgb2lab(c[0], c[1], c[2], lab);
+				idx = y*image.getWidth() + x;
+		        ConvertColour.rgb2lab(px.get(idx, 0), px.get(idx, 1), px.get(idx, 2), lab);
 		        img[x][y][0] = lab[0];
 		        img[x][y][1] = lab[1];
 		        img[x][y][2] = lab[2];
@@ -64,43 +65,108 @@ abstract public class ConvertImage {
 			return null;
 		}
 		
-		// saving already computed values
-		int[][][][] LUT = new int[256][256][256][];
+		// the computed colours are shared in LabLookup
 		Logging.logMsg(" -> fast rgb2LAB conversion");
-		int count = 0;
 		
 		// create pixel buffer
 		int[][][] img = new int[image.getWidth()][image.getHeight()][3];
-		int c[] = null; // pixel values (local)
-		//int cRed, cGreed, cBlue;
-		int lab[] = new int[3];
+		PixelAccess px = PixelAccess.wrap(image);
 		
 		for (int x=0; x<image.getWidth(); x++ ) {
 			for (int y=0; y<image.getHeight(); y++ ) {
-				//cRed = (image.get(x, y) & 0xff0000)>>16;
-				//cGreed = (image.get(x, y) & 0x00ff00)>>8;
-				//cBlue = (image.get(x, y) & 0x0000ff);
-				c = image.getPixel(x, y, c); 
-				// Returns the pixel value at (x,y) as a 4 element array.
-				// RGB values are returned in the first 3 elements.
-				if (LUT[c[0]][c[1]][c[2]] == null) {
-					ConvertColour.rgb2lab(c[0], c[1], c[2], lab);
-					LUT[c[0]][c[1]][c[2]] = lab.clone();
-					count ++;
-				} else {
-					lab = LUT[c[0]][c[1]][c[2]].clone();
-				}
-		        img[x][y][0] = lab[0];
-		        img[x][y][1] = lab[1];
-		        img[x][y][2] = lab[2];
+				LabLookup.get(px.get(y*image.getWidth() + x), img[x][y]);
 			}
 		}
 		
-		float rate = (float)count / (float)(image.getWidth()*image.getHeight()) * 100;
-		Logging.logMsg("   -> computed "+Integer.toString(count)+" colours = "+Float.toString(rate)+"%");
 		return img;
 	}
 	
+	/**
+	 * Convert whole image from RGB to LAB colour space into planar
+	 * representation, each channel is a flat array in row-major order,
+	 * so the index of pixel [x,y] is (y*width + x)
+	 *
+	 * @param image is a ImageProcessor
+	 * @return short[3][width*height]
+	 */
+	public static short[][] rgb2cieLABplanar (final ImageProcessor image) {
+		// check if it is RGB image
+		if (image.getNChannels() != 3) {
+			System.out.println("Image is NOT RGB image, becase it has only "+ Integer.toString(image.getNChannels()) +" channels.");
+			return null;
+		}
+
+		// the computed colours are shared in LabLookup
+		Logging.logMsg(" -> fast rgb2LAB conversion (planar)");
+
+		final int width = image.getWidth();
+		final int height = image.getHeight();
+		// create pixel buffer
+		final short[][] img = new short[3][width*height];
+		// RGB pixels in row-major order as 0xRRGGBB
+		final PixelAccess px = PixelAccess.wrap(image);
+
+		Threading.parallelFor(0, height, new Threading.RangeTask() {
+			@Override
+			public void run(int begin, int end) {
+				int lab;
+				for (int idx = begin*width; idx < end*width; idx++) {
+					lab = LabLookup.get(px.get(idx));
+					img[0][idx] = (short) LabLookup.getL(lab);
+					img[1][idx] = (short) LabLookup.getA(lab);
+					img[2][idx] = (short) LabLookup.getB(lab);
+				}
+			}
+		});
+
+		return img;
+	}
+
+	/**
+	 * Convert whole gray image own colour space into planar representation,
+	 * each channel is a flat array in row-major order
+	 *
+	 * @param image is a ImageProcessor
+	 * @return short[3][width*height]
+	 */
+	public static short[][] gray2cieLABplanar(final ImageProcessor image) {
+		// check if it is RGB image
+		if (image.getNChannels() != 1) {
+			System.out.println("Image is NOT gray image, becase it has only "+ Integer.toString(image.getNChannels()) +" channels.");
+			return null;
+		}
+
+		// precompute all the 8bit values
+		short[][] LUT = new short[256][3];
+		int lab[] = new int[3];
+		for (int c=0; c<256; c++) {
+			ConvertColour.rgb2lab(c, c, c, lab);
+			LUT[c][0] = (short) lab[0];
+			LUT[c][1] = (short) lab[1];
+			LUT[c][2] = (short) lab[2];
+		}
+		Logging.logMsg(" -> fast gray2LAB conversion (planar)");
+
+		int width = image.getWidth();
+		int height = image.getHeight();
+		// create pixel buffer
+		short[][] img = new short[3][width*height];
+		int c; // pixel values (local)
+
+		// the conversion returns a new processor, the input one stays untouched
+		PixelAccess px = PixelAccess.wrap(image.convertToByte(false));
+
+		// over all pixels
+		for (int idx=0; idx<width*height; idx++ ) {
+			c = px.get(idx);
+			img[0][idx] = LUT[c][0];
+			img[1][idx] = LUT[c][1];
+			img[2][idx] = LUT[c][2];
+		}
+
+		return img;
+	}
+
 	/**
 	 * Convert whole gray image own colour space
 	 * 
@@ -120,18 +186,17 @@ abstract public class ConvertImage {
 				
 		// create pixel buffer
 		int[][][] img = new int[image.getWidth()][image.getHeight()][3];
-		int[] vals = new int[4];
 		int c; // pixel values (local)
-		//int cRed, cGreed, cBlue;
 		int lab[] = new int[3];
 		
-		image.convertToByte(false);
+		// the conversion returns a new processor, the input one stays untouched
+		PixelAccess px = PixelAccess.wrap(image.convertToByte(false));
 		
 		// over all pixels
 		for (int x=0; x<image.getWidth(); x++ ) {
 			for (int y=0; y<image.getHeight(); y++ ) {
 
-				c = image.getPixel(x, y, vals)[0];
+				c = px.get(y*image.getWidth() + x);
 				
 				if (LUT[c] == null) {
 					ConvertColour.rgb2lab(c, c, c, lab);
@@ -164,14 +229,12 @@ abstract public class ConvertImage {
 				
 		// create pixel buffer
 		int[][][] img = new int[image.getWidth()][image.getHeight()][1];
-		int[] vals = new int[4];
-		
-		image.convertToByte(false);
+		PixelAccess px = PixelAccess.wrap(image);
 
 		// over all pixels
 		for (int x=0; x<image.getWidth(); x++ ) {
 			for (int y=0; y<image.getHeight(); y++ ) {
-				img[x][y][0] = image.getPixel(x, y, vals)[0];
+				img[x][y][0] = px.get(y*image.getWidth() + x);
 			}
 		}
 		
@@ -193,13 +256,12 @@ abstract public class ConvertImage {
 		
 		// create pixel buffer
 		float[][] img = new float[image.getWidth()][image.getHeight()];		
-		int c[] = null; // pixel values (local)
+		PixelAccess px = PixelAccess.wrap(image);
 		
 		// cycle over whole image and by labels add current value to given cluster center
 		for (int x=0; x<image.getWidth(); x++ ) {
 			for (int y=0; y<image.getHeight(); y++ ) {
-				c = image.getPixel(x, y, c); 
-				img[x][y] = ConvertColour.rgb2bright(c[0], c[1], c[2]);
+				img[x][y] = px.getf(y*image.getWidth() + x);
 			}
 		}
 		
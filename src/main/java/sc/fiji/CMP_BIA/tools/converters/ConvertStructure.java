@@ -171,6 +171,48 @@ public class ConvertStructure {
 	}
 
 	
+	/**
+	 * convert the matrix 'int[width][height]' to a flat 'int[width*height]'
+	 * in row-major order, meaning the index is (y*width + x)
+	 *
+	 * @param m is matrix int[width][height]
+	 * @return int[width*height]
+	 */
+	public static int[] intMatrix2rowMajor(final int[][] m) {
+		int width = m.length;
+		int height = m[0].length;
+		// init new array of the same size
+		int[] res = new int[width*height];
+		// rewrite all values to new array
+		for (int x=0; x<width; x++) {
+			for (int y=0; y<height; y++) {
+				res[y*width + x] = m[x][y];
+			}
+		}
+		return res;
+	}
+
+	/**
+	 * convert the flat 'int[width*height]' in row-major order back to
+	 * the matrix 'int[width][height]'
+	 *
+	 * @param v is flat array int[width*height]
+	 * @param width of the represented 2D array
+	 * @param height of the represented 2D array
+	 * @return int[width][height]
+	 */
+	public static int[][] rowMajor2intMatrix(final int[] v, final int width, final int height) {
+		// init matrix
+		int[][] res = new int[width][height];
+		// rewrite all values to new array
+		for (int x=0; x<width; x++) {
+			for (int y=0; y<height; y++) {
+				res[x][y] = v[y*width + x];
+			}
+		}
+		return res;
+	}
+
 	/**
 	 * 
 	 * @param m is matrix of a 'Number'
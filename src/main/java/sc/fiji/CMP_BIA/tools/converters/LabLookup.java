@@ -0,0 +1,102 @@
+/**
+ * @file
+ */
+package sc.fiji.CMP_BIA.tools.converters;
+
+/**
+ * @class LAB Lookup
+ * @version 0.1
+ * @category image conversion
+ *
+ * @brief Process-wide lookup of RGB to CIELAB conversion shared by all images.
+ * The colours are computed lazily on the first use and each is stored as
+ * a single packed int, the table is split into pages by the red channel
+ * so only pages of actually used colours are allocated.
+ *
+ * @details The packed value has the bit 31 set for computed colours, then
+ * 9 bits of L and 11 bits of a and b shifted by 1024. Concurrent threads
+ * may compute the same colour twice but they always write the same value.
+ */
+public final class LabLookup {
+
+	private static final int VALID = 0x80000000;
+	private static final int OFFSET = 1024;
+
+	// pages of packed LAB values indexed by [red][green*256 + blue]
+	private static final int[][] pages = new int[256][];
+
+	private LabLookup() {
+	}
+
+	/**
+	 * get the packed LAB value of given RGB colour
+	 *
+	 * @param rgb is colour as from ColorProcessor (0xRRGGBB)
+	 * @return int packed LAB value
+	 */
+	public static int get(final int rgb) {
+		final int r = (rgb >> 16) & 0xff;
+		int[] page = pages[r];
+		if (page == null) {
+			page = createPage(r);
+		}
+		final int key = rgb & 0xffff;
+		int v = page[key];
+		if (v == 0) {
+			int[] lab = new int[3];
+			ConvertColour.rgb2lab(r, key >> 8, key & 0xff, lab);
+			v = pack(lab);
+			page[key] = v;
+		}
+		return v;
+	}
+
+	/**
+	 * get the LAB values of given RGB colour
+	 *
+	 * @param rgb is colour as from ColorProcessor (0xRRGGBB)
+	 * @param lab[3] is the array of values for LAB
+	 */
+	public static void get(final int rgb, int[] lab) {
+		final int v = get(rgb);
+		lab[0] = getL(v);
+		lab[1] = getA(v);
+		lab[2] = getB(v);
+	}
+
+	private static synchronized int[] createPage(int r) {
+		if (pages[r] == null) {
+			pages[r] = new int[256*256];
+		}
+		return pages[r];
+	}
+
+	private static int pack(int[] lab) {
+		return VALID | ((lab[0] & 0x1ff) << 22) | (((lab[1] + OFFSET) & 0x7ff) << 11) | ((lab[2] + OFFSET) & 0x7ff);
+	}
+
+	/**
+	 * @param v is packed LAB value
+	 * @return int L channel
+	 */
+	public static int getL(final int v) {
+		return (v >> 22) & 0x1ff;
+	}
+
+	/**
+	 * @param v is packed LAB value
+	 * @return int a channel
+	 */
+	public static int getA(final int v) {
+		return ((v >> 11) & 0x7ff) - OFFSET;
+	}
+
+	/**
+	 * @param v is packed LAB value
+	 * @return int b channel
+	 */
+	public static int getB(final int v) {
+		return (v & 0x7ff) - OFFSET;
+	}
+
+}
@@ -3,6 +3,8 @@
  */
 package sc.fiji.CMP_BIA.transform.wavelets;
 
+import sc.fiji.CMP_BIA.tools.PixelAccess;
+
 /**
  * @class HaarWavelets
  * @version 0.1
@@ -63,5 +65,64 @@ public class HaarWavelets {
 		
 		return haar;
 	}
+
+	/**
+	 * Compute the forward Haar wavelet transform on an image in row-major
+	 * order, the frames are placed as in computeHaarForward(float[][])
+	 * 
+	 * @param image is float[width*height] indexed as (y*width + x)
+	 * @param width is the image width
+	 * @param height is the image height
+	 * @return float[width*height] with all 4 frames in row-major order
+	 */
+	public static float[] computeHaarForward(final float[] image, int width, int height) {
+		return computeHaarForward(PixelAccess.wrap(image, width, height));
+	}
+
+	/**
+	 * Compute the forward Haar wavelet transform directly on the pixels
+	 * of an image without copying them, for RGB images on the brightness
+	 * 
+	 * @param image is the pixel access in row-major order
+	 * @return float[width*height] with all 4 frames in row-major order
+	 */
+	public static float[] computeHaarForward(final PixelAccess image) {
+
+		int width = image.getWidth(); 
+		int height = image.getHeight(); 
+		float norm = (float) Math.sqrt(2.); 		
+		float a, b;
+		
+		// init wavelet array
+		float[] haarImg = new float[width*height];
+		
+		// Haar over the first dimension
+		for (int j=0; j<(height/2); j++) {
+			for (int i=0; i<width; i++) {
+				a = image.getf(2*j*width + i);
+				b = image.getf((2*j+1)*width + i);
+				// low pass filter
+				haarImg[j*width + i] = ( a + b ) / norm; 
+				//hight pass filter
+				haarImg[(j+(height/2))*width + i] = ( a - b ) / norm; 
+			}
+		}
+
+		float[] haar = new float[width*height];
+		
+		// Haar over the second dimension
+		for (int j=0; j<height; j++) {
+			for (int i=0; i<(width/2); i++) {
+				a = haarImg[j*width + 2*i];
+				b = haarImg[j*width + 2*i+1];
+				// low pass filter
+				haar[j*width + i] = ( a + b ) / norm; 
+				//hight pass filter
+				haar[j*width + i+(width/2)] = ( a - b ) / norm; 
+			}
+		}
+		
+		return haar;
+	}
 	
 }
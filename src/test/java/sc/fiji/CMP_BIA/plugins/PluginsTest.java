@@ -0,0 +1,44 @@
+package sc.fiji.CMP_BIA.plugins;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import sc.fiji.CMP_BIA.tools.Prints;
+
+
+/**
+ * @class Plugins Test
+ * @version 0.1
+ * @brief testing the plugins without GUI
+ */
+public class PluginsTest {
+
+	// all files written by the tests are removed afterwards
+	@Rule
+	public TemporaryFolder tmp = new TemporaryFolder();
+
+	/**
+	 * 
+	 */
+	@Test
+	public void test_BatchHeadless() {
+		Prints.printTitle("jSLIC batch without GUI");
+
+		String path = System.getProperty("user.dir") + "/src/test/resources/imgs/letter_a.png";
+		File out = new File(tmp.getRoot(), "headless");
+		int res = jSLIC_batch_.runHeadless("input=[" + path + "] output=[" + out.getPath() + "] grid=20 regularisation=0.25 features");
+		assertEquals(0, res);
+		assertTrue(new File(out, "letter_a.txt").exists());
+		assertTrue(new File(out, "letter_a_features.csv").exists());
+
+		// missing output is reported as wrong options
+		assertEquals(-1, jSLIC_batch_.runHeadless("input=[" + path + "]"));
+	}
+
+}
@@ -3,17 +3,34 @@
  */
 package sc.fiji.CMP_BIA.segmentation;
 
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
 import java.awt.Color;
 import java.awt.GraphicsEnvironment;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Random;
 
 import ij.ImagePlus;
 import ij.process.ShortProcessor;
 
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 
+import sc.fiji.CMP_BIA.segmentation.structures.LabelFile;
+import sc.fiji.CMP_BIA.segmentation.structures.Labelling;
 import sc.fiji.CMP_BIA.segmentation.structures.Labelling2D;
+import sc.fiji.CMP_BIA.segmentation.structures.MappedLabelling2D;
+import sc.fiji.CMP_BIA.segmentation.structures.RegionAdjacencyGraph;
 import sc.fiji.CMP_BIA.segmentation.tools.Connectivity2D;
+import sc.fiji.CMP_BIA.segmentation.tools.RegionMerging;
 import sc.fiji.CMP_BIA.tools.Prints;
+import sc.fiji.CMP_BIA.tools.converters.ConvertStructure;
 
 /**
  * @author borovji3
@@ -21,6 +38,10 @@ import sc.fiji.CMP_BIA.tools.Prints;
  */
 public class LabellingTest {
 
+	// all files written by the tests are removed afterwards
+	@Rule
+	public TemporaryFolder tmp = new TemporaryFolder();
+
 	static final int[][] segmMedium = new int[][]{ 
 			{1,1,1,1,1,1,1,1,2,2,2,2,2,2,2,2,3,3,3,3,3,3,3,3,3},
 			{1,1,1,1,1,1,1,1,2,2,2,2,2,2,2,2,3,3,3,3,3,3,3,3,3},
@@ -102,7 +123,7 @@ public class LabellingTest {
 		Prints.printArray(shift);
 		Prints.printMatrix( lb.overlaps(lb2, shift) );
 		
-		String path = System.getProperty("user.dir") + "/temp/exportLabelling.txt";
+		String path = new File(tmp.getRoot(), "exportLabelling.txt").getPath();
 		System.out.println("\n Export to a file: " +path);
 		lb.exportToFile(path);
 		
@@ -123,4 +144,185 @@ public class LabellingTest {
 						
 	}
 
+	@Test
+	public void test_individualRegions() {
+		Prints.printTitle("Individual Regions 2D");
+		for (int[][] data : new int[][][]{segmMedium, segmSmall, segmSmall2}) {
+			int w = data.length, h = data[0].length;
+			int[] flat = ConvertStructure.intMatrix2rowMajor(data);
+			for (int[][] neighbors : new int[][][]{Connectivity2D.CONNECT4, Connectivity2D.CONNECT8}) {
+				int[][] growing = Connectivity2D.enforceIndividualRegions(data, neighbors);
+				int[] unionFind = Connectivity2D.enforceIndividualRegions(flat, w, h, neighbors);
+				Prints.printMatrix(growing);
+				// the same numbering as the region growing
+				assertArrayEquals(ConvertStructure.intMatrix2rowMajor(growing), unionFind);
+			}
+		}
+	}
+
+	@Test
+	public void test_adjacencyGraph() {
+		Prints.printTitle("Region Adjacency Graph");
+		final int[][] data = segmMedium;
+		Labelling2D lb = new Labelling2D(data);
+		int nb = lb.getMaxLabel()+1;
+		for (int[][] neighbors : new int[][][]{Connectivity2D.CONNECT4, Connectivity2D.CONNECT8}) {
+			RegionAdjacencyGraph rag = lb.getAdjacencyGraph(neighbors);
+			Prints.printMatrix(rag.getNeighbourMatrix());
+			Prints.printArray(rag.getBoundaryLengths());
+			// the same neighbours as the list based version
+			ArrayList<ArrayList<Integer>> lists = Connectivity2D.findSegmetNeighbors(data, nb, neighbors);
+			for (int i = 0; i < nb; i++) {
+				Collections.sort(lists.get(i));
+				assertEquals(lists.get(i).size(), rag.getDegree(i));
+				for (int j = 0; j < rag.getDegree(i); j++) {
+					int e = rag.getOffsets()[i] + j;
+					assertEquals((int) lists.get(i).get(j), rag.getNeighbours()[e]);
+					// the edge is stored for both segments with the same length
+					int eBack = rag.getEdgeIndex(rag.getNeighbours()[e], i);
+					assertEquals(rag.getBoundaryLengths()[e], rag.getBoundaryLengths()[eBack]);
+				}
+			}
+		}
+	}
+
+	@Test
+	public void test_junctionPoints() {
+		Prints.printTitle("Multi-Class Boundary Points");
+		for (int[][] data : new int[][][]{segmMedium, segmSmall, segmSmall2}) {
+			for (int[][] neighbors : new int[][][]{Connectivity2D.CONNECT4, Connectivity2D.CONNECT8}) {
+				int[][] listScan = ConvertStructure.arrayList2intMatrix( Connectivity2D.findBoundaryPoints(data, neighbors) );
+				int[] masked = Connectivity2D.findJunctionPoints(data, neighbors);
+				Prints.printArray(masked);
+				// the same points in the same order
+				assertEquals(2*listScan.length, masked.length);
+				for (int i = 0; i < listScan.length; i++) {
+					assertArrayEquals(listScan[i], new int[]{masked[2*i], masked[2*i+1]});
+				}
+			}
+		}
+	}
+
+	@Test
+	public void test_regionMerging() {
+		Prints.printTitle("Region Merging");
+		// two large regions and a small one between them
+		int[] data = new int[]{0,0,0,0,1,2,2,2,2,2};
+		int[] sizes = new int[]{4, 1, 5};
+		double[][] sums = new double[][]{{0}, {10}, {500}};
+		RegionAdjacencyGraph rag = RegionAdjacencyGraph.fromLabelling(data, data.length, 1, 3, Connectivity2D.CONNECT4);
+		RegionMerging merging = new RegionMerging(rag, sizes, sums, 4.);
+		int[] lut = merging.merge(1.);
+		Prints.printArray(lut);
+		// the small region joins the more similar neighbour only
+		assertEquals(1, merging.getNbMerges());
+		assertEquals(lut[0], lut[1]);
+		assertTrue(lut[2] != lut[0]);
+	}
+
+	@Test
+	public void test_regionMergingChangedTarget() {
+		Prints.printTitle("Region Merging with changed target");
+		// a small bright region joins the middle one before the left region
+		// is popped, then the left region is no more similar to it
+		int[] data = new int[]{0,0,0,0,0,0,0,0,1,1,1,1,1,1,1,1,1,1,2};
+		int[] sizes = new int[]{8, 10, 1};
+		double[][] sums = new double[][]{{0}, {0}, {40}};
+		RegionAdjacencyGraph rag = RegionAdjacencyGraph.fromLabelling(data, data.length, 1, 3, Connectivity2D.CONNECT4);
+		RegionMerging merging = new RegionMerging(rag, sizes, sums, 10.);
+		int[] lut = merging.merge(1.);
+		Prints.printArray(lut);
+		assertEquals(1, merging.getNbMerges());
+		assertEquals(lut[1], lut[2]);
+		assertTrue(lut[0] != lut[1]);
+	}
+
+	@Test
+	public void test_continuousLabelling() {
+		Prints.printTitle("Continuous Labelling");
+		Random rnd = new Random(0);
+		// dense labels with some empty ones and sparse large labels
+		for (int range : new int[]{50, Integer.MAX_VALUE}) {
+			int[] lut = new int[200];
+			for (int i = 0; i < lut.length; i++) {
+				lut[i] = (i % 17 == 0) ? -1 : rnd.nextInt(range);
+			}
+			// the substitutions in order of the first appearance
+			int[] ref = new int[lut.length];
+			ArrayList<Integer> listSub = new ArrayList<Integer>();
+			for (int i = 0; i < lut.length; i++) {
+				if (lut[i] < 0) {		continue;		}
+				if (!listSub.contains(lut[i])) {
+					listSub.add(lut[i]);
+				}
+				ref[i] = listSub.indexOf(lut[i]);
+			}
+			assertArrayEquals(ref, Labelling.determineContinuousLabelling(lut));
+		}
+
+		// compacting the labelling keeps the order of labels
+		Labelling2D lb = new Labelling2D(segmMedium);
+		lb.reLabel(new int[]{9,2,2,7,4,4,0});
+		assertEquals(5, lb.compactLabels());
+		assertEquals(4, lb.getMaxLabel());
+		Prints.printArray(lb.getLabelHist());
+		int[] flat = new Labelling2D(segmMedium).getDataRowMajor();
+		for (int i = 0; i < flat.length; i++) {
+			flat[i] = new int[]{9,2,2,7,4,4,0}[flat[i]];
+		}
+		assertEquals(5, Labelling.compactLabelling(flat));
+		assertArrayEquals(lb.getDataRowMajor(), flat);
+	}
+
+	@Test
+	public void test_binaryLabelFile() throws IOException {
+		Prints.printTitle("Binary label file");
+		File dir = tmp.getRoot();
+
+		// piece-wise constant labelling is encoded by runs
+		Labelling2D lb = new Labelling2D(segmMedium);
+		String pathRLE = dir.getPath() + "/segm-medium" + LabelFile.EXTENSION;
+		lb.exportToBinaryFile(pathRLE);
+		Labelling2D lbRLE = LabelFile.read(pathRLE);
+		assertArrayEquals(lb.getDataRowMajor(), lbRLE.getDataRowMajor());
+		assertArrayEquals(lb.getLabelHist(), lbRLE.getLabelHist());
+		System.out.println("RLE file size: " + Long.toString(new File(pathRLE).length()));
+		// the RLE file mapped lazily, decoded by rows
+		MappedLabelling2D lbMapRLE = new MappedLabelling2D(pathRLE);
+		assertArrayEquals(lb.getDataRowMajor(), lbMapRLE.getDataRowMajor());
+		assertEquals(lb.getLabel(3, 2), lbMapRLE.getLabel(3, 2));
+		assertArrayEquals(lb.getLabelHist(), lbMapRLE.getLabelHist());
+
+		// random labels over 8 bits are stored raw in 16 bits
+		int w = 301, h = 97;
+		int[] noise = new int[w*h];
+		Random rnd = new Random(0);
+		for (int i = 0; i < noise.length; i++) {	noise[i] = rnd.nextInt(1000);	}
+		String pathRaw = dir.getPath() + "/segm-noise" + LabelFile.EXTENSION;
+		LabelFile.write(pathRaw, noise, w, h);
+		assertEquals(32 + w*h*2, new File(pathRaw).length());
+		assertArrayEquals(noise, LabelFile.read(pathRaw).getDataRowMajor());
+
+		// the raw file mapped lazily
+		MappedLabelling2D lbMap = new MappedLabelling2D(pathRaw, true);
+		assertEquals(w, lbMap.getWidth());
+		assertEquals(noise[5*w + 7], lbMap.getLabel(7, 5));
+		assertArrayEquals(noise, lbMap.getDataRowMajor());
+		assertArrayEquals(new Labelling2D(noise, w, h).getLabelHist(), lbMap.getLabelHist());
+		// the changes are written into the file
+		lbMap.setLabel(7, 5, 999);
+		int nb = lbMap.compactLabels();
+		lbMap.flush();
+		Labelling2D lbBack = LabelFile.read(pathRaw);
+		assertEquals(nb - 1, lbBack.getMaxLabel());
+		assertArrayEquals(lbMap.getDataRowMajor(), lbBack.getDataRowMajor());
+
+		// labels over 16 bits need the full 32 bits
+		int[] big = new int[]{3, 0, 70000, 5, 5, 5};
+		String pathBig = dir.getPath() + "/segm-big" + LabelFile.EXTENSION;
+		LabelFile.write(pathBig, big, 3, 2);
+		assertEquals(32 + big.length*4, new File(pathBig).length());
+		assertArrayEquals(big, new MappedLabelling2D(pathBig).getDataRowMajor());
+	}
+
 }
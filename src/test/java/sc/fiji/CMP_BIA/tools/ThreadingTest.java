@@ -0,0 +1,142 @@
+package sc.fiji.CMP_BIA.tools;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Test;
+
+
+/**
+ * @class Threading Test
+ * @version 0.1
+ * @brief testing the shared pool for parallel processing
+ */
+public class ThreadingTest {
+
+	/**
+	 * 
+	 */
+	@Test
+	public void test_ParallelFor() {
+		Prints.printTitle("Parallel cycles");
+
+		// nested parallel cycles in the shared pool
+		final AtomicLong sum = new AtomicLong(0);
+		Threading.parallelFor(0, 100, 7, new Threading.RangeTask() {
+			@Override
+			public void run(int begin, int end) {
+				for (int i = begin; i < end; i++) {
+					final int row = i;
+					Threading.parallelFor(0, 100, new Threading.RangeTask() {
+						@Override
+						public void run(int b, int e) {
+							long s = 0;
+							for (int j = b; j < e; j++) {	s += row*100 + j;	}
+							sum.addAndGet(s);
+						}
+					});
+				}
+			}
+		});
+		System.out.println("sum over 0..9999 = " + Long.toString(sum.get()));
+		assertEquals(9999L*10000/2, sum.get());
+	}
+
+	/**
+	 * 
+	 */
+	@Test
+	public void test_StartAndJoin() {
+		Prints.printTitle("Parallel jobs");
+
+		final int[] res = new int[8];
+		Runnable[] tasks = new Runnable[res.length];
+		for (int i = 0; i < tasks.length; i++) {
+			final int k = i;
+			tasks[i] = new Runnable() {
+				@Override
+				public void run() {		res[k] = k*k;		}
+			};
+		}
+		Threading.startAndJoin(tasks);
+		Prints.printArray(res);
+		assertEquals(49, res[7]);
+	}
+
+	/**
+	 * 
+	 */
+	@Test
+	public void test_ThreadPool() {
+		Prints.printTitle("Parallel cycles in a pool of the thread");
+
+		final ForkJoinPool own = new ForkJoinPool(2);
+		final boolean[] inOwn = new boolean[1];
+		Threading.setThreadPool(own);
+		try {
+			Threading.parallelFor(0, 10, 1, new Threading.RangeTask() {
+				@Override
+				public void run(int begin, int end) {
+					if (ForkJoinTask.getPool() == own) {	inOwn[0] = true;	}
+				}
+			});
+		} finally {
+			Threading.setThreadPool(null);
+			own.shutdown();
+		}
+		assertTrue(inOwn[0]);
+	}
+
+	/**
+	 * 
+	 */
+	@Test
+	public void test_PoolSwap() throws InterruptedException {
+		Prints.printTitle("Parallel cycles while the shared pool is replaced");
+
+		final AtomicLong sum = new AtomicLong(0);
+		final boolean[] failed = new boolean[1];
+		Thread[] threads = new Thread[4];
+		for (int t = 0; t < threads.length; t++) {
+			threads[t] = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						for (int i = 0; i < 200; i++) {
+							Threading.parallelFor(0, 100, 10, new Threading.RangeTask() {
+								@Override
+								public void run(int begin, int end) {
+									sum.addAndGet(end - begin);
+								}
+							});
+						}
+					} catch (RuntimeException e) {
+						failed[0] = true;
+					}
+				}
+			});
+			threads[t].start();
+		}
+		ForkJoinPool[] given = new ForkJoinPool[20];
+		for (int i = 0; i < given.length; i++) {
+			given[i] = new ForkJoinPool(2);
+			Threading.setPool(given[i]);
+			Thread.sleep(1);
+			// back to the managed pool, the given one stays running
+			Threading.setPool(null);
+		}
+		for (Thread th : threads) {
+			th.join();
+		}
+		for (ForkJoinPool p : given) {
+			p.shutdown();
+		}
+		assertTrue(!failed[0]);
+		assertEquals(4 * 200 * 100, sum.get());
+	}
+
+}
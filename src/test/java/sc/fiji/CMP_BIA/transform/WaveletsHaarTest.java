@@ -1,5 +1,7 @@
 package sc.fiji.CMP_BIA.transform;
 
+import static org.junit.Assert.assertEquals;
+
 import org.junit.Test;
 
 import sc.fiji.CMP_BIA.tools.Prints;
@@ -35,4 +37,28 @@ public class WaveletsHaarTest {
 		Prints.printMatrix( HaarWavelets.computeHaarForward(image) );		
 	}
 
+	@Test
+	public void test_HaarRowMajor() {
+		Prints.printTitle("Haar wavelets in row-major order");
+		
+		// odd sizes in both dimensions
+		int w = 7, h = 9;
+		float[][] image = new float[w][h];
+		float[] imageRM = new float[w*h];
+		for (int x=0; x<w; x++) {
+			for (int y=0; y<h; y++) {
+				image[x][y] = (float) Math.sin(x*y + x);
+				imageRM[y*w + x] = image[x][y];
+			}
+		}
+		
+		float[][] haar = HaarWavelets.computeHaarForward(image);
+		float[] haarRM = HaarWavelets.computeHaarForward(imageRM, w, h);
+		for (int x=0; x<w; x++) {
+			for (int y=0; y<h; y++) {
+				assertEquals(haar[x][y], haarRM[y*w + x], 0.f);
+			}
+		}
+	}
+
 }